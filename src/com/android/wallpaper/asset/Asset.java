@@ -28,6 +28,7 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 import android.view.Display;
 import android.view.View;
 import android.widget.ImageView;
@@ -35,8 +36,11 @@ import android.widget.ImageView;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import com.android.wallpaper.R;
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
 import com.android.wallpaper.module.BitmapCropper;
 import com.android.wallpaper.module.InjectorProvider;
+import com.android.wallpaper.util.BitmapTransformer;
 import com.android.wallpaper.util.RtlUtils;
 import com.android.wallpaper.util.ScreenSizeCalculator;
 import com.android.wallpaper.util.WallpaperCropUtils;
@@ -44,14 +48,13 @@ import com.android.wallpaper.util.WallpaperCropUtils;
 import com.bumptech.glide.load.resource.bitmap.BitmapTransformation;
 
 import java.io.File;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Interface representing an image asset.
  */
 public abstract class Asset {
-    private static final ExecutorService sExecutorService = Executors.newSingleThreadExecutor();
+    private static final String TAG = "Asset";
+
     /**
      * Creates and returns a placeholder Drawable instance sized exactly to the target ImageView and
      * filled completely with pixels of the provided placeholder color.
@@ -103,6 +106,36 @@ public abstract class Asset {
     public abstract void decodeBitmap(int targetWidth, int targetHeight,
             boolean hardwareBitmapAllowed, BitmapReceiver receiver);
 
+    /**
+     * Variant of {@link #decodeBitmap(int, int, boolean, BitmapReceiver)} which can be cancelled,
+     * for example when the view it decodes for is recycled.
+     *
+     * @return A handle to cancel the decode. Once cancelled, the receiver is not called.
+     */
+    public DecodeHandle decodeBitmapCancellable(int targetWidth, int targetHeight,
+            boolean hardwareBitmapAllowed, BitmapReceiver receiver) {
+        // Subclasses that can stop before decoding override this; by default the decode runs to
+        // completion and the result is dropped.
+        DecodeHandle handle = new DecodeHandle();
+        decodeBitmap(targetWidth, targetHeight, hardwareBitmapAllowed, handle.wrap(receiver));
+        return handle;
+    }
+
+    /**
+     * Returns a key identifying the content of this asset which stays the same across process
+     * restarts and changes whenever the content does, or null if there is no such key. Assets
+     * with a key can have their decoded bitmaps persisted by {@link BitmapCachingAsset}.
+     * This could be an I/O operation so DO NOT CALL ON UI THREAD
+     *
+     * @param context Context to look up what the content depends on with, e.g. the version of
+     *                the package it's in.
+     */
+    @WorkerThread
+    @Nullable
+    public String getStableContentKey(Context context) {
+        return null;
+    }
+
     /**
      * Copies the asset file to another place.
      * @param dest  The destination file.
@@ -119,6 +152,18 @@ public abstract class Asset {
      */
     public abstract void decodeBitmap(BitmapReceiver receiver);
 
+    /**
+     * Variant of {@link #decodeBitmap(BitmapReceiver)} which can be cancelled, for example when
+     * the wallpaper it decodes for is no longer being set.
+     *
+     * @return A handle to cancel the decode. Once cancelled, the receiver is not called.
+     */
+    public DecodeHandle decodeBitmapCancellable(BitmapReceiver receiver) {
+        DecodeHandle handle = new DecodeHandle();
+        decodeBitmap(handle.wrap(receiver));
+        return handle;
+    }
+
     /**
      * For {@link #decodeBitmap(int, int, BitmapReceiver)} to use when it is done. It then call
      * the receiver with decoded bitmap in the main thread.
@@ -143,6 +188,66 @@ public abstract class Asset {
     public abstract void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
             boolean shouldAdjustForRtl, BitmapReceiver receiver);
 
+    /**
+     * Variant of {@link #decodeBitmapRegion(Rect, int, int, boolean, BitmapReceiver)} whose result
+     * is scaled to exactly the target size rather than only close to it, for example to crop a
+     * wallpaper. Subclasses which decode the region themselves should scale it on the same
+     * background thread they decode it on.
+     *
+     * @param receiver Called with the region scaled to exactly targetWidth by targetHeight, or
+     *                 null if there was an error
+     */
+    public void decodeBitmapRegionToSize(Rect rect, int targetWidth, int targetHeight,
+            boolean shouldAdjustForRtl, BitmapReceiver receiver) {
+        decodeBitmapRegion(rect, targetWidth, targetHeight, shouldAdjustForRtl, bitmap -> {
+            if (bitmap == null || hasSize(bitmap, targetWidth, targetHeight)) {
+                receiver.onBitmapDecoded(bitmap);
+                return;
+            }
+            // The region may be shared, e.g. by a caching asset, so it's scaled into a new bitmap
+            // and left as is.
+            DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () ->
+                    decodeBitmapCompleted(receiver,
+                            scaleToSize(bitmap, targetWidth, targetHeight)));
+        });
+    }
+
+    /**
+     * Returns whether the given bitmap already has exactly the given size.
+     */
+    protected static boolean hasSize(Bitmap bitmap, int width, int height) {
+        return bitmap.getWidth() == width && bitmap.getHeight() == height;
+    }
+
+    /**
+     * Returns a new bitmap with the given bitmap scaled to exactly the given size, or null if there
+     * isn't enough memory for it. Should only be called off the main UI thread.
+     */
+    @Nullable
+    @WorkerThread
+    protected static Bitmap scaleToSize(Bitmap bitmap, int width, int height) {
+        try {
+            return BitmapTransformer.applyStretchTransformation(bitmap, new Point(width, height));
+        } catch (OutOfMemoryError e) {
+            Log.w(TAG, "Not enough memory to scale the bitmap region to size", e);
+            return null;
+        }
+    }
+
+    /**
+     * Variant of {@link #decodeBitmapRegion(Rect, int, int, boolean, BitmapReceiver)} which can be
+     * cancelled, for example when the preview it decodes for is destroyed.
+     *
+     * @return A handle to cancel the decode. Once cancelled, the receiver is not called.
+     */
+    public DecodeHandle decodeBitmapRegionCancellable(Rect rect, int targetWidth,
+            int targetHeight, boolean shouldAdjustForRtl, BitmapReceiver receiver) {
+        DecodeHandle handle = new DecodeHandle();
+        decodeBitmapRegion(rect, targetWidth, targetHeight, shouldAdjustForRtl,
+                handle.wrap(receiver));
+        return handle;
+    }
+
     /**
      * Calculates the raw dimensions of the asset at its original resolution off the main UI thread.
      * Avoids decoding the entire bitmap if possible to conserve memory.
@@ -221,7 +326,8 @@ public abstract class Asset {
                 ? imageView.getHeight()
                 : Math.abs(imageView.getLayoutParams().height);
 
-        decodeBitmap(width, height, new BitmapReceiver() {
+        DecodeHandle handle = decodeBitmapCancellable(width, height,
+                /* hardwareBitmapAllowed= */ true, new BitmapReceiver() {
             @Override
             public void onBitmapDecoded(Bitmap bitmap) {
                 if (!needsTransition) {
@@ -243,6 +349,19 @@ public abstract class Asset {
                         android.R.integer.config_shortAnimTime));
             }
         });
+        trackPendingDecode(imageView, handle);
+    }
+
+    /**
+     * Remembers the decode pending for the given view, cancelling the one it replaces. Views that
+     * get rebound to another asset, e.g. in a RecyclerView, thus don't keep decoding the old one.
+     */
+    private static void trackPendingDecode(View view, DecodeHandle handle) {
+        Object previous = view.getTag(R.id.pending_decode_handle);
+        if (previous instanceof DecodeHandle) {
+            ((DecodeHandle) previous).cancel();
+        }
+        view.setTag(R.id.pending_decode_handle, handle);
     }
 
     /**
@@ -434,11 +553,11 @@ public abstract class Asset {
 
     /**
      * Returns a copy of the given bitmap which is center cropped and scaled
-     * to fit in the given ImageView and the thread runs on ExecutorService.
+     * to fit in the given ImageView and the thread runs on the {@link DecodeScheduler}.
      */
     public void centerCropBitmap(Bitmap bitmap, View view, BitmapReceiver bitmapReceiver) {
         Point imageViewDimensions = getViewDimensions(view);
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_THUMBNAIL, () -> {
             int measuredWidth = imageViewDimensions.x;
             int measuredHeight = imageViewDimensions.y;
 
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.graphics.Bitmap
+import android.graphics.Point
+import android.graphics.Rect
+import kotlin.coroutines.resume
+import kotlinx.coroutines.suspendCancellableCoroutine
+
+/**
+ * Suspending variant of [Asset.decodeBitmap]. Cancelling the calling coroutine cancels the decode.
+ */
+suspend fun Asset.awaitDecodeBitmap(
+    targetWidth: Int,
+    targetHeight: Int,
+    hardwareBitmapAllowed: Boolean = true,
+): Bitmap? = suspendCancellableCoroutine { continuation ->
+    val handle =
+        decodeBitmapCancellable(targetWidth, targetHeight, hardwareBitmapAllowed) {
+            continuation.resume(it)
+        }
+    continuation.invokeOnCancellation { handle.cancel() }
+}
+
+/**
+ * Suspending variant of [Asset.decodeBitmap] decoding the full bitmap. Cancelling the calling
+ * coroutine cancels the decode.
+ */
+suspend fun Asset.awaitDecodeBitmap(): Bitmap? = suspendCancellableCoroutine { continuation ->
+    val handle = decodeBitmapCancellable { continuation.resume(it) }
+    continuation.invokeOnCancellation { handle.cancel() }
+}
+
+/**
+ * Suspending variant of [Asset.decodeRawDimensions]. Only the bounds are decoded, which isn't
+ * cancellable, so cancelling the calling coroutine resumes it right away and drops the result.
+ */
+suspend fun Asset.awaitDecodeRawDimensions(): Point? =
+    suspendCancellableCoroutine { continuation ->
+        decodeRawDimensions(/* activity= */ null) { dimensions ->
+            if (continuation.isActive) {
+                continuation.resume(dimensions)
+            }
+        }
+    }
+
+/**
+ * Suspending variant of [Asset.decodeBitmapRegion]. Cancelling the calling coroutine cancels the
+ * decode.
+ */
+suspend fun Asset.awaitDecodeBitmapRegion(
+    rect: Rect,
+    targetWidth: Int,
+    targetHeight: Int,
+    shouldAdjustForRtl: Boolean,
+): Bitmap? = suspendCancellableCoroutine { continuation ->
+    val handle =
+        decodeBitmapRegionCancellable(rect, targetWidth, targetHeight, shouldAdjustForRtl) {
+            continuation.resume(it)
+        }
+    continuation.invokeOnCancellation { handle.cancel() }
+}
+
+/**
+ * Suspending variant of [Asset.decodeBitmapRegionToSize]. The decode isn't cancellable, so
+ * cancelling the calling coroutine only drops its result.
+ */
+suspend fun Asset.awaitDecodeBitmapRegionToSize(
+    rect: Rect,
+    targetWidth: Int,
+    targetHeight: Int,
+    shouldAdjustForRtl: Boolean,
+): Bitmap? = suspendCancellableCoroutine { continuation ->
+    decodeBitmapRegionToSize(rect, targetWidth, targetHeight, shouldAdjustForRtl) {
+        continuation.resume(it)
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.davemorrissey.labs.subscaleview.ImageSource;
+import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView;
+import com.davemorrissey.labs.subscaleview.decoder.ImageRegionDecoder;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ImageRegionDecoder} which lets a {@link SubsamplingScaleImageView} show an {@link Asset}
+ * as tiles decoded with {@link Asset#decodeBitmapRegion}, so that only the visible part of the
+ * image is decoded, at the sample size of the current zoom, and the full resolution bitmap is never
+ * allocated.
+ *
+ * <p>Use with an {@link ImageSource} created from {@link #SOURCE_URI}, with its dimensions set to
+ * the asset's raw dimensions.
+ */
+public class AssetRegionDecoder implements ImageRegionDecoder {
+    /**
+     * Placeholder URI for the {@link ImageSource}; the view only passes it back to
+     * {@link #init(Context, Uri)}. Its scheme keeps the view from reading EXIF data from it, which
+     * the asset already applies.
+     */
+    public static final Uri SOURCE_URI = Uri.parse("wallpaper-asset://tiled-preview");
+
+    private static final long DECODE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final Asset mAsset;
+    private final Point mRawDimensions;
+    private final long mDecodeTimeoutMillis;
+    // Guarded by itself.
+    private final Set<PendingDecode> mPendingDecodes = new HashSet<>();
+    private volatile boolean mRecycled;
+
+    /**
+     * @param asset         Asset to decode tiles from; should support tiling.
+     * @param rawDimensions Dimensions of the asset at its original resolution.
+     */
+    public AssetRegionDecoder(Asset asset, Point rawDimensions) {
+        this(asset, rawDimensions, DECODE_TIMEOUT_MILLIS);
+    }
+
+    @VisibleForTesting
+    AssetRegionDecoder(Asset asset, Point rawDimensions, long decodeTimeoutMillis) {
+        mAsset = asset;
+        mRawDimensions = new Point(rawDimensions);
+        mDecodeTimeoutMillis = decodeTimeoutMillis;
+    }
+
+    @NonNull
+    @Override
+    public Point init(Context context, @NonNull Uri uri) {
+        return new Point(mRawDimensions);
+    }
+
+    /**
+     * Decodes the given region, blocking the calling thread (the view's tile loading thread) until
+     * the asset has delivered it.
+     */
+    @NonNull
+    @Override
+    public Bitmap decodeRegion(@NonNull Rect sRect, int sampleSize) {
+        PendingDecode pending = new PendingDecode();
+        synchronized (mPendingDecodes) {
+            if (mRecycled) {
+                throw new IllegalStateException("Cannot decode region after decoder is recycled");
+            }
+            mPendingDecodes.add(pending);
+        }
+        try {
+            DecodeHandle handle = mAsset.decodeBitmapRegionCancellable(new Rect(sRect),
+                    Math.max(1, sRect.width() / sampleSize),
+                    Math.max(1, sRect.height() / sampleSize),
+                    /* shouldAdjustForRtl= */ false,
+                    bitmap -> {
+                        pending.mBitmap = bitmap;
+                        pending.mLatch.countDown();
+                    });
+            synchronized (mPendingDecodes) {
+                pending.mHandle = handle;
+                // #recycle may have run while the decode was being started, before it could see
+                // the handle; it released the latch already, but the decode is still running.
+                if (mRecycled) {
+                    handle.cancel();
+                }
+            }
+            if (!pending.mLatch.await(mDecodeTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                pending.mHandle.cancel();
+                throw new RuntimeException("Timed out decoding region " + sRect);
+            }
+        } catch (InterruptedException e) {
+            pending.mHandle.cancel();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted decoding region " + sRect, e);
+        } finally {
+            synchronized (mPendingDecodes) {
+                mPendingDecodes.remove(pending);
+            }
+        }
+
+        // The view reports exceptions thrown here as tile load errors.
+        if (pending.mBitmap == null) {
+            throw new RuntimeException("Unable to decode region " + sRect);
+        }
+        return pending.mBitmap;
+    }
+
+    @Override
+    public boolean isReady() {
+        return !mRecycled;
+    }
+
+    @Override
+    public void recycle() {
+        synchronized (mPendingDecodes) {
+            mRecycled = true;
+            for (PendingDecode pending : mPendingDecodes) {
+                if (pending.mHandle != null) {
+                    pending.mHandle.cancel();
+                }
+                // Release the waiting tile thread right away.
+                pending.mLatch.countDown();
+            }
+            mPendingDecodes.clear();
+        }
+    }
+
+    private static final class PendingDecode {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile DecodeHandle mHandle;
+        volatile Bitmap mBitmap;
+    }
+}
@@ -16,24 +16,27 @@
 package com.android.wallpaper.asset;
 
 import android.app.Activity;
-import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Rect;
-import android.util.LruCache;
 import android.widget.ImageView;
 
 import androidx.annotation.Nullable;
-import androidx.core.app.ActivityManagerCompat;
+import androidx.annotation.WorkerThread;
+
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
 
 import java.util.Objects;
 
 /**
- * Implementation of {@link Asset} that wraps another {@link Asset} but keeps an LRU cache of
- * bitmaps generated by {@link #decodeBitmap(int, int, BitmapReceiver)} to avoid having to decode
+ * Implementation of {@link Asset} that wraps another {@link Asset} but keeps a two-tier cache of
+ * bitmaps generated by {@link #decodeBitmap(int, int, BitmapReceiver)} and
+ * {@link #decodeBitmapRegion(Rect, int, int, boolean, BitmapReceiver)} to avoid having to decode
  * the same bitmap multiple times.
- * The cache key is the wrapped Asset and the target Width and Height requested, so that we only
- * reuse bitmaps of the same size.
+ * The cache key is the wrapped Asset, the target Width and Height requested and, for regions, the
+ * crop rect and RTL flag, so that we only reuse bitmaps of the same size and region. Downsampled
+ * results of assets with a {@link Asset#getStableContentKey(Context) stable content key} are also
+ * kept on disk, so they survive process death.
  */
 public class BitmapCachingAsset extends Asset {
 
@@ -58,9 +61,31 @@ public class BitmapCachingAsset extends Asset {
             mRect = rect;
         }
 
+        /**
+         * Returns whether the bitmap for this key is downsampled or cropped, and thus small
+         * enough to be worth persisting.
+         */
+        boolean isPersistable() {
+            return mRect != null || mWidth > 0 || mHeight > 0;
+        }
+
+        /**
+         * Returns a key for the disk cache, or null if the asset has no stable content key.
+         */
+        @WorkerThread
+        @Nullable
+        String getDiskKey(Context context) {
+            String contentKey = mAsset.getStableContentKey(context);
+            if (contentKey == null) {
+                return null;
+            }
+            return contentKey + "|" + mWidth + "x" + mHeight + "|rtl=" + mRtl
+                    + "|rect=" + (mRect == null ? "" : mRect.flattenToString());
+        }
+
         @Override
         public int hashCode() {
-            return Objects.hash(mAsset, mWidth, mHeight);
+            return Objects.hash(mAsset, mWidth, mHeight, mRtl, mRect);
         }
 
         @Override
@@ -74,51 +99,41 @@ public class BitmapCachingAsset extends Asset {
         }
     }
 
-    private static int cacheSize = 100 * 1024 * 1024; // 100MiB
-    private static LruCache<CacheKey, Bitmap> sCache = new LruCache<CacheKey, Bitmap>(cacheSize) {
-        @Override protected int sizeOf(CacheKey key, Bitmap value) {
-            return value.getByteCount();
-        }
-    };
+    // Shared by all instances, so that separate wrappers of the same asset are coalesced too.
+    private static final SingleFlight<CacheKey> sInFlightDecodes = new SingleFlight<>();
 
-    private final boolean mIsLowRam;
+    private final Context mContext;
+    private final DecodedBitmapCache mCache;
     private final Asset mOriginalAsset;
 
     public BitmapCachingAsset(Context context, Asset originalAsset) {
+        mContext = context.getApplicationContext();
         mOriginalAsset = originalAsset instanceof BitmapCachingAsset
                 ? ((BitmapCachingAsset) originalAsset).mOriginalAsset : originalAsset;
-        mIsLowRam = ActivityManagerCompat.isLowRamDevice(
-                (ActivityManager) context.getApplicationContext().getSystemService(
-                        Context.ACTIVITY_SERVICE));
+        mCache = DecodedBitmapCache.getInstance(context);
     }
 
     @Override
     public void decodeBitmap(int targetWidth, int targetHeight, boolean useHardwareBitmapIfPossible,
             BitmapReceiver receiver) {
-        // Skip the cache in low ram devices
-        if (mIsLowRam) {
-            mOriginalAsset.decodeBitmap(targetWidth, targetHeight, useHardwareBitmapIfPossible,
-                    receiver);
-            return;
-        }
+        decodeBitmapCancellable(targetWidth, targetHeight, useHardwareBitmapIfPossible, receiver);
+    }
+
+    @Override
+    public DecodeHandle decodeBitmapCancellable(int targetWidth, int targetHeight,
+            boolean hardwareBitmapAllowed, BitmapReceiver receiver) {
         CacheKey key = new CacheKey(mOriginalAsset, targetWidth, targetHeight);
-        Bitmap cached = sCache.get(key);
-        if (cached != null) {
-            receiver.onBitmapDecoded(cached);
-        } else {
-            BitmapReceiver cachingReceiver = bitmap -> {
-                if (bitmap != null) {
-                    sCache.put(key, bitmap);
-                }
-                receiver.onBitmapDecoded(bitmap);
-            };
-            if (targetWidth == 0 && targetHeight == 0) {
-                mOriginalAsset.decodeBitmap(cachingReceiver);
-            } else {
-                mOriginalAsset.decodeBitmap(targetWidth, targetHeight, useHardwareBitmapIfPossible,
-                        cachingReceiver);
-            }
+        if (targetWidth == 0 && targetHeight == 0) {
+            // Full size decodes have no cancellable variant.
+            return decodeWithCache(key, hardwareBitmapAllowed, receiver, cachingReceiver -> {
+                DecodeHandle handle = new DecodeHandle();
+                mOriginalAsset.decodeBitmap(handle.wrap(cachingReceiver));
+                return handle;
+            });
         }
+        return decodeWithCache(key, hardwareBitmapAllowed, receiver,
+                cachingReceiver -> mOriginalAsset.decodeBitmapCancellable(targetWidth,
+                        targetHeight, hardwareBitmapAllowed, cachingReceiver));
     }
 
     @Override
@@ -129,26 +144,94 @@ public class BitmapCachingAsset extends Asset {
     @Override
     public void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
             boolean shouldAdjustForRtl, BitmapReceiver receiver) {
-        // Skip the cache in low ram devices
-        if (mIsLowRam) {
-            mOriginalAsset.decodeBitmapRegion(rect, targetWidth, targetHeight, shouldAdjustForRtl,
-                    receiver);
-            return;
-        }
+        decodeBitmapRegionCancellable(rect, targetWidth, targetHeight, shouldAdjustForRtl,
+                receiver);
+    }
+
+    @Override
+    public DecodeHandle decodeBitmapRegionCancellable(Rect rect, int targetWidth,
+            int targetHeight, boolean shouldAdjustForRtl, BitmapReceiver receiver) {
         CacheKey key = new CacheKey(mOriginalAsset, targetWidth, targetHeight, shouldAdjustForRtl,
-                rect);
-        Bitmap cached = sCache.get(key);
+                new Rect(rect));
+        return decodeWithCache(key, /* hardwareBitmapAllowed= */ false, receiver,
+                cachingReceiver -> mOriginalAsset.decodeBitmapRegionCancellable(rect, targetWidth,
+                        targetHeight, shouldAdjustForRtl, cachingReceiver));
+    }
+
+    /**
+     * Returns the number of cache misses which ran their own decode.
+     */
+    public static long getExecutedDecodeCount() {
+        return sInFlightDecodes.getCounters().getExecutedCount();
+    }
+
+    /**
+     * Returns the number of cache misses which shared a decode already in flight for the same key.
+     */
+    public static long getCoalescedDecodeCount() {
+        return sInFlightDecodes.getCounters().getCoalescedCount();
+    }
+
+    /**
+     * Looks the key up in memory, then on disk, and only then falls back to the given decoder,
+     * caching its result in both tiers. Concurrent misses for the same key share one decode.
+     */
+    private DecodeHandle decodeWithCache(CacheKey key, boolean hardwareBitmapAllowed,
+            BitmapReceiver receiver, SingleFlight.Decoder decoder) {
+        Bitmap cached = mCache.getFromMemory(key);
         if (cached != null) {
             receiver.onBitmapDecoded(cached);
-        } else {
-            mOriginalAsset.decodeBitmapRegion(rect, targetWidth, targetHeight, shouldAdjustForRtl,
-                    bitmap -> {
-                        if (bitmap != null) {
-                            sCache.put(key, bitmap);
-                        }
-                        receiver.onBitmapDecoded(bitmap);
-                    });
+            return new DecodeHandle();
+        }
+        return sInFlightDecodes.join(key, receiver,
+                flightReceiver -> loadIntoCache(key, hardwareBitmapAllowed, flightReceiver,
+                        decoder));
+    }
+
+    private DecodeHandle loadIntoCache(CacheKey key, boolean hardwareBitmapAllowed,
+            BitmapReceiver receiver, SingleFlight.Decoder decoder) {
+        DecodeHandle handle = new DecodeHandle();
+        BitmapReceiver handleReceiver = handle.wrap(receiver);
+        if (!key.isPersistable()) {
+            handle.link(decoder.decode(bitmap -> {
+                if (bitmap != null) {
+                    mCache.putInMemory(key, bitmap);
+                }
+                handleReceiver.onBitmapDecoded(bitmap);
+            }));
+            return handle;
         }
+
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_THUMBNAIL, () -> {
+            if (handle.isCancelled()) {
+                return;
+            }
+            // A decode for the same key may have completed since the memory lookup.
+            Bitmap cachedBitmap = mCache.getFromMemory(key);
+            if (cachedBitmap != null) {
+                decodeBitmapCompleted(handleReceiver, cachedBitmap);
+                return;
+            }
+            String diskKey = key.getDiskKey(mContext);
+            Bitmap fromDisk = diskKey != null
+                    ? mCache.getFromDisk(diskKey, hardwareBitmapAllowed) : null;
+            if (fromDisk != null) {
+                mCache.putInMemory(key, fromDisk);
+                decodeBitmapCompleted(handleReceiver, fromDisk);
+                return;
+            }
+            handle.link(decoder.decode(bitmap -> {
+                if (bitmap != null) {
+                    mCache.putInMemory(key, bitmap);
+                    if (diskKey != null) {
+                        DecodeScheduler.getInstance().execute(Priority.PREFETCH,
+                                () -> mCache.putOnDisk(diskKey, bitmap));
+                    }
+                }
+                handleReceiver.onBitmapDecoded(bitmap);
+            }));
+        });
+        return handle;
     }
 
     @Override
@@ -161,6 +244,11 @@ public class BitmapCachingAsset extends Asset {
         return mOriginalAsset.supportsTiling();
     }
 
+    @Override
+    public String getStableContentKey(Context context) {
+        return mOriginalAsset.getStableContentKey(context);
+    }
+
     @Override
     public void loadPreviewImage(Activity activity, ImageView imageView, int placeholderColor,
             boolean offsetToStart) {
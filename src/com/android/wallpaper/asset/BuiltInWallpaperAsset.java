@@ -32,13 +32,12 @@ import android.os.Handler;
 import android.os.Looper;
 import android.widget.ImageView;
 
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
+
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
 import com.bumptech.glide.request.RequestOptions;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
 /**
  * Asset representing the system's built-in wallpaper.
  * NOTE: This is only used for KitKat and newer devices. On older versions of Android, the
@@ -47,7 +46,6 @@ import java.util.concurrent.Executors;
  */
 @TargetApi(Build.VERSION_CODES.KITKAT)
 public final class BuiltInWallpaperAsset extends Asset {
-    private static final ExecutorService sExecutorService = Executors.newCachedThreadPool();
     private static final boolean SCALE_TO_FIT = true;
     private static final boolean CROP_TO_FIT = false;
     private static final float HORIZONTAL_CENTER_ALIGNED = 0.5f;
@@ -73,7 +71,7 @@ public final class BuiltInWallpaperAsset extends Asset {
     @Override
     public void decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight,
             boolean shouldAdjustForRtl, BitmapReceiver receiver) {
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
             Point dimensions = calculateRawDimensions();
 
             float horizontalCenter = BitmapUtils.calculateHorizontalAlignment(dimensions, rect);
@@ -92,7 +90,7 @@ public final class BuiltInWallpaperAsset extends Asset {
 
     @Override
     public void decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
             Point dimensions = calculateRawDimensions();
             new Handler(Looper.getMainLooper()).post(
                     () -> receiver.onDimensionsDecoded(dimensions));
@@ -102,7 +100,7 @@ public final class BuiltInWallpaperAsset extends Asset {
     @Override
     public void decodeBitmap(int targetWidth, int targetHeight, boolean useHardwareBitmapIfPossible,
                              BitmapReceiver receiver) {
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_THUMBNAIL, () -> {
             final WallpaperManager wallpaperManager = WallpaperManager.getInstance(mContext);
 
             Drawable drawable = (targetWidth <= 0 || targetHeight <= 0)
@@ -18,16 +18,20 @@ package com.android.wallpaper.asset;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.util.Log;
+import android.util.Size;
 import android.widget.ImageView;
 
 import androidx.annotation.Nullable;
 
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
+
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.DataSource;
 import com.bumptech.glide.load.MultiTransformation;
@@ -43,14 +47,11 @@ import com.bumptech.glide.request.target.Target;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Represents an asset located via an Android content URI.
  */
 public final class ContentUriAsset extends StreamableAsset {
-    private static final ExecutorService sExecutorService = Executors.newSingleThreadExecutor();
     private static final String TAG = "ContentUriAsset";
     private static final String JPEG_MIME_TYPE = "image/jpeg";
     private static final String PNG_MIME_TYPE = "image/png";
@@ -59,8 +60,10 @@ public final class ContentUriAsset extends StreamableAsset {
     private final Uri mUri;
     private final RequestOptions mRequestOptions;
 
-    private ExifInterfaceCompat mExifCompat;
-    private int mExifOrientation;
+    // Read once per asset; see getMetadata().
+    private volatile ContentUriMetadata mMetadata;
+    private volatile String mMimeType;
+    private volatile boolean mMimeTypeQueried;
 
     /**
      * @param context The application's context.
@@ -72,7 +75,6 @@ public final class ContentUriAsset extends StreamableAsset {
      */
     public ContentUriAsset(Context context, Uri uri, RequestOptions requestOptions,
                            boolean uncached) {
-        mExifOrientation = ExifInterfaceCompat.EXIF_ORIENTATION_UNKNOWN;
         mContext = context.getApplicationContext();
         mUri = uri;
 
@@ -119,13 +121,151 @@ public final class ContentUriAsset extends StreamableAsset {
     public void decodeBitmapRegion(final Rect rect, int targetWidth, int targetHeight,
             boolean shouldAdjustForRtl, final BitmapReceiver receiver) {
         // BitmapRegionDecoder only supports images encoded in either JPEG or PNG, so if the content
-        // URI asset is encoded with another format (for example, GIF), then fall back to cropping a
-        // bitmap region from the full-sized bitmap.
+        // URI asset is encoded with another format (for example, HEIF), then decode the region with
+        // ImageDecoder instead.
         if (isJpeg() || isPng()) {
             super.decodeBitmapRegion(rect, targetWidth, targetHeight, shouldAdjustForRtl, receiver);
             return;
         }
 
+        runDecodeCroppedRegionTask(rect, targetWidth, targetHeight, shouldAdjustForRtl,
+                new DecodeHandle(), /* scaleToTargetSize= */ false, receiver);
+    }
+
+    @Override
+    public void decodeBitmapRegionToSize(Rect rect, int targetWidth, int targetHeight,
+            boolean shouldAdjustForRtl, BitmapReceiver receiver) {
+        if (isJpeg() || isPng()) {
+            super.decodeBitmapRegionToSize(rect, targetWidth, targetHeight, shouldAdjustForRtl,
+                    receiver);
+            return;
+        }
+
+        runDecodeCroppedRegionTask(rect, targetWidth, targetHeight, shouldAdjustForRtl,
+                new DecodeHandle(), /* scaleToTargetSize= */ true, receiver);
+    }
+
+    @Override
+    public DecodeHandle decodeBitmapRegionCancellable(Rect rect, int targetWidth,
+            int targetHeight, boolean shouldAdjustForRtl, BitmapReceiver receiver) {
+        if (isJpeg() || isPng()) {
+            return super.decodeBitmapRegionCancellable(rect, targetWidth, targetHeight,
+                    shouldAdjustForRtl, receiver);
+        }
+
+        DecodeHandle handle = new DecodeHandle();
+        runDecodeCroppedRegionTask(rect, targetWidth, targetHeight, shouldAdjustForRtl, handle,
+                /* scaleToTargetSize= */ false, handle.wrap(receiver));
+        return handle;
+    }
+
+    private void runDecodeCroppedRegionTask(Rect rect, int targetWidth, int targetHeight,
+            boolean isRtl, DecodeHandle handle, boolean scaleToTargetSize,
+            BitmapReceiver receiver) {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
+            if (handle.isCancelled()) {
+                return;
+            }
+            Point dimensions = calculateRawDimensions();
+            if (dimensions == null) {
+                Log.e(TAG, "There was an error decoding the asset's raw dimensions with "
+                        + "content URI: " + mUri);
+                decodeBitmapCompleted(receiver, null);
+                return;
+            }
+
+            Rect cropRect = new Rect(rect);
+            // If we're in RTL mode, center in the rightmost side of the image
+            if (isRtl) {
+                cropRect.set(dimensions.x - rect.right, rect.top, dimensions.x - rect.left,
+                        rect.bottom);
+            }
+
+            Bitmap bitmap = decodeCroppedRegion(cropRect, targetWidth, targetHeight,
+                    scaleToTargetSize);
+            if (bitmap == null) {
+                if (!handle.isCancelled()) {
+                    decodeBitmapRegionFromFullBitmap(cropRect, scaleToTargetSize
+                            ? new Point(targetWidth, targetHeight) : null, receiver);
+                }
+                return;
+            }
+            if (handle.isCancelled()) {
+                // Nobody is waiting for it anymore.
+                ReusableBitmapPool.getInstance().put(bitmap);
+                return;
+            }
+            if (scaleToTargetSize && !hasSize(bitmap, targetWidth, targetHeight)) {
+                // The crop was clipped to the image, so it still needs to be stretched.
+                Bitmap region = bitmap;
+                bitmap = scaleToSize(region, targetWidth, targetHeight);
+                ReusableBitmapPool.getInstance().put(region);
+            }
+            decodeBitmapCompleted(receiver, bitmap);
+        });
+    }
+
+    /**
+     * Decodes only the given region of the image, downsampled towards the target size, so that the
+     * full size bitmap is never allocated. ImageDecoder applies the EXIF orientation itself, so the
+     * region is in the same rotated coordinates as {@link #calculateRawDimensions()}.
+     *
+     * @param scaleToTargetSize Whether to scale the region to exactly the target size while
+     *                          decoding it, instead of by a power of two.
+     * @return The decoded region, or null if ImageDecoder couldn't decode it.
+     */
+    @Nullable
+    private Bitmap decodeCroppedRegion(Rect cropRect, int targetWidth, int targetHeight,
+            boolean scaleToTargetSize) {
+        int sampleSize = BitmapUtils.calculateInSampleSize(
+                cropRect.width(), cropRect.height(), targetWidth, targetHeight);
+        ImageDecoder.Source source = ImageDecoder.createSource(
+                mContext.getContentResolver(), mUri);
+        try {
+            return ImageDecoder.decodeBitmap(source, (decoder, info, unused) -> {
+                Size size = info.getSize();
+                int sampledWidth;
+                int sampledHeight;
+                Rect sampledCrop;
+                if (scaleToTargetSize) {
+                    // Scale the whole image so that the crop comes out at exactly the target size.
+                    float scaleX = (float) targetWidth / cropRect.width();
+                    float scaleY = (float) targetHeight / cropRect.height();
+                    sampledWidth = Math.max(1, Math.round(size.getWidth() * scaleX));
+                    sampledHeight = Math.max(1, Math.round(size.getHeight() * scaleY));
+                    int left = Math.round(cropRect.left * scaleX);
+                    int top = Math.round(cropRect.top * scaleY);
+                    sampledCrop = new Rect(left, top, left + targetWidth, top + targetHeight);
+                } else {
+                    sampledWidth = Math.max(1, size.getWidth() / sampleSize);
+                    sampledHeight = Math.max(1, size.getHeight() / sampleSize);
+                    // The crop is applied after scaling, so it is given in scaled coordinates.
+                    sampledCrop = StreamableAsset.scaleRect(cropRect,
+                            (float) sampledWidth / size.getWidth());
+                }
+                if (!sampledCrop.intersect(0, 0, sampledWidth, sampledHeight)) {
+                    throw new IllegalArgumentException(
+                            "Crop " + cropRect + " is outside of the image " + size);
+                }
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                decoder.setTargetSize(sampledWidth, sampledHeight);
+                decoder.setCrop(sampledCrop);
+            });
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, "Unable to decode region with ImageDecoder for content URI: " + mUri, e);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory and unable to decode region for content URI: " + mUri, e);
+        }
+        return null;
+    }
+
+    /**
+     * Last resort for {@link #decodeBitmapRegion} when the region can't be decoded on its own:
+     * decodes the full size bitmap and copies the region out of it, scaled to the given size if
+     * there is one.
+     */
+    private void decodeBitmapRegionFromFullBitmap(Rect rect, @Nullable Point size,
+            BitmapReceiver receiver) {
         decodeRawDimensions(null /* activity */, new DimensionsReceiver() {
             @Override
             public void onDimensionsDecoded(@Nullable Point dimensions) {
@@ -145,9 +285,12 @@ public final class ContentUriAsset extends StreamableAsset {
                             decodeBitmapCompleted(receiver, null);
                             return;
                         }
-                        sExecutorService.execute(()-> {
-                            decodeBitmapCompleted(receiver, Bitmap.createBitmap(
-                                    fullBitmap, rect.left, rect.top, rect.width(), rect.height()));
+                        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
+                            Bitmap region = Bitmap.createBitmap(
+                                    fullBitmap, rect.left, rect.top, rect.width(), rect.height());
+                            decodeBitmapCompleted(receiver, size == null
+                                    || hasSize(region, size.x, size.y)
+                                    ? region : scaleToSize(region, size.x, size.y));
                         });
                     }
                 });
@@ -159,16 +302,48 @@ public final class ContentUriAsset extends StreamableAsset {
      * Returns whether this image is encoded in the JPEG file format.
      */
     public boolean isJpeg() {
-        String mimeType = mContext.getContentResolver().getType(mUri);
-        return mimeType != null && mimeType.equals(JPEG_MIME_TYPE);
+        return JPEG_MIME_TYPE.equals(getMimeType());
     }
 
     /**
      * Returns whether this image is encoded in the PNG file format.
      */
     public boolean isPng() {
-        String mimeType = mContext.getContentResolver().getType(mUri);
-        return mimeType != null && mimeType.equals(PNG_MIME_TYPE);
+        return PNG_MIME_TYPE.equals(getMimeType());
+    }
+
+    /**
+     * Returns the MIME type of the asset, asking the provider only the first time. Unlike the rest
+     * of the metadata this is cheap enough to be read on the main thread.
+     */
+    @Nullable
+    private String getMimeType() {
+        ContentUriMetadata metadata = mMetadata;
+        if (metadata != null) {
+            return metadata.mimeType;
+        }
+        if (!mMimeTypeQueried) {
+            mMimeType = mContext.getContentResolver().getType(mUri);
+            mMimeTypeQueried = true;
+        }
+        return mMimeType;
+    }
+
+    /**
+     * Returns the metadata of the asset, probing it on first use. Concurrent callers wait for the
+     * same probe. This method should only be called off the main UI thread.
+     */
+    private ContentUriMetadata getMetadata() {
+        ContentUriMetadata metadata = mMetadata;
+        if (metadata != null) {
+            return metadata;
+        }
+        synchronized (this) {
+            if (mMetadata == null) {
+                mMetadata = ContentUriMetadata.probe(mContext.getContentResolver(), mUri);
+            }
+            return mMetadata;
+        }
     }
 
     /**
@@ -179,14 +354,13 @@ public final class ContentUriAsset extends StreamableAsset {
      * empty (i.e., only whitespace).
      */
     public String readExifTag(String tagId) {
-        ensureExifInterface();
-        if (mExifCompat == null) {
+        ExifInterfaceCompat exif = getMetadata().exif;
+        if (exif == null) {
             Log.w(TAG, "Unable to read EXIF tags for content URI asset");
             return null;
         }
 
-
-        String attribute = mExifCompat.getAttribute(tagId);
+        String attribute = exif.getAttribute(tagId);
         if (attribute == null || attribute.trim().isEmpty()) {
             return null;
         }
@@ -194,19 +368,6 @@ public final class ContentUriAsset extends StreamableAsset {
         return attribute.trim();
     }
 
-    private void ensureExifInterface() {
-        if (mExifCompat == null) {
-            try (InputStream inputStream = openInputStream()) {
-                if (inputStream != null) {
-                    mExifCompat = new ExifInterfaceCompat(inputStream);
-                }
-            } catch (IOException e) {
-                Log.w(TAG, "Couldn't read stream for " + mUri, e);
-            }
-        }
-
-    }
-
     @Override
     protected InputStream openInputStream() {
         try {
@@ -219,28 +380,26 @@ public final class ContentUriAsset extends StreamableAsset {
 
     @Override
     protected int getExifOrientation() {
-        if (mExifOrientation != ExifInterfaceCompat.EXIF_ORIENTATION_UNKNOWN) {
-            return mExifOrientation;
-        }
+        return getMetadata().exifOrientation;
+    }
 
-        mExifOrientation = readExifOrientation();
-        return mExifOrientation;
+    @Nullable
+    @Override
+    public Point calculateRawDimensions() {
+        Point dimensions = getMetadata().rawDimensions;
+        // Let the stream be probed again if the dimensions couldn't be read the first time.
+        return dimensions != null ? dimensions : super.calculateRawDimensions();
     }
 
-    /**
-     * Returns the EXIF rotation for the content URI asset. This method should only be called off
-     * the main UI thread.
-     */
-    private int readExifOrientation() {
-        ensureExifInterface();
-        if (mExifCompat == null) {
-            Log.w(TAG, "Unable to read EXIF rotation for content URI asset with content URI: "
-                    + mUri);
-            return ExifInterfaceCompat.EXIF_ORIENTATION_NORMAL;
+    @Nullable
+    @Override
+    public String getStableContentKey(Context context) {
+        long lastModified = getMetadata().lastModified;
+        if (lastModified == ContentUriMetadata.UNKNOWN_LAST_MODIFIED) {
+            // The content behind the URI could change without the key changing.
+            return null;
         }
-
-        return mExifCompat.getAttributeInt(ExifInterfaceCompat.TAG_ORIENTATION,
-                ExifInterfaceCompat.EXIF_ORIENTATION_NORMAL);
+        return "ContentUriAsset{uri=" + mUri + ",lastModified=" + lastModified + '}';
     }
 
     @Override
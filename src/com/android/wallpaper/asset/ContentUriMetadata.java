@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * Metadata of the image behind a content URI, read once by {@link #probe} and shared by the
+ * {@link ContentUriAsset}s for that URI through a small LRU keyed by URI and last modified time,
+ * so that repeated decodes don't pay for the provider round trips again.
+ */
+final class ContentUriMetadata {
+    private static final String TAG = "ContentUriMetadata";
+    @VisibleForTesting
+    static final int CACHE_SIZE = 32;
+
+    static final long UNKNOWN_LAST_MODIFIED = -1;
+
+    private static final LruCache<CacheKey, ContentUriMetadata> sCache =
+            new LruCache<>(CACHE_SIZE);
+
+    /** MIME type reported by the provider, if any. */
+    @Nullable
+    final String mimeType;
+    /** Last modified time reported by the provider, or {@link #UNKNOWN_LAST_MODIFIED}. */
+    final long lastModified;
+    /** Raw dimensions, already swapped for the EXIF orientation, or null if unreadable. */
+    @Nullable
+    final Point rawDimensions;
+    /** EXIF orientation tag value, {@link ExifInterfaceCompat#EXIF_ORIENTATION_NORMAL} if none. */
+    final int exifOrientation;
+    /** Parsed EXIF tags, or null if they couldn't be read. */
+    @Nullable
+    final ExifInterfaceCompat exif;
+
+    private ContentUriMetadata(@Nullable String mimeType, long lastModified,
+            @Nullable Point rawDimensions, int exifOrientation,
+            @Nullable ExifInterfaceCompat exif) {
+        this.mimeType = mimeType;
+        this.lastModified = lastModified;
+        this.rawDimensions = rawDimensions;
+        this.exifOrientation = exifOrientation;
+        this.exif = exif;
+    }
+
+    /**
+     * Returns the metadata of the given content URI, from the cache if the content hasn't been
+     * modified since it was probed, otherwise by reading it from the provider.
+     */
+    @WorkerThread
+    static ContentUriMetadata probe(ContentResolver resolver, Uri uri) {
+        long lastModified = queryLastModified(resolver, uri);
+        // Without a modification time a cached entry can't be told apart from stale content.
+        CacheKey key = lastModified != UNKNOWN_LAST_MODIFIED
+                ? new CacheKey(uri, lastModified) : null;
+        if (key != null) {
+            ContentUriMetadata cached = sCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String mimeType = resolver.getType(uri);
+        ExifInterfaceCompat exif = readExif(resolver, uri);
+        int exifOrientation = exif != null
+                ? exif.getAttributeInt(ExifInterfaceCompat.TAG_ORIENTATION,
+                        ExifInterfaceCompat.EXIF_ORIENTATION_NORMAL)
+                : ExifInterfaceCompat.EXIF_ORIENTATION_NORMAL;
+        ContentUriMetadata metadata = new ContentUriMetadata(mimeType, lastModified,
+                readRawDimensions(resolver, uri, exifOrientation), exifOrientation, exif);
+        // Don't remember a probe that couldn't read the content, it may be readable later.
+        if (key != null && metadata.rawDimensions != null) {
+            sCache.put(key, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Returns the content's last modified time in milliseconds, as reported by either a documents
+     * provider or the media store, or {@link #UNKNOWN_LAST_MODIFIED}.
+     */
+    private static long queryLastModified(ContentResolver resolver, Uri uri) {
+        try (Cursor cursor = resolver.query(uri, null, null, null, null)) {
+            if (cursor == null || !cursor.moveToFirst()) {
+                return UNKNOWN_LAST_MODIFIED;
+            }
+            int index = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            if (index >= 0 && !cursor.isNull(index)) {
+                return cursor.getLong(index);
+            }
+            index = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+            if (index >= 0 && !cursor.isNull(index)) {
+                // The media store reports seconds.
+                return cursor.getLong(index) * 1000;
+            }
+        } catch (RuntimeException e) {
+            // Providers may reject queries they don't support.
+            Log.w(TAG, "Unable to query last modified time of " + uri, e);
+        }
+        return UNKNOWN_LAST_MODIFIED;
+    }
+
+    @Nullable
+    private static ExifInterfaceCompat readExif(ContentResolver resolver, Uri uri) {
+        try (InputStream inputStream = resolver.openInputStream(uri)) {
+            if (inputStream != null) {
+                return new ExifInterfaceCompat(inputStream);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Couldn't read EXIF tags of " + uri, e);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Point readRawDimensions(ContentResolver resolver, Uri uri,
+            int exifOrientation) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream inputStream = resolver.openInputStream(uri)) {
+            if (inputStream == null) {
+                return null;
+            }
+            BitmapFactory.decodeStream(inputStream, null, options);
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read dimensions of " + uri, e);
+            return null;
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        // Swap height and width if image is rotated 90 or 270 degrees.
+        if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
+                || exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
+            return new Point(options.outHeight, options.outWidth);
+        }
+        return new Point(options.outWidth, options.outHeight);
+    }
+
+    @VisibleForTesting
+    static void clearCache() {
+        sCache.evictAll();
+    }
+
+    private static final class CacheKey {
+        private final Uri mUri;
+        private final long mLastModified;
+
+        CacheKey(Uri uri, long lastModified) {
+            mUri = uri;
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return mLastModified == other.mLastModified && mUri.equals(other.mUri);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mUri, mLastModified);
+        }
+    }
+}
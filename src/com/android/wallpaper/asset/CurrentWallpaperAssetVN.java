@@ -29,8 +29,10 @@ import android.os.ParcelFileDescriptor.AutoCloseInputStream;
 import android.util.Log;
 import android.widget.ImageView;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import com.android.wallpaper.module.WallpaperIdCache;
 import com.android.wallpaper.util.WallpaperCropUtils;
 
 import com.bumptech.glide.Glide;
@@ -54,15 +56,37 @@ public class CurrentWallpaperAssetVN extends StreamableAsset {
     private static final String TAG = "CurrentWallpaperAssetVN";
     int mWallpaperId;
     private final WallpaperManager mWallpaperManager;
+    private final WallpaperIdCache mIdCache;
     @SetWallpaperFlags
     private final int mWallpaperManagerFlag;
 
     public CurrentWallpaperAssetVN(Context context, @SetWallpaperFlags int wallpaperManagerFlag) {
         mWallpaperManager = WallpaperManager.getInstance(context);
+        mIdCache = WallpaperIdCache.getInstance(context);
         mWallpaperManagerFlag = wallpaperManagerFlag;
         mWallpaperId = mWallpaperManager.getWallpaperId(mWallpaperManagerFlag);
     }
 
+    @Override
+    @Nullable
+    protected Point probeRawDimensions() {
+        // The cache only answers for this wallpaper as long as it's still the one set.
+        if (mWallpaperManager.getWallpaperId(mWallpaperManagerFlag) != mWallpaperId) {
+            return super.probeRawDimensions();
+        }
+        Point dimensions = mIdCache.getDimensions(mWallpaperManagerFlag, mWallpaperId);
+        if (dimensions != null) {
+            return dimensions;
+        }
+        dimensions = super.probeRawDimensions();
+        // Don't cache the dimensions under the ID of a wallpaper replaced while they were read.
+        if (dimensions != null
+                && mWallpaperManager.getWallpaperId(mWallpaperManagerFlag) == mWallpaperId) {
+            mIdCache.putDimensions(mWallpaperManagerFlag, mWallpaperId, dimensions);
+        }
+        return dimensions;
+    }
+
     @Override
     protected InputStream openInputStream() {
         ParcelFileDescriptor pfd = getWallpaperPfd();
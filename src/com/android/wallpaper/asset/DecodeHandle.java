@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import androidx.annotation.Nullable;
+
+import com.android.wallpaper.asset.Asset.BitmapReceiver;
+
+/**
+ * Handle to a pending decode started by one of the cancellable {@link Asset} decode methods.
+ *
+ * <p>Once cancelled, work that has not reached the decoder yet is skipped, and a bitmap that is
+ * decoded anyway is dropped instead of being delivered to the receiver.
+ */
+public final class DecodeHandle {
+    private volatile boolean mCancelled;
+    @Nullable
+    private Runnable mOnCancelListener;
+
+    /**
+     * Cancels the decode. The receiver will not be called after this returns, as long as this is
+     * called on the main thread.
+     */
+    public void cancel() {
+        Runnable listener;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            listener = mOnCancelListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Makes cancelling this handle also cancel the given one, which belongs to a decode started
+     * on behalf of this one. Cancels it right away if this handle is already cancelled.
+     */
+    void link(DecodeHandle handle) {
+        setOnCancelListener(handle::cancel);
+    }
+
+    /**
+     * Sets a listener to run once when this handle is cancelled, or right away if it already is.
+     */
+    void setOnCancelListener(Runnable listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mOnCancelListener = listener;
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Returns whether {@link #cancel()} has been called.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Returns a receiver which forwards to the given one unless this handle has been cancelled.
+     */
+    BitmapReceiver wrap(BitmapReceiver receiver) {
+        return bitmap -> {
+            if (!mCancelled) {
+                receiver.onBitmapDecoded(bitmap);
+            }
+        };
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single, bounded thread pool shared by every {@link Asset} type for decoding work.
+ *
+ * <p>Tasks are queued in priority lanes (see {@link Priority}) so that bitmaps for views that are
+ * on screen are decoded before prefetches and color extraction, no matter in which order the
+ * requests were made. Within a lane tasks run in FIFO order.
+ */
+public final class DecodeScheduler {
+    private static final String TAG = "DecodeScheduler";
+    private static final String THREAD_NAME_PREFIX = "WallpaperDecode-";
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    // Each decode thread may hold a couple of large bitmaps at a time, so allow one thread per
+    // this many MiB of heap.
+    private static final int HEAP_MIB_PER_THREAD = 64;
+    private static final int MIN_THREADS = 2;
+
+    /**
+     * Priority lanes, in decreasing order of urgency.
+     */
+    public enum Priority {
+        /** Full-size or region decode for a preview the user is looking at. */
+        VISIBLE_PREVIEW,
+        /** Thumbnail for a view that is currently on screen. */
+        VISIBLE_THUMBNAIL,
+        /** Work for content that may be shown soon but is not on screen yet. */
+        PREFETCH,
+        /** Wallpaper color extraction, which never blocks anything from being shown. */
+        COLOR_EXTRACTION,
+    }
+
+    private static DecodeScheduler sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final LaneCounters[] mLanes = new LaneCounters[Priority.values().length];
+
+    /**
+     * Returns the process-wide scheduler, creating it on first use.
+     */
+    public static synchronized DecodeScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new DecodeScheduler(calculatePoolSize(
+                    Runtime.getRuntime().availableProcessors(),
+                    Runtime.getRuntime().maxMemory()));
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the number of decode threads to use: one per CPU, but no more than the heap limit
+     * (which is the app's memory class unless it requested a large heap) can comfortably feed.
+     */
+    @VisibleForTesting
+    static int calculatePoolSize(int cpuCount, long maxHeapBytes) {
+        int heapBound = (int) (maxHeapBytes / (HEAP_MIB_PER_THREAD * 1024L * 1024L));
+        return Math.max(MIN_THREADS, Math.min(cpuCount, heapBound));
+    }
+
+    @VisibleForTesting
+    DecodeScheduler(int poolSize) {
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new LaneCounters();
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, THREAD_NAME_PREFIX + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // With an unbounded queue the pool never grows past its core size, so core == max.
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<>(), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the given task in the given priority lane.
+     */
+    public void execute(Priority priority, Runnable task) {
+        LaneCounters lane = mLanes[priority.ordinal()];
+        lane.mQueued.incrementAndGet();
+        mExecutor.execute(new PrioritizedTask(priority, mSequence.getAndIncrement(), task, lane));
+    }
+
+    /**
+     * Queues the given task in the given priority lane and returns a Future for its result.
+     */
+    public <T> Future<T> submit(Priority priority, Callable<T> task) {
+        FutureTask<T> future = new FutureTask<>(task);
+        execute(priority, future);
+        return future;
+    }
+
+    /**
+     * Returns an {@link Executor} view of a single lane, for APIs that take a plain Executor.
+     */
+    public Executor asExecutor(Priority priority) {
+        return task -> execute(priority, task);
+    }
+
+    /**
+     * Returns the number of threads this scheduler decodes on.
+     */
+    public int getPoolSize() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns a snapshot of the counters of the given lane.
+     */
+    public LaneStats getStats(Priority priority) {
+        LaneCounters lane = mLanes[priority.ordinal()];
+        return new LaneStats(priority, lane.mQueued.get(), lane.mExecuted.get(),
+                lane.mWaitMillis.get(), lane.mRunMillis.get());
+    }
+
+    /**
+     * Logs the counters of every lane.
+     */
+    public void logStats() {
+        for (Priority priority : Priority.values()) {
+            Log.i(TAG, getStats(priority).toString());
+        }
+    }
+
+    /**
+     * Point-in-time counters of one priority lane.
+     */
+    public static final class LaneStats {
+        public final Priority priority;
+        /** Tasks currently waiting in the lane. */
+        public final int queueDepth;
+        /** Tasks that finished running since the process started. */
+        public final long executedCount;
+        /** Sum of the time finished tasks spent in the queue. */
+        public final long totalWaitMillis;
+        /** Sum of the time finished tasks spent running. */
+        public final long totalRunMillis;
+
+        LaneStats(Priority priority, int queueDepth, long executedCount, long totalWaitMillis,
+                long totalRunMillis) {
+            this.priority = priority;
+            this.queueDepth = queueDepth;
+            this.executedCount = executedCount;
+            this.totalWaitMillis = totalWaitMillis;
+            this.totalRunMillis = totalRunMillis;
+        }
+
+        /** Returns the average time a task waited before running, in milliseconds. */
+        public long getAverageWaitMillis() {
+            return executedCount == 0 ? 0 : totalWaitMillis / executedCount;
+        }
+
+        /** Returns the average time a task took to run, in milliseconds. */
+        public long getAverageRunMillis() {
+            return executedCount == 0 ? 0 : totalRunMillis / executedCount;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return priority + ": queued=" + queueDepth + " executed=" + executedCount
+                    + " avgWaitMs=" + getAverageWaitMillis()
+                    + " avgRunMs=" + getAverageRunMillis();
+        }
+    }
+
+    private static final class LaneCounters {
+        final AtomicInteger mQueued = new AtomicInteger();
+        final AtomicLong mExecuted = new AtomicLong();
+        final AtomicLong mWaitMillis = new AtomicLong();
+        final AtomicLong mRunMillis = new AtomicLong();
+    }
+
+    private static final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final Priority mPriority;
+        private final long mSequence;
+        private final Runnable mTask;
+        private final LaneCounters mLane;
+        private final long mEnqueueTime = SystemClock.elapsedRealtime();
+
+        PrioritizedTask(Priority priority, long sequence, Runnable task, LaneCounters lane) {
+            mPriority = priority;
+            mSequence = sequence;
+            mTask = task;
+            mLane = lane;
+        }
+
+        @Override
+        public void run() {
+            long startTime = SystemClock.elapsedRealtime();
+            mLane.mQueued.decrementAndGet();
+            mLane.mWaitMillis.addAndGet(startTime - mEnqueueTime);
+            try {
+                mTask.run();
+            } finally {
+                mLane.mRunMillis.addAndGet(SystemClock.elapsedRealtime() - startTime);
+                mLane.mExecuted.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int byPriority = mPriority.compareTo(other.mPriority);
+            return byPriority != 0 ? byPriority : Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import com.bumptech.glide.disklrucache.DiskLruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Two-tier cache of decoded bitmaps used by {@link BitmapCachingAsset}.
+ *
+ * <p>The memory tier is an LRU sized from the app's memory class which shrinks when the system
+ * asks the app to trim memory. The disk tier keeps already downsampled and cropped results in the
+ * app's cache directory so that they survive process death.
+ */
+class DecodedBitmapCache implements ComponentCallbacks2 {
+    private static final String TAG = "DecodedBitmapCache";
+    private static final String DISK_CACHE_DIR = "decoded_bitmaps";
+    private static final int DISK_CACHE_VERSION = 1;
+    private static final long DISK_CACHE_SIZE_BYTES = 48L * 1024 * 1024;
+    private static final int JPEG_QUALITY = 90;
+    // Same share of the heap as recommended for bitmap caches in the platform docs.
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+
+    private static DecodedBitmapCache sInstance;
+
+    private final LruCache<Object, Bitmap> mMemoryCache;
+    private final File mDiskCacheDir;
+    private DiskLruCache mDiskCache;
+
+    /**
+     * Returns the process-wide cache, creating it on first use.
+     */
+    static synchronized DecodedBitmapCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            ActivityManager activityManager = appContext.getSystemService(ActivityManager.class);
+            sInstance = new DecodedBitmapCache(
+                    calculateMemoryCacheSize(activityManager.getMemoryClass()),
+                    new File(appContext.getCacheDir(), DISK_CACHE_DIR));
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    static int calculateMemoryCacheSize(int memoryClassMib) {
+        return memoryClassMib * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+    }
+
+    @VisibleForTesting
+    DecodedBitmapCache(int memoryCacheSizeBytes, File diskCacheDir) {
+        // Evicted bitmaps aren't handed to the ReusableBitmapPool: the callers they were returned
+        // to may still be drawing them, and nothing tells when they stop.
+        mMemoryCache = new LruCache<Object, Bitmap>(memoryCacheSizeBytes) {
+            @Override
+            protected int sizeOf(Object key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+        mDiskCacheDir = diskCacheDir;
+    }
+
+    /**
+     * Returns the bitmap cached in memory for the given key, if any.
+     */
+    @Nullable
+    Bitmap getFromMemory(Object key) {
+        return mMemoryCache.get(key);
+    }
+
+    /**
+     * Caches the given bitmap in memory.
+     */
+    void putInMemory(Object key, Bitmap bitmap) {
+        mMemoryCache.put(key, bitmap);
+    }
+
+    /**
+     * Reads the bitmap stored on disk for the given key, or returns null if there is none.
+     */
+    @WorkerThread
+    @Nullable
+    Bitmap getFromDisk(String key, boolean hardwareBitmapAllowed) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+        try {
+            DiskLruCache.Value value = diskCache.get(toDiskKey(key));
+            if (value == null) {
+                return null;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            if (hardwareBitmapAllowed) {
+                options.inPreferredConfig = Bitmap.Config.HARDWARE;
+            }
+            return BitmapFactory.decodeFile(value.getFile(0).getPath(), options);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read bitmap from the disk cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given bitmap to disk under the given key.
+     */
+    @WorkerThread
+    void putOnDisk(String key, Bitmap bitmap) {
+        DiskLruCache diskCache = getDiskCache();
+        if (diskCache == null) {
+            return;
+        }
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = diskCache.edit(toDiskKey(key));
+            // Another thread is already writing the same entry.
+            if (editor == null) {
+                return;
+            }
+            // Same format choice as Glide's disk cache: keep PNG only where alpha matters.
+            CompressFormat format = bitmap.hasAlpha() ? CompressFormat.PNG : CompressFormat.JPEG;
+            try (OutputStream out = new FileOutputStream(editor.getFile(0))) {
+                if (!bitmap.compress(format, JPEG_QUALITY, out)) {
+                    return;
+                }
+            }
+            editor.commit();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write bitmap to the disk cache", e);
+        } finally {
+            if (editor != null) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    @Nullable
+    private synchronized DiskLruCache getDiskCache() {
+        if (mDiskCache == null) {
+            try {
+                mDiskCache = DiskLruCache.open(mDiskCacheDir, DISK_CACHE_VERSION,
+                        /* valueCount= */ 1, DISK_CACHE_SIZE_BYTES);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to open the disk cache", e);
+            }
+        }
+        return mDiskCache;
+    }
+
+    /**
+     * Maps a key to the [a-z0-9_-]{1,120} form that DiskLruCache requires.
+     */
+    private static String toDiskKey(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                    key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is guaranteed to be available on Android.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mMemoryCache.evictAll();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.trimToSize(mMemoryCache.maxSize() / 2);
+        }
+        ReusableBitmapPool.getInstance().trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        mMemoryCache.evictAll();
+        ReusableBitmapPool.getInstance().clearMemory();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        // No op
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.android.wallpaper.asset;
 
+import android.content.Context;
 import android.util.Log;
 
 import java.io.File;
@@ -37,6 +38,14 @@ public final class FileAsset extends StreamableAsset {
         mFile = file;
     }
 
+    @Override
+    public String getStableContentKey(Context context) {
+        return "FileAsset{path=" + mFile.getAbsolutePath()
+                + ",lastModified=" + mFile.lastModified()
+                + ",length=" + mFile.length()
+                + '}';
+    }
+
     @Override
     protected InputStream openInputStream() {
         try {
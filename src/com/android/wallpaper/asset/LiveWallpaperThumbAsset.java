@@ -35,6 +35,7 @@ import android.widget.ImageView;
 
 import androidx.annotation.WorkerThread;
 
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
 import com.android.wallpaper.module.DrawableLayerResolver;
 import com.android.wallpaper.module.InjectorProvider;
 
@@ -51,8 +52,6 @@ import com.bumptech.glide.request.RequestOptions;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -61,7 +60,6 @@ import java.util.concurrent.TimeoutException;
  */
 public class LiveWallpaperThumbAsset extends Asset {
     private static final String TAG = "LiveWallpaperThumbAsset";
-    private static final ExecutorService sExecutorService = Executors.newCachedThreadPool();
     private static final int LOW_RES_THUMB_TIMEOUT_SECONDS = 2;
 
     protected final Context mContext;
@@ -92,7 +90,7 @@ public class LiveWallpaperThumbAsset extends Asset {
     @Override
     public void decodeBitmap(int targetWidth, int targetHeight, boolean useHardwareBitmapIfPossible,
                              BitmapReceiver receiver) {
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_THUMBNAIL, () -> {
             Drawable thumb = getThumbnailDrawable();
 
             // Live wallpaper components may or may not specify a thumbnail drawable.
@@ -136,7 +134,7 @@ public class LiveWallpaperThumbAsset extends Asset {
 
     @Override
     public void decodeBitmap(BitmapReceiver receiver) {
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
             Drawable thumb = getThumbnailDrawable();
             Bitmap bitmap = null;
             // Live wallpaper components may or may not specify a thumbnail drawable.
@@ -161,7 +159,7 @@ public class LiveWallpaperThumbAsset extends Asset {
     @Override
     public void decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
         // TODO(b/277166654): Reuse the logic for all thumb asset decoding
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
             Bitmap result = null;
             Drawable thumb = mInfo.loadThumbnail(mContext.getPackageManager());
             if (thumb instanceof BitmapDrawable) {
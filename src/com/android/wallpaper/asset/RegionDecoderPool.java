@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.graphics.BitmapRegionDecoder;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, thread-safe pool of {@link BitmapRegionDecoder}s for a single asset.
+ *
+ * <p>A BitmapRegionDecoder serializes its decodes internally, so tiles of one image can only be
+ * decoded in parallel by separate decoder instances. Decoders are opened lazily, up to the pool's
+ * maximum size; beyond that callers wait for one to be released. Each decoder keeps its own copy
+ * of the encoded image, which is why the pool is kept small.
+ *
+ * <p>Once none of its decoders are in use, the pool only keeps one of them for the next decode,
+ * and recycles that one too if it stays idle for {@link #IDLE_TIMEOUT_MILLIS}. An asset which
+ * isn't decoded anymore thus doesn't keep copies of its encoded image in native memory.
+ */
+class RegionDecoderPool {
+    private static final int MAX_POOL_SIZE = 4;
+
+    @VisibleForTesting
+    static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    /**
+     * Opens a new decoder for the asset, or returns null if that failed.
+     */
+    interface Factory {
+        @Nullable
+        BitmapRegionDecoder open();
+    }
+
+    private final Factory mFactory;
+    private final int mMaxSize;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mRecycleIdleDecoders = this::recycleIdleDecoders;
+    private final ArrayDeque<BitmapRegionDecoder> mIdleDecoders = new ArrayDeque<>();
+    // Guarded by this; counts decoders that are idle, in use, or being opened.
+    private int mDecoderCount;
+
+    RegionDecoderPool(Factory factory) {
+        this(factory, calculateMaxSize(Runtime.getRuntime().availableProcessors()));
+    }
+
+    @VisibleForTesting
+    RegionDecoderPool(Factory factory, int maxSize) {
+        mFactory = factory;
+        mMaxSize = maxSize;
+    }
+
+    @VisibleForTesting
+    static int calculateMaxSize(int cpuCount) {
+        return Math.max(1, Math.min(cpuCount, MAX_POOL_SIZE));
+    }
+
+    /**
+     * Returns a decoder for exclusive use by the caller until it is passed to {@link #release},
+     * waiting for one to become available if all of them are in use. Returns null if no decoder
+     * could be opened.
+     */
+    @Nullable
+    BitmapRegionDecoder acquire() throws InterruptedException {
+        synchronized (this) {
+            while (mIdleDecoders.isEmpty() && mDecoderCount >= mMaxSize) {
+                wait();
+            }
+            if (!mIdleDecoders.isEmpty()) {
+                return mIdleDecoders.pop();
+            }
+            mDecoderCount++;
+        }
+
+        // Opening reads the whole stream, so don't hold the lock meanwhile.
+        BitmapRegionDecoder decoder = mFactory.open();
+        if (decoder == null) {
+            synchronized (this) {
+                mDecoderCount--;
+                notifyAll();
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * Returns a decoder obtained from {@link #acquire()} to the pool.
+     */
+    synchronized void release(BitmapRegionDecoder decoder) {
+        mIdleDecoders.push(decoder);
+        if (mIdleDecoders.size() == mDecoderCount) {
+            // None are in use anymore, so nobody is waiting for one either.
+            while (mIdleDecoders.size() > 1) {
+                mIdleDecoders.removeLast().recycle();
+                mDecoderCount--;
+            }
+            mHandler.removeCallbacks(mRecycleIdleDecoders);
+            mHandler.postDelayed(mRecycleIdleDecoders, IDLE_TIMEOUT_MILLIS);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of decoders which are idle, in use or being opened.
+     */
+    @VisibleForTesting
+    synchronized int getDecoderCount() {
+        return mDecoderCount;
+    }
+
+    private synchronized void recycleIdleDecoders() {
+        while (!mIdleDecoders.isEmpty()) {
+            mIdleDecoders.pop().recycle();
+            mDecoderCount--;
+        }
+    }
+}
@@ -16,10 +16,15 @@
 package com.android.wallpaper.asset;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.drawable.ColorDrawable;
+import android.util.Log;
 import android.widget.ImageView;
 
+import androidx.annotation.Nullable;
+
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.load.Key;
 import com.bumptech.glide.load.resource.drawable.DrawableTransitionOptions;
@@ -32,6 +37,8 @@ import java.security.MessageDigest;
  * Image asset representing an APK resource.
  */
 public class ResourceAsset extends StreamableAsset {
+    private static final String TAG = "ResourceAsset";
+
     protected final Resources mRes;
     protected final int mResId;
     private final RequestOptions mRequestOptions;
@@ -106,6 +113,26 @@ public class ResourceAsset extends StreamableAsset {
         return mKey;
     }
 
+    /**
+     * Returns the key of the resource in the package as installed now: an update of the package
+     * can change the resource's content, or assign its ID to another resource.
+     */
+    @Nullable
+    @Override
+    public String getStableContentKey(Context context) {
+        String packageName = mRes.getResourcePackageName(mResId);
+        PackageInfo packageInfo;
+        try {
+            packageInfo = context.getPackageManager().getPackageInfo(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Unable to find package " + packageName + " of resource", e);
+            return null;
+        }
+        return "ResourceAsset{key=" + getKey()
+                + ",versionCode=" + packageInfo.getLongVersionCode()
+                + ",lastUpdateTime=" + packageInfo.lastUpdateTime + '}';
+    }
+
     /**
      * Returns the Resources instance for the resource represented by this asset.
      */
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
+
+/**
+ * Byte-bounded pool of mutable software bitmaps which asset decodes reuse through
+ * {@link BitmapFactory.Options#inBitmap} instead of allocating a new bitmap each time.
+ *
+ * <p>Backed by Glide's {@link LruBitmapPool}, which buckets bitmaps by byte size and config and
+ * evicts the least recently returned ones once the pool is full. Hardware bitmaps can't be reused
+ * and are never pooled.
+ *
+ * <p>Only return a bitmap with {@link #put} once nothing else references it, e.g. an intermediate
+ * result or the bitmap of a view which is being recycled; the pool hands it out again as is.
+ *
+ * <p>For now the pool is only fed by decodes themselves: the strips and buffers of rotated region
+ * decodes, the unrotated input of a copy-rotate, and results dropped because their decode was
+ * cancelled. Bitmaps evicted from the {@link DecodedBitmapCache} memory tier aren't pooled, as
+ * they're handed out without callers ever releasing them, and they're mostly hardware bitmaps
+ * anyway. Grid thumbnails are hardware bitmaps too, so recycled views don't return them either.
+ */
+public final class ReusableBitmapPool {
+    // Share of the heap that idle pooled bitmaps may use.
+    private static final int MAX_HEAP_DIVISOR = 16;
+
+    private static ReusableBitmapPool sInstance;
+
+    private final LruBitmapPool mPool;
+
+    /**
+     * Returns the process-wide pool, creating it on first use.
+     */
+    public static synchronized ReusableBitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ReusableBitmapPool(
+                    calculateMaxSize(Runtime.getRuntime().maxMemory()));
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    static long calculateMaxSize(long maxHeapBytes) {
+        return maxHeapBytes / MAX_HEAP_DIVISOR;
+    }
+
+    @VisibleForTesting
+    ReusableBitmapPool(long maxSizeBytes) {
+        mPool = new LruBitmapPool(maxSizeBytes);
+    }
+
+    /**
+     * Returns the size, in pixels, of one dimension of an image decoded with the given sample
+     * size, rounded up so that a pooled bitmap of that size is always large enough.
+     */
+    static int getSampledSize(int size, int sampleSize) {
+        int sample = Math.max(1, sampleSize);
+        return Math.max(1, (size + sample - 1) / sample);
+    }
+
+    /**
+     * Sets a pooled bitmap large enough for a width x height decode as the options'
+     * {@link BitmapFactory.Options#inBitmap}, unless the options ask for a hardware bitmap.
+     * The decode's output is then mutable and may be returned to the pool with {@link #put}.
+     */
+    void prepareForDecode(BitmapFactory.Options options, int width, int height) {
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        if (config == Bitmap.Config.HARDWARE) {
+            return;
+        }
+        options.inMutable = true;
+        options.inBitmap = mPool.getDirty(width, height, config);
+    }
+
+    /**
+     * Returns a width x height bitmap of the given config cleared to transparent, reusing a
+     * pooled one if possible.
+     */
+    Bitmap get(int width, int height, Bitmap.Config config) {
+        return mPool.get(width, height, config);
+    }
+
+    /**
+     * Hands a bitmap which is no longer used by anybody back to the pool. Bitmaps that can't be
+     * reused, e.g. immutable or hardware ones, are recycled instead.
+     */
+    public void put(@Nullable Bitmap bitmap) {
+        if (bitmap != null && !bitmap.isRecycled()) {
+            mPool.put(bitmap);
+        }
+    }
+
+    /**
+     * Returns the number of requests served with a pooled bitmap.
+     */
+    public long getHitCount() {
+        return mPool.getHitCount();
+    }
+
+    /**
+     * Returns the number of requests for which a new bitmap had to be allocated.
+     */
+    public long getMissCount() {
+        return mPool.getMissCount();
+    }
+
+    /**
+     * Returns the number of pooled bitmaps dropped to keep the pool within its size.
+     */
+    public long getEvictionCount() {
+        return mPool.getEvictionCount();
+    }
+
+    /**
+     * Returns the maximum number of bytes the pooled bitmaps may use.
+     */
+    public long getMaxSize() {
+        return mPool.getMaxSize();
+    }
+
+    /**
+     * Shrinks the pool according to a {@link android.content.ComponentCallbacks2} trim level.
+     */
+    void trimMemory(int level) {
+        mPool.trimMemory(level);
+    }
+
+    /**
+     * Drops every pooled bitmap.
+     */
+    void clearMemory() {
+        mPool.clearMemory();
+    }
+}
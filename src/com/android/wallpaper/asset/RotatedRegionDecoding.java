@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Decodes an image region and applies an EXIF rotation.
+ *
+ * <p>The region is normally decoded once and drawn rotated into the output bitmap, which keeps two
+ * output-sized bitmaps alive at once. When that would take too much of the heap, the region is
+ * instead decoded in horizontal strips into one reused strip bitmap, and each strip is drawn
+ * rotated straight into the output bitmap, so that the peak is the output bitmap plus a single
+ * strip. Strips are slow though: most formats are decoded from the top of the image down to each
+ * strip, so the decoding work grows with the square of the strip count. Bitmaps come from, and
+ * intermediate ones return to, the {@link ReusableBitmapPool}.
+ */
+final class RotatedRegionDecoding {
+    private static final String TAG = "RotatedRegionDecoding";
+
+    /** Height, in output pixels, of each decoded strip. */
+    @VisibleForTesting
+    static final int STRIP_HEIGHT = 256;
+    // Share of the heap an output bitmap may take before it's decoded in strips.
+    private static final int MEMORY_BOUND_HEAP_DIVISOR = 8;
+
+    /**
+     * Source of decoded regions, usually {@code BitmapRegionDecoder#decodeRegion}.
+     */
+    interface RegionSource {
+        @Nullable
+        Bitmap decodeRegion(Rect rect, BitmapFactory.Options options);
+    }
+
+    private RotatedRegionDecoding() {
+        // Do not instantiate.
+    }
+
+    /**
+     * Decodes the given region of the unrotated source image at the given sample size, rotated
+     * clockwise by the given number of degrees.
+     *
+     * @param cropRect   Region to decode, in the coordinates of the unrotated source image.
+     * @param sampleSize Subsampling factor, as for {@link BitmapFactory.Options#inSampleSize}.
+     * @param degrees    One of 0, 90, 180 or 270.
+     * @return The rotated region, or null if part of it couldn't be decoded.
+     */
+    @Nullable
+    static Bitmap decodeRotatedRegion(RegionSource source, Rect cropRect, int sampleSize,
+            int degrees) {
+        return shouldDecodeInStrips(cropRect, sampleSize, Runtime.getRuntime().maxMemory())
+                ? decodeInStrips(source, cropRect, sampleSize, degrees)
+                : decodeOnceAndRotate(source, cropRect, sampleSize, degrees);
+    }
+
+    /**
+     * Returns whether the given region is worth decoding in strips, which is only the case for a
+     * sampled decode whose output bitmap is too large to be held twice. A full resolution decode
+     * is always done in a single pass, as its strips would be the most numerous.
+     */
+    @VisibleForTesting
+    static boolean shouldDecodeInStrips(Rect cropRect, int sampleSize, long maxHeapBytes) {
+        if (sampleSize <= 1) {
+            return false;
+        }
+        long outputBytes = (long) Math.max(1, cropRect.width() / sampleSize)
+                * Math.max(1, cropRect.height() / sampleSize) * 4;
+        return outputBytes > maxHeapBytes / MEMORY_BOUND_HEAP_DIVISOR;
+    }
+
+    /**
+     * Decodes the given region in a single pass, then draws it rotated into the output bitmap.
+     */
+    @VisibleForTesting
+    @Nullable
+    static Bitmap decodeOnceAndRotate(RegionSource source, Rect cropRect, int sampleSize,
+            int degrees) {
+        ReusableBitmapPool pool = ReusableBitmapPool.getInstance();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        pool.prepareForDecode(options,
+                ReusableBitmapPool.getSampledSize(cropRect.width(), sampleSize),
+                ReusableBitmapPool.getSampledSize(cropRect.height(), sampleSize));
+        Bitmap unrotated = decodeReusing(source, cropRect, options);
+        if (unrotated != options.inBitmap) {
+            pool.put(options.inBitmap);
+        }
+        if (unrotated == null) {
+            return null;
+        }
+
+        int width = unrotated.getWidth();
+        int height = unrotated.getHeight();
+        boolean swapsDimensions = degrees == 90 || degrees == 270;
+        Bitmap result = pool.get(swapsDimensions ? height : width,
+                swapsDimensions ? width : height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(result);
+        canvas.concat(getRotationMatrix(degrees, width, height));
+        canvas.drawBitmap(unrotated, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG));
+        pool.put(unrotated);
+        return result;
+    }
+
+    /**
+     * Decodes the given region in strips, each drawn rotated into the output bitmap as soon as
+     * it's decoded.
+     */
+    @VisibleForTesting
+    @Nullable
+    static Bitmap decodeInStrips(RegionSource source, Rect cropRect, int sampleSize,
+            int degrees) {
+        // Same rounding as the sampled decoders.
+        int width = Math.max(1, cropRect.width() / sampleSize);
+        int height = Math.max(1, cropRect.height() / sampleSize);
+        boolean swapsDimensions = degrees == 90 || degrees == 270;
+        ReusableBitmapPool pool = ReusableBitmapPool.getInstance();
+        Bitmap result = pool.get(swapsDimensions ? height : width,
+                swapsDimensions ? width : height, Bitmap.Config.ARGB_8888);
+
+        Canvas canvas = new Canvas(result);
+        canvas.concat(getRotationMatrix(degrees, width, height));
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        pool.prepareForDecode(options, width, Math.min(STRIP_HEIGHT, height));
+
+        Rect stripRect = new Rect();
+        Rect stripSrc = new Rect();
+        Rect stripDst = new Rect();
+        int stripSourceHeight = STRIP_HEIGHT * sampleSize;
+        int outputTop = 0;
+        for (int top = cropRect.top; top < cropRect.bottom && outputTop < height;
+                top += stripSourceHeight) {
+            stripRect.set(cropRect.left, top, cropRect.right,
+                    Math.min(top + stripSourceHeight, cropRect.bottom));
+            int stripHeight = Math.min(Math.max(1, stripRect.height() / sampleSize),
+                    height - outputTop);
+
+            Bitmap strip = decodeReusing(source, stripRect, options);
+            if (strip == null) {
+                pool.put(options.inBitmap);
+                pool.put(result);
+                return null;
+            }
+            stripSrc.set(0, 0, Math.min(width, strip.getWidth()),
+                    Math.min(stripHeight, strip.getHeight()));
+            stripDst.set(0, outputTop, stripSrc.right, outputTop + stripSrc.bottom);
+            canvas.drawBitmap(strip, stripSrc, stripDst, paint);
+            if (strip != options.inBitmap) {
+                // The decoder couldn't reuse the strip bitmap; reuse this one from now on.
+                pool.put(options.inBitmap);
+                options.inBitmap = strip;
+            }
+            outputTop += stripHeight;
+        }
+        pool.put(options.inBitmap);
+        return result;
+    }
+
+    @Nullable
+    private static Bitmap decodeReusing(RegionSource source, Rect rect,
+            BitmapFactory.Options options) {
+        try {
+            return source.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap can't be reused for this decode; fall back to a new allocation.
+            Log.w(TAG, "Unable to reuse pooled bitmap", e);
+            ReusableBitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            return source.decodeRegion(rect, options);
+        }
+    }
+
+    /**
+     * Returns the matrix which rotates a width x height image clockwise by the given degrees and
+     * moves it back to the origin.
+     */
+    @VisibleForTesting
+    static Matrix getRotationMatrix(int degrees, int width, int height) {
+        Matrix matrix = new Matrix();
+        matrix.setRotate(degrees);
+        switch (degrees) {
+            case 90:
+                matrix.postTranslate(height, 0);
+                break;
+            case 180:
+                matrix.postTranslate(width, height);
+                break;
+            case 270:
+                matrix.postTranslate(0, width);
+                break;
+            default:
+                break;
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.Nullable;
+
+import com.android.wallpaper.asset.Asset.BitmapReceiver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent decodes with equal keys so that only the first one runs and every caller
+ * receives its result.
+ *
+ * <p>Each caller gets its own {@link DecodeHandle}. The shared decode is only cancelled once all
+ * callers waiting for it have cancelled.
+ *
+ * @param <K> Type of the keys identifying identical decodes.
+ */
+final class SingleFlight<K> {
+
+    /**
+     * Starts the shared decode for a key that has no decode in flight.
+     */
+    interface Decoder {
+        DecodeHandle decode(BitmapReceiver receiver);
+    }
+
+    private final Map<K, Flight> mFlights = new HashMap<>();
+    private final Counters mCounters = new Counters();
+
+    /**
+     * Delivers the result of the decode for the given key to the receiver, starting the decode
+     * with the given decoder only if no decode for an equal key is already in flight.
+     */
+    DecodeHandle join(K key, BitmapReceiver receiver, Decoder decoder) {
+        DecodeHandle handle = new DecodeHandle();
+        Waiter waiter = new Waiter(handle, receiver);
+        Flight flight;
+        boolean isLeader;
+        synchronized (mFlights) {
+            flight = mFlights.get(key);
+            isLeader = flight == null;
+            if (isLeader) {
+                flight = new Flight();
+                mFlights.put(key, flight);
+            }
+            flight.mWaiters.add(waiter);
+        }
+        Flight joinedFlight = flight;
+        handle.setOnCancelListener(() -> onWaiterCancelled(key, joinedFlight));
+
+        if (isLeader) {
+            mCounters.recordExecuted();
+            DecodeHandle decodeHandle = decoder.decode(
+                    bitmap -> onFlightCompleted(key, joinedFlight, bitmap));
+            joinedFlight.setDecodeHandle(decodeHandle);
+        } else {
+            mCounters.recordCoalesced();
+        }
+        return handle;
+    }
+
+    /**
+     * Returns the counters of executed and coalesced decodes.
+     */
+    Counters getCounters() {
+        return mCounters;
+    }
+
+    private void onWaiterCancelled(K key, Flight flight) {
+        synchronized (mFlights) {
+            for (Waiter waiter : flight.mWaiters) {
+                if (!waiter.mHandle.isCancelled()) {
+                    return;
+                }
+            }
+            // Nobody is interested in this result anymore; let the next request start afresh.
+            if (mFlights.get(key) == flight) {
+                mFlights.remove(key);
+            }
+        }
+        flight.cancel();
+    }
+
+    private void onFlightCompleted(K key, Flight flight, @Nullable Bitmap bitmap) {
+        List<Waiter> waiters;
+        synchronized (mFlights) {
+            if (mFlights.get(key) == flight) {
+                mFlights.remove(key);
+            }
+            waiters = new ArrayList<>(flight.mWaiters);
+        }
+        for (Waiter waiter : waiters) {
+            waiter.mHandle.wrap(waiter.mReceiver).onBitmapDecoded(bitmap);
+        }
+    }
+
+    /**
+     * Counts how many requests ran a decode and how many shared one that was already running.
+     */
+    static final class Counters {
+        private final AtomicLong mExecuted = new AtomicLong();
+        private final AtomicLong mCoalesced = new AtomicLong();
+
+        void recordExecuted() {
+            mExecuted.incrementAndGet();
+        }
+
+        void recordCoalesced() {
+            mCoalesced.incrementAndGet();
+        }
+
+        /** Returns the number of requests which ran their own decode. */
+        long getExecutedCount() {
+            return mExecuted.get();
+        }
+
+        /** Returns the number of requests which shared a decode already in flight. */
+        long getCoalescedCount() {
+            return mCoalesced.get();
+        }
+
+        @Override
+        public String toString() {
+            return "executed=" + getExecutedCount() + " coalesced=" + getCoalescedCount();
+        }
+    }
+
+    private static final class Waiter {
+        final DecodeHandle mHandle;
+        final BitmapReceiver mReceiver;
+
+        Waiter(DecodeHandle handle, BitmapReceiver receiver) {
+            mHandle = handle;
+            mReceiver = receiver;
+        }
+    }
+
+    private static final class Flight {
+        final List<Waiter> mWaiters = new ArrayList<>();
+        private DecodeHandle mDecodeHandle;
+        private boolean mCancelled;
+
+        synchronized void setDecodeHandle(DecodeHandle decodeHandle) {
+            mDecodeHandle = decodeHandle;
+            if (mCancelled) {
+                decodeHandle.cancel();
+            }
+        }
+
+        void cancel() {
+            DecodeHandle decodeHandle;
+            synchronized (this) {
+                mCancelled = true;
+                decodeHandle = mDecodeHandle;
+            }
+            if (decodeHandle != null) {
+                decodeHandle.cancel();
+            }
+        }
+    }
+}
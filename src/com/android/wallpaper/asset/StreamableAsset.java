@@ -30,21 +30,29 @@ import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Represents Asset types for which bytes can be read directly, allowing for flexible bitmap
  * decoding.
  */
 public abstract class StreamableAsset extends Asset {
-    private static final ExecutorService sExecutorService = Executors.newCachedThreadPool();
     private static final String TAG = "StreamableAsset";
+    private static final SingleFlight.Counters sDimensionsCounters = new SingleFlight.Counters();
+
+    private final Object mDimensionsLock = new Object();
+
+    // Lets tiles of the same image be decoded in parallel.
+    private final RegionDecoderPool mRegionDecoderPool =
+            new RegionDecoderPool(this::openBitmapRegionDecoder);
 
-    private BitmapRegionDecoder mBitmapRegionDecoder;
     private Point mDimensions;
+    private FutureTask<Point> mDimensionsTask;
 
     /**
      * Scales and returns a new Rect from the given Rect by the given scaling factor.
@@ -79,7 +87,25 @@ public abstract class StreamableAsset extends Asset {
     @Override
     public void decodeBitmap(int targetWidth, int targetHeight, boolean useHardwareBitmapIfPossible,
                              BitmapReceiver receiver) {
-        sExecutorService.execute(() -> {
+        runDecodeBitmapTask(targetWidth, targetHeight, useHardwareBitmapIfPossible,
+                new DecodeHandle(), receiver);
+    }
+
+    @Override
+    public DecodeHandle decodeBitmapCancellable(int targetWidth, int targetHeight,
+            boolean hardwareBitmapAllowed, BitmapReceiver receiver) {
+        DecodeHandle handle = new DecodeHandle();
+        runDecodeBitmapTask(targetWidth, targetHeight, hardwareBitmapAllowed, handle,
+                handle.wrap(receiver));
+        return handle;
+    }
+
+    private void runDecodeBitmapTask(int targetWidth, int targetHeight,
+            boolean useHardwareBitmapIfPossible, DecodeHandle handle, BitmapReceiver receiver) {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_THUMBNAIL, () -> {
+            if (handle.isCancelled()) {
+                return;
+            }
             int newTargetWidth = targetWidth;
             int newTargetHeight = targetHeight;
             int exifOrientation = getExifOrientation();
@@ -93,30 +119,26 @@ public abstract class StreamableAsset extends Asset {
 
             BitmapFactory.Options options = new BitmapFactory.Options();
 
-            Point rawDimensions = calculateRawDimensions();
+            Point sourceDimensions = calculateSourceDimensions(exifOrientation);
             // Raw dimensions may be null if there was an error opening the underlying input stream.
-            if (rawDimensions == null) {
+            if (sourceDimensions == null) {
                 decodeBitmapCompleted(receiver, null);
                 return;
             }
             options.inSampleSize = BitmapUtils.calculateInSampleSize(
-                    rawDimensions.x, rawDimensions.y, newTargetWidth, newTargetHeight);
+                    sourceDimensions.x, sourceDimensions.y, newTargetWidth, newTargetHeight);
             if (useHardwareBitmapIfPossible) {
                 options.inPreferredConfig = Config.HARDWARE;
             }
 
-            InputStream inputStream = openInputStream();
-            Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
-            closeInputStream(
-                    inputStream, "Error closing the input stream used to decode the full bitmap");
-
-            // Rotate output bitmap if necessary because of EXIF orientation tag.
-            int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
-            if (matrixRotation > 0) {
-                Matrix rotateMatrix = new Matrix();
-                rotateMatrix.setRotate(matrixRotation);
-                bitmap = Bitmap.createBitmap(
-                        bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), rotateMatrix, false);
+            if (handle.isCancelled()) {
+                return;
+            }
+            Bitmap bitmap = decodeFullBitmap(sourceDimensions, options, exifOrientation, handle);
+            if (handle.isCancelled() && bitmap != null) {
+                // Nobody is waiting for it anymore.
+                ReusableBitmapPool.getInstance().put(bitmap);
+                return;
             }
             decodeBitmapCompleted(receiver, bitmap);
         });
@@ -124,22 +146,30 @@ public abstract class StreamableAsset extends Asset {
 
     @Override
     public void decodeBitmap(BitmapReceiver receiver) {
-        sExecutorService.execute(() -> {
+        runDecodeFullBitmapTask(new DecodeHandle(), receiver);
+    }
+
+    @Override
+    public DecodeHandle decodeBitmapCancellable(BitmapReceiver receiver) {
+        DecodeHandle handle = new DecodeHandle();
+        runDecodeFullBitmapTask(handle, handle.wrap(receiver));
+        return handle;
+    }
+
+    private void runDecodeFullBitmapTask(DecodeHandle handle, BitmapReceiver receiver) {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
+            if (handle.isCancelled()) {
+                return;
+            }
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inPreferredConfig = Config.HARDWARE;
-            InputStream inputStream = openInputStream();
-            Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
-            closeInputStream(inputStream,
-                    "Error closing the input stream used to decode the full bitmap");
-
-            // Rotate output bitmap if necessary because of EXIF orientation tag.
             int exifOrientation = getExifOrientation();
-            int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
-            if (matrixRotation > 0) {
-                Matrix rotateMatrix = new Matrix();
-                rotateMatrix.setRotate(matrixRotation);
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(),
-                        rotateMatrix, false);
+            Bitmap bitmap = decodeFullBitmap(calculateSourceDimensions(exifOrientation), options,
+                    exifOrientation, handle);
+            if (handle.isCancelled() && bitmap != null) {
+                // Nobody is waiting for it anymore.
+                ReusableBitmapPool.getInstance().put(bitmap);
+                return;
             }
             decodeBitmapCompleted(receiver, bitmap);
         });
@@ -147,7 +177,7 @@ public abstract class StreamableAsset extends Asset {
 
     @Override
     public void decodeRawDimensions(Activity unused, DimensionsReceiver receiver) {
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
             Point result = calculateRawDimensions();
             new Handler(Looper.getMainLooper()).post(() -> {
                 receiver.onDimensionsDecoded(result);
@@ -161,6 +191,22 @@ public abstract class StreamableAsset extends Asset {
         runDecodeBitmapRegionTask(rect, targetWidth, targetHeight, shouldAdjustForRtl, receiver);
     }
 
+    @Override
+    public void decodeBitmapRegionToSize(Rect rect, int targetWidth, int targetHeight,
+            boolean shouldAdjustForRtl, BitmapReceiver receiver) {
+        runDecodeBitmapRegionTask(rect, targetWidth, targetHeight, shouldAdjustForRtl,
+                new DecodeHandle(), /* scaleToTargetSize= */ true, receiver);
+    }
+
+    @Override
+    public DecodeHandle decodeBitmapRegionCancellable(Rect rect, int targetWidth,
+            int targetHeight, boolean shouldAdjustForRtl, BitmapReceiver receiver) {
+        DecodeHandle handle = new DecodeHandle();
+        runDecodeBitmapRegionTask(rect, targetWidth, targetHeight, shouldAdjustForRtl, handle,
+                /* scaleToTargetSize= */ false, handle.wrap(receiver));
+        return handle;
+    }
+
     @Override
     public boolean supportsTiling() {
         return true;
@@ -171,7 +217,7 @@ public abstract class StreamableAsset extends Asset {
      * asynchronously back to a {@link StreamReceiver}.
      */
     public void fetchInputStream(final StreamReceiver streamReceiver) {
-        sExecutorService.execute(() -> {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
             InputStream result = openInputStream();
             new Handler(Looper.getMainLooper()).post(() -> {
                 streamReceiver.onInputStreamOpened(result);
@@ -207,7 +253,22 @@ public abstract class StreamableAsset extends Asset {
      */
     public void runDecodeBitmapRegionTask(Rect rect, int targetWidth, int targetHeight,
             boolean isRtl, BitmapReceiver receiver) {
-        sExecutorService.execute(() -> {
+        runDecodeBitmapRegionTask(rect, targetWidth, targetHeight, isRtl, new DecodeHandle(),
+                /* scaleToTargetSize= */ false, receiver);
+    }
+
+    /**
+     * Decodes the region like {@link #runDecodeBitmapRegionTask(Rect, int, int, boolean,
+     * BitmapReceiver)} does and, if scaleToTargetSize is true, scales it to exactly the target size
+     * in the same task, so that the crop is ready without another trip through the main thread.
+     */
+    private void runDecodeBitmapRegionTask(Rect rect, int targetWidth, int targetHeight,
+            boolean isRtl, DecodeHandle handle, boolean scaleToTargetSize,
+            BitmapReceiver receiver) {
+        DecodeScheduler.getInstance().execute(Priority.VISIBLE_PREVIEW, () -> {
+            if (handle.isCancelled()) {
+                return;
+            }
             int newTargetWidth = targetWidth;
             int newTargetHeight = targetHeight;
             Rect cropRect = rect;
@@ -235,24 +296,48 @@ public abstract class StreamableAsset extends Asset {
             options.inSampleSize = BitmapUtils.calculateInSampleSize(
                     cropRect.width(), cropRect.height(), newTargetWidth, newTargetHeight);
 
-            if (mBitmapRegionDecoder == null) {
-                mBitmapRegionDecoder = openBitmapRegionDecoder();
+            if (handle.isCancelled()) {
+                return;
+            }
+            BitmapRegionDecoder decoder;
+            try {
+                decoder = mRegionDecoderPool.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                decodeBitmapCompleted(receiver, null);
+                return;
             }
 
             // Bitmap region decoder may have failed to open if there was a problem with the
             // underlying InputStream.
-            if (mBitmapRegionDecoder != null) {
+            if (decoder != null) {
                 try {
-                    Bitmap bitmap = mBitmapRegionDecoder.decodeRegion(cropRect, options);
-
-                    // Rotate output bitmap if necessary because of EXIF orientation.
-                    int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
-                    if (matrixRotation > 0) {
-                        Matrix rotateMatrix = new Matrix();
-                        rotateMatrix.setRotate(matrixRotation);
-                        bitmap = Bitmap.createBitmap(
-                                bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), rotateMatrix,
-                                false);
+                    Bitmap bitmap;
+                    try {
+                        if (handle.isCancelled()) {
+                            return;
+                        }
+                        // Rotate while decoding if necessary because of EXIF orientation.
+                        int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
+                        bitmap = matrixRotation > 0
+                                ? RotatedRegionDecoding.decodeRotatedRegion(decoder::decodeRegion,
+                                        cropRect, options.inSampleSize, matrixRotation)
+                                : decoder.decodeRegion(cropRect, options);
+                    } finally {
+                        mRegionDecoderPool.release(decoder);
+                    }
+                    if (handle.isCancelled() && bitmap != null) {
+                        // Nobody is waiting for it anymore.
+                        ReusableBitmapPool.getInstance().put(bitmap);
+                        return;
+                    }
+                    if (scaleToTargetSize && bitmap != null
+                            && !hasSize(bitmap, targetWidth, targetHeight)) {
+                        // Only the part of the scale that the power of two sample size couldn't
+                        // do is left.
+                        Bitmap region = bitmap;
+                        bitmap = scaleToSize(region, targetWidth, targetHeight);
+                        ReusableBitmapPool.getInstance().put(region);
                     }
                     decodeBitmapCompleted(receiver, bitmap);
                     return;
@@ -274,10 +359,67 @@ public abstract class StreamableAsset extends Asset {
      */
     @Nullable
     public Point calculateRawDimensions() {
-        if (mDimensions != null) {
-            return mDimensions;
+        FutureTask<Point> task;
+        boolean isLeader = false;
+        synchronized (mDimensionsLock) {
+            if (mDimensions != null) {
+                return mDimensions;
+            }
+            // Concurrent callers share a single probe of the stream.
+            if (mDimensionsTask == null) {
+                mDimensionsTask = new FutureTask<>(this::probeRawDimensions);
+                isLeader = true;
+            }
+            task = mDimensionsTask;
+        }
+
+        Point result = null;
+        if (isLeader) {
+            sDimensionsCounters.recordExecuted();
+            task.run();
+        } else {
+            sDimensionsCounters.recordCoalesced();
+        }
+        try {
+            result = task.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to calculate the image's raw dimensions", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (mDimensionsLock) {
+            if (result != null) {
+                mDimensions = result;
+            }
+            // Let a later call retry if this probe failed.
+            if (mDimensionsTask == task) {
+                mDimensionsTask = null;
+            }
         }
+        return result;
+    }
+
+    /**
+     * Returns the number of raw dimension probes which read the underlying stream.
+     */
+    public static long getExecutedDimensionsProbeCount() {
+        return sDimensionsCounters.getExecutedCount();
+    }
+
+    /**
+     * Returns the number of raw dimension requests which shared a probe already in flight.
+     */
+    public static long getCoalescedDimensionsProbeCount() {
+        return sDimensionsCounters.getCoalescedCount();
+    }
 
+    /**
+     * Reads the raw dimensions of the asset, adjusted for its EXIF orientation, from its stream.
+     * Concurrent calls of {@link #calculateRawDimensions} share a single call of this method.
+     */
+    @Nullable
+    protected Point probeRawDimensions() {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         InputStream inputStream = openInputStream();
@@ -293,12 +435,143 @@ public abstract class StreamableAsset extends Asset {
         // Swap height and width if image is rotated 90 or 270 degrees.
         if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
                 || exifOrientation == ExifInterface.ORIENTATION_ROTATE_270) {
-            mDimensions = new Point(options.outHeight, options.outWidth);
+            return new Point(options.outHeight, options.outWidth);
         } else {
-            mDimensions = new Point(options.outWidth, options.outHeight);
+            return new Point(options.outWidth, options.outHeight);
+        }
+    }
+
+    /**
+     * Returns the dimensions of the encoded image, before any EXIF rotation is applied, or null if
+     * they couldn't be read.
+     */
+    @Nullable
+    private Point calculateSourceDimensions(int exifOrientation) {
+        Point rawDimensions = calculateRawDimensions();
+        if (rawDimensions != null && (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
+                || exifOrientation == ExifInterface.ORIENTATION_ROTATE_270)) {
+            return new Point(rawDimensions.y, rawDimensions.x);
         }
+        return rawDimensions;
+    }
 
-        return mDimensions;
+    /**
+     * Decodes the whole image with the given options, rotated according to its EXIF orientation.
+     *
+     * <p>Rotated images are decoded through a region decoder with {@link RotatedRegionDecoding},
+     * which only decodes in strips when the unrotated bitmap can't be afforded next to the rotated
+     * one; if that isn't possible, the image is decoded and then copied into a rotated bitmap.
+     * Either way, the result is a hardware bitmap if that's the config the options prefer.
+     */
+    @Nullable
+    private Bitmap decodeFullBitmap(@Nullable Point sourceDimensions,
+            BitmapFactory.Options options, int exifOrientation, DecodeHandle handle) {
+        int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
+        if (matrixRotation > 0 && sourceDimensions != null) {
+            Bitmap bitmap = decodeRotatedRegion(
+                    new Rect(0, 0, sourceDimensions.x, sourceDimensions.y),
+                    Math.max(1, options.inSampleSize), matrixRotation, handle);
+            if (handle.isCancelled()) {
+                return bitmap;
+            }
+            if (bitmap != null) {
+                return toPreferredConfig(bitmap, options.inPreferredConfig);
+            }
+        }
+
+        ReusableBitmapPool pool = ReusableBitmapPool.getInstance();
+        if (sourceDimensions != null) {
+            pool.prepareForDecode(options,
+                    ReusableBitmapPool.getSampledSize(sourceDimensions.x, options.inSampleSize),
+                    ReusableBitmapPool.getSampledSize(sourceDimensions.y, options.inSampleSize));
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = decodeStream(options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit this image after all; decode into a new one.
+            Log.w(TAG, "Unable to decode into pooled bitmap", e);
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = decodeStream(options);
+        }
+        if (bitmap == null) {
+            pool.put(options.inBitmap);
+        }
+
+        // Rotate output bitmap if necessary because of EXIF orientation tag.
+        if (matrixRotation > 0 && bitmap != null) {
+            Matrix rotateMatrix = new Matrix();
+            rotateMatrix.setRotate(matrixRotation);
+            Bitmap unrotated = bitmap;
+            bitmap = Bitmap.createBitmap(unrotated, 0, 0, unrotated.getWidth(),
+                    unrotated.getHeight(), rotateMatrix, false);
+            pool.put(unrotated);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the given software bitmap assembled from decoded strips as a hardware bitmap if
+     * that's the preferred config, handing the software one back to the pool.
+     */
+    private static Bitmap toPreferredConfig(Bitmap bitmap, @Nullable Config preferredConfig) {
+        if (preferredConfig != Config.HARDWARE) {
+            return bitmap;
+        }
+        Bitmap hardwareBitmap = bitmap.copy(Config.HARDWARE, /* isMutable= */ false);
+        if (hardwareBitmap == null) {
+            // Keep the software bitmap if it can't be uploaded, as a decode would.
+            return bitmap;
+        }
+        ReusableBitmapPool.getInstance().put(bitmap);
+        return hardwareBitmap;
+    }
+
+    @Nullable
+    private Bitmap decodeStream(BitmapFactory.Options options) {
+        InputStream inputStream = openInputStream();
+        // Input stream may be null if there was an error opening it.
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        } finally {
+            closeInputStream(inputStream,
+                    "Error closing the input stream used to decode the full bitmap");
+        }
+    }
+
+    /**
+     * Decodes the given region of the unrotated image, rotated by the given degrees, with a pooled
+     * region decoder. Returns null if no region decoder could be opened or decoding failed.
+     */
+    @Nullable
+    private Bitmap decodeRotatedRegion(Rect sourceRect, int sampleSize, int degrees,
+            DecodeHandle handle) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = mRegionDecoderPool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            if (handle.isCancelled()) {
+                return null;
+            }
+            return RotatedRegionDecoding.decodeRotatedRegion(decoder::decodeRegion, sourceRect,
+                    sampleSize, degrees);
+        } catch (OutOfMemoryError | IllegalArgumentException e) {
+            Log.w(TAG, "Unable to decode rotated bitmap through region decoder", e);
+            return null;
+        } finally {
+            mRegionDecoderPool.release(decoder);
+        }
     }
 
     /**
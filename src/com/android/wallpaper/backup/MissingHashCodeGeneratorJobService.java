@@ -23,37 +23,50 @@ import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
+import android.content.SharedPreferences;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
-import com.android.wallpaper.asset.BitmapUtils;
 import com.android.wallpaper.module.Injector;
 import com.android.wallpaper.module.InjectorProvider;
 import com.android.wallpaper.module.JobSchedulerJobIds;
+import com.android.wallpaper.module.WallpaperFingerprinter;
+import com.android.wallpaper.module.WallpaperIdCache;
 import com.android.wallpaper.module.WallpaperPreferences;
 import com.android.wallpaper.util.DiskBasedLogger;
 
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * {@link android.app.job.JobScheduler} job for generating missing hash codes for static wallpapers
  * on N+ devices.
+ *
+ * <p>Wallpaper files are fingerprinted by streaming them rather than decoding them, and the job is
+ * resumable: a hash code is stored as soon as it's generated, so a stopped job is rescheduled and
+ * only generates the ones still missing. The bytes read and time spent are added up across runs
+ * and logged once all hash codes are generated, to measure what the job costs after an update.
  */
 @SuppressLint("ServiceCast")
 public class MissingHashCodeGeneratorJobService extends JobService {
 
     private static final String TAG = "MissingHashCodeGenerato"; // max 23 characters
 
-    private Thread mWorkerThread;
+    @VisibleForTesting
+    static final String PROGRESS_PREFS_NAME = "missing_hash_code_generator";
+    @VisibleForTesting
+    static final String KEY_RUN_COUNT = "run_count";
+    @VisibleForTesting
+    static final String KEY_BYTES_READ = "bytes_read";
+    private static final String KEY_ELAPSED_MILLIS = "elapsed_millis";
+
+    @Nullable
+    private volatile Thread mWorkerThread;
+    @Nullable
+    private volatile WallpaperFingerprinter.ReadMonitor mReadMonitor;
 
     public static void schedule(Context context) {
         JobScheduler scheduler = context.getSystemService(JobScheduler.class);
@@ -74,6 +87,9 @@ public class MissingHashCodeGeneratorJobService extends JobService {
         // WallpaperManager#getInstance so it can be mocked out in test.
         final WallpaperManager wallpaperManager = (WallpaperManager) context.getSystemService(
                 Context.WALLPAPER_SERVICE);
+        final WallpaperFingerprinter.ReadMonitor readMonitor =
+                new WallpaperFingerprinter.ReadMonitor();
+        mReadMonitor = readMonitor;
 
         // Generate missing hash codes on a plain worker thread because we need to do some
         // long-running disk I/O and can call #jobFinished from a background thread.
@@ -82,81 +98,24 @@ public class MissingHashCodeGeneratorJobService extends JobService {
             public void run() {
                 Injector injector = InjectorProvider.getInjector();
                 WallpaperPreferences wallpaperPreferences = injector.getPreferences(context);
-
-                boolean isLiveWallpaperSet = wallpaperManager.getWallpaperInfo() != null;
-
-                // Generate and set a home wallpaper hash code if there's no live wallpaper set
-                // and no hash code stored already for the home wallpaper.
-                if (!isLiveWallpaperSet && wallpaperPreferences.getHomeWallpaperHashCode() == 0) {
-                    wallpaperManager.forgetLoadedWallpaper();
-
-                    Drawable wallpaperDrawable = wallpaperManager.getDrawable();
-                    // No work to do if the drawable returned is null due to an underlying
-                    // platform issue -- being extra defensive with this check due to instability
-                    // and variability of underlying platform.
-                    if (wallpaperDrawable == null) {
-                        DiskBasedLogger.e(
-                                TAG,
-                                "WallpaperManager#getDrawable returned null and there's no live "
-                                        + "wallpaper set",
-                                context
-                        );
-                        jobFinished(jobParameters, false /* needsReschedule */);
-                        return;
-                    }
-
-                    Bitmap bitmap = ((BitmapDrawable) wallpaperDrawable).getBitmap();
-                    long homeBitmapHash = BitmapUtils.generateHashCode(bitmap);
-
-                    wallpaperPreferences.setHomeWallpaperHashCode(homeBitmapHash);
-                }
-
-                // Generate and set a lock wallpaper hash code if there's none saved.
-                if (wallpaperPreferences.getLockWallpaperHashCode() == 0) {
-                    ParcelFileDescriptor parcelFd = wallpaperManager.getWallpaperFile(
-                            WallpaperManager.FLAG_LOCK);
-                    boolean isLockWallpaperSet = parcelFd != null;
-
-                    // Copy the home wallpaper's hash code to lock if there's no distinct lock
-                    // wallpaper set.
-                    if (!isLockWallpaperSet) {
-                        wallpaperPreferences.setLockWallpaperHashCode(
-                                wallpaperPreferences.getHomeWallpaperHashCode());
-                        mWorkerThread = null;
-                        jobFinished(jobParameters, false /* needsReschedule */);
-                        return;
-                    }
-
-                    // Otherwise, generate and set the distinct lock wallpaper image's hash code.
-                    Bitmap lockBitmap = null;
-                    InputStream fileStream = null;
-                    try {
-                        fileStream = new FileInputStream(parcelFd.getFileDescriptor());
-                        lockBitmap = BitmapFactory.decodeStream(fileStream);
-                        parcelFd.close();
-                    } catch (IOException e) {
-                        Log.e(TAG, "IO exception when closing the file descriptor.", e);
-                    } finally {
-                        if (fileStream != null) {
-                            try {
-                                fileStream.close();
-                            } catch (IOException e) {
-                                Log.e(TAG,
-                                        "IO exception when closing input stream for lock screen "
-                                                + "wallpaper.",
-                                        e);
-                            }
-                        }
-                    }
-
-                    if (lockBitmap != null) {
-                        wallpaperPreferences.setLockWallpaperHashCode(
-                                BitmapUtils.generateHashCode(lockBitmap));
-                    }
-                    mWorkerThread = null;
-
-                    jobFinished(jobParameters, false /* needsReschedule */);
+                WallpaperFingerprinter fingerprinter = new WallpaperFingerprinter(
+                        wallpaperManager, WallpaperIdCache.getInstance(context), readMonitor);
+
+                long startTime = SystemClock.elapsedRealtime();
+                generateMissingHashCodes(context, wallpaperManager, wallpaperPreferences,
+                        fingerprinter, readMonitor);
+                SharedPreferences progress = recordProgress(context, readMonitor.getBytesRead(),
+                        SystemClock.elapsedRealtime() - startTime);
+
+                // A stopped job is rescheduled by #onStopJob, and must not be finished.
+                if (readMonitor.isStopped()) {
+                    Log.i(TAG, "Stopped before generating all hash codes, will resume after "
+                            + describeProgress(progress));
+                    return;
                 }
+                Log.i(TAG, "Generated missing hash codes after " + describeProgress(progress));
+                progress.edit().clear().apply();
+                jobFinished(jobParameters, false /* needsReschedule */);
             }
         });
 
@@ -168,11 +127,97 @@ public class MissingHashCodeGeneratorJobService extends JobService {
 
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        // This job has no special execution parameters (i.e., network capability, device idle or
-        // charging), so Android should never call this method to stop the execution of this job
-        // early. Return "false" to indicate that this job should not be rescheduled when it's
-        // stopped because we have to provide an implementation of this method.
-        return false;
+        WallpaperFingerprinter.ReadMonitor readMonitor = mReadMonitor;
+        if (readMonitor != null) {
+            readMonitor.stop();
+        }
+        // Hash codes generated so far are stored already, so reschedule the job to generate the
+        // rest rather than starting over from the first one.
+        return true;
+    }
+
+    /**
+     * Generates and stores the hash codes missing from the given preferences, each one as soon as
+     * it's generated, until they're all stored or the given monitor is stopped.
+     */
+    private static void generateMissingHashCodes(Context context,
+            WallpaperManager wallpaperManager, WallpaperPreferences wallpaperPreferences,
+            WallpaperFingerprinter fingerprinter, WallpaperFingerprinter.ReadMonitor readMonitor) {
+        boolean isLiveWallpaperSet = wallpaperManager.getWallpaperInfo() != null;
+
+        // Generate and set a home wallpaper hash code if there's no live wallpaper set and no hash
+        // code stored already for the home wallpaper.
+        if (!isLiveWallpaperSet && wallpaperPreferences.getHomeWallpaperHashCode() == 0) {
+            wallpaperManager.forgetLoadedWallpaper();
+
+            // Fingerprints the wallpaper file without decoding it, unless it has none.
+            long homeHashCode = fingerprinter.getHashCode(WallpaperManager.FLAG_SYSTEM);
+            if (homeHashCode == WallpaperFingerprinter.UNKNOWN_HASH_CODE) {
+                // No work to do if there's neither a file nor a drawable due to an underlying
+                // platform issue -- being extra defensive with this check due to instability and
+                // variability of underlying platform.
+                if (!readMonitor.isStopped()) {
+                    DiskBasedLogger.e(
+                            TAG,
+                            "Unable to read the home wallpaper and there's no live wallpaper set",
+                            context
+                    );
+                }
+                return;
+            }
+
+            wallpaperPreferences.setHomeWallpaperHashCode(homeHashCode);
+        }
+
+        // Generate and set a lock wallpaper hash code if there's none saved.
+        if (wallpaperPreferences.getLockWallpaperHashCode() == 0) {
+            ParcelFileDescriptor parcelFd = wallpaperManager.getWallpaperFile(
+                    WallpaperManager.FLAG_LOCK);
+
+            // Copy the home wallpaper's hash code to lock if there's no distinct lock wallpaper
+            // set.
+            if (parcelFd == null) {
+                wallpaperPreferences.setLockWallpaperHashCode(
+                        wallpaperPreferences.getHomeWallpaperHashCode());
+                return;
+            }
+
+            try {
+                parcelFd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IO exception when closing the file descriptor.", e);
+            }
+
+            // Otherwise, fingerprint and set the distinct lock wallpaper image's file.
+            long lockHashCode = fingerprinter.getFingerprint(WallpaperManager.FLAG_LOCK);
+
+            if (lockHashCode != WallpaperFingerprinter.UNKNOWN_HASH_CODE) {
+                wallpaperPreferences.setLockWallpaperHashCode(lockHashCode);
+            }
+        }
+    }
+
+    /**
+     * Adds a run of the job to the totals of the runs since the last time it finished, and returns
+     * the preferences the totals are kept in.
+     */
+    private static SharedPreferences recordProgress(Context context, long bytesRead,
+            long elapsedMillis) {
+        SharedPreferences progress = context.getSharedPreferences(PROGRESS_PREFS_NAME,
+                Context.MODE_PRIVATE);
+        progress.edit()
+                .putInt(KEY_RUN_COUNT, progress.getInt(KEY_RUN_COUNT, 0) + 1)
+                .putLong(KEY_BYTES_READ, progress.getLong(KEY_BYTES_READ, 0) + bytesRead)
+                .putLong(KEY_ELAPSED_MILLIS,
+                        progress.getLong(KEY_ELAPSED_MILLIS, 0) + elapsedMillis)
+                .apply();
+        return progress;
+    }
+
+    private static String describeProgress(SharedPreferences progress) {
+        return progress.getInt(KEY_RUN_COUNT, 0) + " run(s): read "
+                + progress.getLong(KEY_BYTES_READ, 0) + " bytes in "
+                + progress.getLong(KEY_ELAPSED_MILLIS, 0) + " ms";
     }
 
     @Nullable
@@ -18,17 +18,20 @@ package com.android.wallpaper.model;
 import static android.app.WallpaperManager.SetWallpaperFlags;
 
 import android.app.Activity;
+import android.app.WallpaperColors;
 import android.app.WallpaperManager;
 import android.content.Context;
 import android.os.Parcel;
 
 import androidx.annotation.DrawableRes;
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 
 import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.asset.BuiltInWallpaperAsset;
 import com.android.wallpaper.asset.CurrentWallpaperAssetVN;
 import com.android.wallpaper.module.InjectorProvider;
+import com.android.wallpaper.module.WallpaperIdCache;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -103,6 +106,16 @@ public class CurrentWallpaperInfo extends WallpaperInfo {
         return mAttributions;
     }
 
+    @Override
+    @Nullable
+    protected WallpaperColors getCachedColors(Context context) {
+        // The colors the persister extracted when it set the wallpaper, if it's still the same.
+        int wallpaperId = WallpaperManager.getInstance(context).getWallpaperId(
+                mWallpaperManagerFlag);
+        return WallpaperIdCache.getInstance(context).getColors(mWallpaperManagerFlag,
+                wallpaperId);
+    }
+
     @Override
     public Asset getAsset(Context context) {
         if (mAsset == null) {
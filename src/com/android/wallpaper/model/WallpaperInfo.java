@@ -28,17 +28,18 @@ import android.os.Parcelable;
 
 import androidx.annotation.DrawableRes;
 import androidx.annotation.IntDef;
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 
 import com.android.wallpaper.R;
 import com.android.wallpaper.asset.Asset;
+import com.android.wallpaper.asset.DecodeScheduler;
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
 
 import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 /**
@@ -46,7 +47,6 @@ import java.util.concurrent.Future;
  */
 public abstract class WallpaperInfo implements Parcelable {
 
-    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
     private ColorInfo mColorInfo = new ColorInfo();
 
     private PriorityQueue<String> mEffectNames = new PriorityQueue<>();
@@ -240,13 +240,19 @@ public abstract class WallpaperInfo implements Parcelable {
             return CompletableFuture.completedFuture(mColorInfo);
         }
         final Context appContext = context.getApplicationContext();
-        return sExecutor.submit(() -> {
+        return DecodeScheduler.getInstance().submit(Priority.COLOR_EXTRACTION, () -> {
             synchronized (WallpaperInfo.this) {
                 if (mColorInfo.getWallpaperColors() != null
                         && mColorInfo.getPlaceholderColor() != Color.TRANSPARENT) {
                     return mColorInfo;
                 }
 
+                WallpaperColors cachedColors = getCachedColors(appContext);
+                if (cachedColors != null) {
+                    mColorInfo = new ColorInfo(cachedColors);
+                    return mColorInfo;
+                }
+
                 Asset thumbAsset = getThumbAsset(appContext);
                 Bitmap lowResBitmap = thumbAsset.getLowResBitmap(appContext);
                 if (lowResBitmap == null) {
@@ -260,6 +266,16 @@ public abstract class WallpaperInfo implements Parcelable {
         });
     }
 
+    /**
+     * Returns colors of this wallpaper known without decoding it, if any, which
+     * {@link #computeColorInfo} then uses instead of extracting them from its thumbnail. Called on
+     * a background thread.
+     */
+    @Nullable
+    protected WallpaperColors getCachedColors(Context context) {
+        return null;
+    }
+
     /**
      * Remove the effect name from this wallpaper, only use it for logging.
      */
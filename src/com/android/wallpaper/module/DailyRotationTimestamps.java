@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Timestamps of the most recent daily wallpaper rotations, kept in a fixed-capacity ring buffer
+ * which overwrites the oldest timestamp once full.
+ *
+ * <p>The buffer is stored in a small binary file: a header of three ints (format version, number
+ * of timestamps, index of the oldest one) followed by a long slot per timestamp. Adding a
+ * timestamp only rewrites its slot and the header.
+ */
+class DailyRotationTimestamps {
+    private static final String TAG = "DailyRotationTimestamps";
+
+    /** Name of the file in the no-backup files directory the timestamps are stored in. */
+    static final String FILE_NAME = "daily_rotation_timestamps";
+
+    /**
+     * Number of timestamps kept, well over the week of daily rotations the timestamps are queried
+     * for even if the wallpaper is rotated more than once a day.
+     */
+    @VisibleForTesting
+    static final int CAPACITY = 32;
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int FILE_SIZE = HEADER_SIZE + CAPACITY * Long.BYTES;
+
+    private final File mFile;
+    private final long[] mTimestamps = new long[CAPACITY];
+    private int mSize;
+    private int mStart;
+    private boolean mIsLoaded;
+
+    DailyRotationTimestamps(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Adds the given timestamp as the most recent one.
+     */
+    synchronized void add(long timestamp) {
+        load();
+        int index = append(timestamp);
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            FileChannel channel = file.getChannel();
+            if (channel.size() != FILE_SIZE) {
+                writeAll(channel);
+                return;
+            }
+            ByteBuffer slot = ByteBuffer.allocate(Long.BYTES).putLong(timestamp);
+            slot.flip();
+            channel.write(slot, HEADER_SIZE + (long) index * Long.BYTES);
+            // The header is written last so that an interrupted write doesn't count a slot which
+            // wasn't written.
+            channel.write(newHeader(), 0);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write a daily rotation timestamp", e);
+        }
+    }
+
+    /**
+     * Adds the given timestamps, oldest first, in a single write of the file.
+     */
+    synchronized void addAll(long[] timestamps) {
+        load();
+        for (long timestamp : timestamps) {
+            append(timestamp);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            writeAll(file.getChannel());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write daily rotation timestamps", e);
+        }
+    }
+
+    /**
+     * Returns the most recent timestamp, or -1 if there's none.
+     */
+    synchronized long getLast() {
+        load();
+        return mSize > 0 ? get(mSize - 1) : -1;
+    }
+
+    /**
+     * Returns the timestamps from the given start, inclusive, to the given end, exclusive, oldest
+     * first.
+     */
+    synchronized long[] getRange(long start, long end) {
+        load();
+        long[] range = new long[mSize];
+        int count = 0;
+        // Check every timestamp: they're only in order if the clock never went back.
+        for (int i = 0; i < mSize; i++) {
+            long timestamp = get(i);
+            if (timestamp >= start && timestamp < end) {
+                range[count++] = timestamp;
+            }
+        }
+        return Arrays.copyOf(range, count);
+    }
+
+    /**
+     * Removes all timestamps.
+     */
+    synchronized void clear() {
+        mSize = 0;
+        mStart = 0;
+        mIsLoaded = true;
+        if (mFile.exists() && !mFile.delete()) {
+            Log.e(TAG, "Unable to delete the daily rotation timestamps");
+        }
+    }
+
+    /**
+     * Returns the timestamp at the given position, counting from the oldest one.
+     */
+    private long get(int position) {
+        return mTimestamps[(mStart + position) % CAPACITY];
+    }
+
+    /**
+     * Adds the given timestamp to the buffer in memory and returns the index of its slot.
+     */
+    private int append(long timestamp) {
+        int index = (mStart + mSize) % CAPACITY;
+        mTimestamps[index] = timestamp;
+        if (mSize < CAPACITY) {
+            mSize++;
+        } else {
+            mStart = (mStart + 1) % CAPACITY;
+        }
+        return index;
+    }
+
+    private ByteBuffer newHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(FORMAT_VERSION)
+                .putInt(mSize)
+                .putInt(mStart);
+        header.flip();
+        return header;
+    }
+
+    private void writeAll(FileChannel channel) throws IOException {
+        ByteBuffer content = ByteBuffer.allocate(FILE_SIZE).put(newHeader());
+        content.asLongBuffer().put(mTimestamps);
+        content.rewind();
+        channel.truncate(FILE_SIZE);
+        channel.write(content, 0);
+    }
+
+    /**
+     * Reads the timestamps from the file unless they're in memory already. A file which can't be
+     * read is taken as having no timestamps.
+     */
+    private void load() {
+        if (mIsLoaded) {
+            return;
+        }
+        mIsLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile), FILE_SIZE))) {
+            int version = input.readInt();
+            int size = input.readInt();
+            int start = input.readInt();
+            if (version != FORMAT_VERSION || size < 0 || size > CAPACITY || start < 0
+                    || start >= CAPACITY) {
+                Log.w(TAG, "Ignoring daily rotation timestamps in an unknown format");
+                return;
+            }
+            for (int i = 0; i < CAPACITY; i++) {
+                mTimestamps[i] = input.readLong();
+            }
+            mSize = size;
+            mStart = start;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read the daily rotation timestamps", e);
+        }
+    }
+}
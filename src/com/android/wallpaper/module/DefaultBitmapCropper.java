@@ -15,25 +15,16 @@
  */
 package com.android.wallpaper.module;
 
-import android.graphics.Bitmap;
 import android.graphics.Rect;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import com.android.wallpaper.asset.Asset;
-import com.android.wallpaper.asset.Asset.BitmapReceiver;
-
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Default implementation of BitmapCropper, which actually crops and scales bitmaps.
  */
 public class DefaultBitmapCropper implements BitmapCropper {
-    private static final ExecutorService sExecutorService = Executors.newSingleThreadExecutor();
     private static final String TAG = "DefaultBitmapCropper";
-    private static final boolean FILTER_SCALED_BITMAP = true;
 
     @Override
     public void cropAndScaleBitmap(Asset asset, float scale, Rect cropRect,
@@ -45,35 +36,16 @@ public class DefaultBitmapCropper implements BitmapCropper {
                 (int) Math.floor((float) cropRect.right / scale),
                 (int) Math.floor((float) cropRect.bottom / scale));
 
-        asset.decodeBitmapRegion(scaledCropRect, cropRect.width(), cropRect.height(), isRtl,
-                new BitmapReceiver() {
-                    @Override
-                    public void onBitmapDecoded(Bitmap bitmap) {
-                        if (bitmap == null) {
-                            callback.onError(null);
-                            return;
-                        }
-                        // Asset provides a bitmap which is appropriate for the target width &
-                        // height, but since it does not guarantee an exact size we need to fit
-                        // the bitmap to the cropRect.
-                        sExecutorService.execute(() -> {
-                            try {
-                                // Fit bitmap to exact dimensions of crop rect.
-                                Bitmap result = Bitmap.createScaledBitmap(
-                                        bitmap,
-                                        cropRect.width(),
-                                        cropRect.height(),
-                                        FILTER_SCALED_BITMAP);
-                                new Handler(Looper.getMainLooper()).post(
-                                        () -> callback.onBitmapCropped(result));
-                            } catch (OutOfMemoryError e) {
-                                Log.w(TAG,
-                                        "Not enough memory to fit the final cropped and "
-                                                + "scaled bitmap to size", e);
-                                new Handler(Looper.getMainLooper()).post(() -> callback.onError(e));
-                            }
-                        });
+        // The asset fits the region to the exact dimensions of the crop rect as it decodes it.
+        // Each crop is its own task, so independent crops are decoded in parallel.
+        asset.decodeBitmapRegionToSize(scaledCropRect, cropRect.width(), cropRect.height(), isRtl,
+                bitmap -> {
+                    if (bitmap == null) {
+                        Log.w(TAG, "Unable to decode and scale the bitmap region to " + cropRect);
+                        callback.onError(null);
+                        return;
                     }
+                    callback.onBitmapCropped(bitmap);
                 });
     }
 }
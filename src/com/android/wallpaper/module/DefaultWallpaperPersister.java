@@ -24,40 +24,47 @@ import android.app.WallpaperManager;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Point;
 import android.graphics.PointF;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
-import android.os.AsyncTask;
+import android.graphics.drawable.Drawable;
 import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.Display;
-import android.view.WindowManager;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.android.wallpaper.asset.Asset;
-import com.android.wallpaper.asset.Asset.BitmapReceiver;
 import com.android.wallpaper.asset.BitmapUtils;
-import com.android.wallpaper.asset.StreamableAsset;
-import com.android.wallpaper.asset.StreamableAsset.StreamReceiver;
+import com.android.wallpaper.asset.DecodeScheduler;
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
 import com.android.wallpaper.model.StaticWallpaperMetadata;
 import com.android.wallpaper.model.WallpaperInfo;
-import com.android.wallpaper.module.BitmapCropper.Callback;
 import com.android.wallpaper.util.BitmapTransformer;
 import com.android.wallpaper.util.DisplayUtils;
 import com.android.wallpaper.util.ScreenSizeCalculator;
 import com.android.wallpaper.util.WallpaperCropUtils;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import kotlinx.coroutines.CoroutineDispatcher;
+import kotlinx.coroutines.CoroutineScope;
+import kotlinx.coroutines.flow.Flow;
 
 /**
  * Concrete implementation of WallpaperPersister which actually sets wallpapers to the system via
@@ -65,20 +72,45 @@ import java.util.List;
  */
 public class DefaultWallpaperPersister implements WallpaperPersister {
 
-    private static final int DEFAULT_COMPRESS_QUALITY = 100;
+    private static final String ENCODED_WALLPAPER_FILE_PREFIX = "encoded_wallpaper";
+    private static final String SPOOLED_WALLPAPER_FILE_PREFIX = "spooled_wallpaper";
+    // Smallest side of the source preview used for a streamed wallpaper's colors and recents entry.
+    private static final int SOURCE_PREVIEW_MIN_SIZE = 256;
+    private static final int ENCODE_BUFFER_SIZE = 64 * 1024;
     private static final String TAG = "WallpaperPersister";
+    private static final float FULL_IMAGE_SCALE_TOLERANCE = 0.001f;
+
+    // Stages of SetWallpaperTask, as logged and traced.
+    private static final String STAGE_TRANSFORM = "transform";
+    private static final String STAGE_ENCODE = "encode";
+    private static final String STAGE_WRITE = "write";
+    private static final String STAGE_READ_BACK = "read_back";
+    private static final String STAGE_HASH = "hash";
+    private static final String STAGE_COLORS = "colors";
+    private static final String STAGE_METADATA = "metadata";
+    private static final String STAGE_LOCK_METADATA = "lock_metadata";
 
     private final Context mAppContext;
     private final WallpaperManager mWallpaperManager;
     private final WallpaperPreferences mWallpaperPreferences;
     private final WallpaperChangedNotifier mWallpaperChangedNotifier;
     private final DisplayUtils mDisplayUtils;
-    private final BitmapCropper mBitmapCropper;
     private final WallpaperStatusChecker mWallpaperStatusChecker;
     private final boolean mIsRefactorSettingWallpaper;
+    private final WallpaperEncodePolicy mEncodePolicy;
+    private final WallpaperIdCache mIdCache;
+    private final WallpaperFingerprinter mFingerprinter;
+    private final CoroutineScope mApplicationScope;
+    private final SetWallpaperPipeline mPipeline;
 
     private WallpaperInfo mWallpaperInfoInPreview;
 
+    /**
+     * @param applicationScope Scope to set wallpapers in when the callback variant of
+     *                         {@link #setIndividualWallpaper} is used.
+     * @param bgDispatcher     Dispatcher to decode, encode and write wallpapers on.
+     * @param mainDispatcher   Dispatcher to notify listeners that the wallpaper changed on.
+     */
     @SuppressLint("ServiceCast")
     public DefaultWallpaperPersister(
             Context context,
@@ -88,118 +120,51 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
             DisplayUtils displayUtils,
             BitmapCropper bitmapCropper,
             WallpaperStatusChecker wallpaperStatusChecker,
-            boolean isRefactorSettingWallpaper
+            boolean isRefactorSettingWallpaper,
+            WallpaperEncodePolicy encodePolicy,
+            CoroutineScope applicationScope,
+            CoroutineDispatcher bgDispatcher,
+            CoroutineDispatcher mainDispatcher
     ) {
         mAppContext = context.getApplicationContext();
         mWallpaperManager = wallpaperManager;
         mWallpaperPreferences = wallpaperPreferences;
         mWallpaperChangedNotifier = wallpaperChangedNotifier;
         mDisplayUtils = displayUtils;
-        mBitmapCropper = bitmapCropper;
         mWallpaperStatusChecker = wallpaperStatusChecker;
         mIsRefactorSettingWallpaper = isRefactorSettingWallpaper;
+        mEncodePolicy = encodePolicy;
+        mIdCache = WallpaperIdCache.getInstance(mAppContext);
+        mFingerprinter = new WallpaperFingerprinter(wallpaperManager, mIdCache);
+        mApplicationScope = applicationScope;
+        mPipeline = SetWallpaperPipeline.create(this, wallpaperManager, bitmapCropper,
+                displayUtils, bgDispatcher, mainDispatcher);
     }
 
     @Override
     public void setIndividualWallpaper(final WallpaperInfo wallpaper, Asset asset,
             @Nullable Rect cropRect, float scale, @Destination final int destination,
             final SetWallpaperCallback callback) {
-        // Set wallpaper without downscaling directly from an input stream if there's no crop rect
-        // specified by the caller and the asset is streamable.
-
-        if (mWallpaperManager.isMultiCropEnabled() && (!(asset instanceof StreamableAsset))) {
-            asset.decodeBitmap(bitmap -> {
-                if (bitmap == null) {
-                    callback.onError(null /* throwable */);
-                    return;
-                }
-                setIndividualWallpaper(wallpaper, bitmap, cropRect, destination, callback);
-            });
-            return;
-        }
-
-        if ((cropRect == null || mWallpaperManager.isMultiCropEnabled())
-                && asset instanceof StreamableAsset) {
-            ((StreamableAsset) asset).fetchInputStream(new StreamReceiver() {
-                @Override
-                public void onInputStreamOpened(@Nullable InputStream inputStream) {
-                    if (inputStream == null) {
-                        callback.onError(null /* throwable */);
-                        return;
-                    }
-                    setIndividualWallpaper(wallpaper, inputStream, cropRect, destination, callback);
-                }
-            });
-            return;
-        }
-
-        // If no crop rect is specified but the wallpaper asset is not streamable, then fall back to
-        // using the device's display size.
-        if (cropRect == null) {
-            Display display = ((WindowManager) mAppContext.getSystemService(Context.WINDOW_SERVICE))
-                    .getDefaultDisplay();
-            Point screenSize = ScreenSizeCalculator.getInstance().getScreenSize(display);
-            asset.decodeBitmap(screenSize.x, screenSize.y, new BitmapReceiver() {
-                @Override
-                public void onBitmapDecoded(@Nullable Bitmap bitmap) {
-                    if (bitmap == null) {
-                        callback.onError(null /* throwable */);
-                        return;
-                    }
-                    setIndividualWallpaper(wallpaper, bitmap, null, destination, callback);
-                }
-            });
-            return;
-        }
-
-        mBitmapCropper.cropAndScaleBitmap(asset, scale, cropRect, false, new Callback() {
-            @Override
-            public void onBitmapCropped(Bitmap croppedBitmap) {
-                setIndividualWallpaper(wallpaper, croppedBitmap, destination, callback);
-            }
-
-            @Override
-            public void onError(@Nullable Throwable e) {
-                callback.onError(e);
-            }
-        });
-    }
-
-    /**
-     * Sets a static individual wallpaper to the system via the WallpaperManager.
-     *
-     * @param wallpaper     Wallpaper model object.
-     * @param croppedBitmap Bitmap representing the individual wallpaper image.
-     * @param destination   The destination - where to set the wallpaper to.
-     * @param callback      Called once the wallpaper was set or if an error occurred.
-     */
-    private void setIndividualWallpaper(WallpaperInfo wallpaper, Bitmap croppedBitmap,
-            @Destination int destination, SetWallpaperCallback callback) {
-        SetWallpaperTask setWallpaperTask =
-                new SetWallpaperTask(wallpaper, croppedBitmap, null, destination, callback);
-        setWallpaperTask.execute();
+        mPipeline.setIndividualWallpaper(wallpaper, asset, cropRect, scale, destination,
+                mApplicationScope, callback);
     }
 
-    private void setIndividualWallpaper(WallpaperInfo wallpaper, Bitmap fullBitmap, Rect cropHint,
-            @Destination int destination, SetWallpaperCallback callback) {
-        SetWallpaperTask setWallpaperTask =
-                new SetWallpaperTask(wallpaper, fullBitmap, cropHint, destination, callback);
-        setWallpaperTask.execute();
+    @Override
+    public Flow<SetWallpaperProgress> setIndividualWallpaperWithProgress(WallpaperInfo wallpaper,
+            Asset asset, @Nullable Rect cropRect, float scale, @Destination int destination) {
+        return mPipeline.setIndividualWallpaper(wallpaper, asset, cropRect, scale, destination);
     }
 
     /**
-     * Sets a static individual wallpaper stream to the system via the WallpaperManager.
-     *
-     * @param wallpaper   Wallpaper model object.
-     * @param inputStream JPEG or PNG stream of wallpaper image's bytes.
-     * @param destination The destination - where to set the wallpaper to.
-     * @param callback    Called once the wallpaper was set or if an error occurred.
+     * Returns whether cropping an image of the given raw dimensions with the given crop rect and
+     * scale would give back the image unchanged.
      */
-    private void setIndividualWallpaper(WallpaperInfo wallpaper, InputStream inputStream,
-            Rect cropHint, @Destination int destination, SetWallpaperCallback callback) {
-        SetWallpaperTask setWallpaperTask =
-                new SetWallpaperTask(wallpaper, inputStream, cropHint, destination, callback);
-        setWallpaperTask.execute();
+    @VisibleForTesting
+    static boolean isFullImageCrop(Rect cropRect, float scale, @Nullable Point rawDimensions) {
+        return rawDimensions != null
+                && Math.abs(scale - 1f) < FULL_IMAGE_SCALE_TOLERANCE
+                && cropRect.left == 0 && cropRect.top == 0
+                && cropRect.width() == rawDimensions.x && cropRect.height() == rawDimensions.y;
     }
 
     @Override
@@ -253,6 +218,14 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
             int wallpaperId,
             String remoteId,
             @Destination int destination) {
+        mWallpaperPreferences.edit(() -> setStaticWallpaperMetadata(attributions, actionUrl,
+                actionLabelRes, actionIconRes, collectionId, wallpaperId, remoteId, destination));
+        return true;
+    }
+
+    private void setStaticWallpaperMetadata(List<String> attributions, String actionUrl,
+            int actionLabelRes, int actionIconRes, String collectionId, int wallpaperId,
+            String remoteId, @Destination int destination) {
         if (destination == DEST_HOME_SCREEN || destination == DEST_BOTH) {
             mWallpaperPreferences.clearHomeWallpaperMetadata();
 
@@ -285,13 +258,18 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
             mWallpaperPreferences.setLockWallpaperCollectionId(collectionId);
             mWallpaperPreferences.setLockWallpaperRemoteId(remoteId);
         }
-
-        return true;
     }
 
     @Override
     public boolean saveStaticWallpaperToPreferences(@Destination int destination,
             StaticWallpaperMetadata metadata) {
+        mWallpaperPreferences.edit(
+                () -> setStaticImageWallpaperMetadata(destination, metadata));
+        return true;
+    }
+
+    private void setStaticImageWallpaperMetadata(@Destination int destination,
+            StaticWallpaperMetadata metadata) {
         if (destination == DEST_HOME_SCREEN || destination == DEST_BOTH) {
             mWallpaperPreferences.clearHomeWallpaperMetadata();
             mWallpaperPreferences.setHomeStaticImageWallpaperMetadata(metadata);
@@ -301,7 +279,6 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
             mWallpaperPreferences.clearLockWallpaperMetadata();
             mWallpaperPreferences.setLockStaticImageWallpaperMetadata(metadata);
         }
-        return true;
     }
 
     /**
@@ -355,7 +332,8 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
         scaledCropRect = mWallpaperManager.isMultiCropEnabled() ? scaledCropRect : null;
 
         int wallpaperId = setBitmapToWallpaperManager(wallpaperBitmap, scaledCropRect,
-                /* allowBackup */ false, whichWallpaper);
+                /* allowBackup */ false, whichWallpaper,
+                WallpaperEncodePolicy.SOURCE_DAILY_ROTATION);
         if (wallpaperId > 0) {
             mWallpaperPreferences.storeLatestWallpaper(whichWallpaper,
                     String.valueOf(wallpaperId), attributions, actionUrl, collectionId,
@@ -378,18 +356,38 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
     @Override
     public int setBitmapToWallpaperManager(Bitmap wallpaperBitmap, Rect cropHint,
             boolean allowBackup, int whichWallpaper) {
-        ByteArrayOutputStream tmpOut = new ByteArrayOutputStream();
-        if (wallpaperBitmap.compress(CompressFormat.PNG, DEFAULT_COMPRESS_QUALITY, tmpOut)) {
-            try {
-                byte[] outByteArray = tmpOut.toByteArray();
+        return setBitmapToWallpaperManager(wallpaperBitmap, cropHint, allowBackup, whichWallpaper,
+                WallpaperEncodePolicy.SOURCE_USER_SELECTED);
+    }
+
+    private int setBitmapToWallpaperManager(Bitmap wallpaperBitmap, Rect cropHint,
+            boolean allowBackup, int whichWallpaper, @WallpaperEncodePolicy.Source int source) {
+        // Encode straight into a temporary file and let WallpaperManager stream it from there,
+        // rather than holding the encoded image in byte arrays on the heap.
+        File encodedFile = encodeToTempFile(wallpaperBitmap,
+                mEncodePolicy.getEncodeFormat(whichWallpaper, source));
+        return setEncodedBitmapToWallpaperManager(encodedFile, wallpaperBitmap, cropHint,
+                allowBackup, whichWallpaper);
+    }
+
+    /**
+     * Streams the given encoded wallpaper to WallpaperManager and deletes it, or sets the bitmap
+     * it was encoded from if encoding it failed.
+     */
+    private int setEncodedBitmapToWallpaperManager(@Nullable File encodedFile,
+            Bitmap wallpaperBitmap, Rect cropHint, boolean allowBackup, int whichWallpaper) {
+        if (encodedFile != null) {
+            try (InputStream inputStream = new FileInputStream(encodedFile)) {
                 return mWallpaperManager.setStream(
-                        new ByteArrayInputStream(outByteArray),
+                        inputStream,
                         cropHint /* visibleCropHint */,
                         allowBackup,
                         whichWallpaper);
             } catch (IOException e) {
                 Log.e(TAG, "unable to write stream to wallpaper manager");
                 return 0;
+            } finally {
+                deleteTempFile(encodedFile);
             }
         } else {
             Log.e(TAG, "unable to compress wallpaper");
@@ -406,6 +404,79 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
         }
     }
 
+    /**
+     * Encodes the given bitmap into a new file in the cache directory, or returns null if that
+     * failed. The caller must delete the file once done with it.
+     */
+    @Nullable
+    private File encodeToTempFile(Bitmap bitmap, WallpaperEncodeFormat format) {
+        File file;
+        try {
+            file = File.createTempFile(ENCODED_WALLPAPER_FILE_PREFIX, /* suffix= */ null,
+                    mAppContext.getCacheDir());
+        } catch (IOException e) {
+            Log.e(TAG, "unable to create file for the encoded wallpaper", e);
+            return null;
+        }
+        if (encodeToFile(bitmap, format, file)) {
+            return file;
+        }
+        deleteTempFile(file);
+        return null;
+    }
+
+    /**
+     * Encodes the given bitmap into the given file in the given format, returning whether that
+     * succeeded.
+     */
+    @VisibleForTesting
+    static boolean encodeToFile(Bitmap bitmap, WallpaperEncodeFormat format, File file) {
+        try (OutputStream outputStream =
+                     new BufferedOutputStream(new FileOutputStream(file), ENCODE_BUFFER_SIZE)) {
+            return format.encode(bitmap, outputStream);
+        } catch (IOException e) {
+            Log.e(TAG, "unable to write the encoded wallpaper", e);
+            return false;
+        }
+    }
+
+    /**
+     * Decodes a downsampled copy of the given crop of the image in the given file, or of the whole
+     * image if there's no crop, or returns null if it couldn't be decoded.
+     */
+    @VisibleForTesting
+    @Nullable
+    static Bitmap decodeSourcePreview(File file, @Nullable Rect cropHint, int minSize) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(file.getPath());
+        } catch (IOException e) {
+            Log.w(TAG, "unable to open the spooled wallpaper", e);
+            return null;
+        }
+        try {
+            Rect region = new Rect(0, 0, decoder.getWidth(), decoder.getHeight());
+            if (cropHint != null && !cropHint.isEmpty() && !region.intersect(cropHint)) {
+                return null;
+            }
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = BitmapUtils.calculateInSampleSize(region.width(),
+                    region.height(), minSize, minSize);
+            return decoder.decodeRegion(region, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "unable to decode the spooled wallpaper", e);
+            return null;
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private static void deleteTempFile(File file) {
+        if (!file.delete()) {
+            Log.w(TAG, "unable to delete " + file);
+        }
+    }
+
     @Override
     public int setStreamToWallpaperManager(InputStream inputStream, Rect cropHint,
             boolean allowBackup, int whichWallpaper) {
@@ -452,6 +523,12 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
     @Override
     public void setLiveWallpaperMetadata(WallpaperInfo wallpaperInfo, String effects,
             @Destination int destination) {
+        mWallpaperPreferences.edit(
+                () -> setLiveWallpaperMetadataToPreferences(wallpaperInfo, effects, destination));
+    }
+
+    private void setLiveWallpaperMetadataToPreferences(WallpaperInfo wallpaperInfo,
+            String effects, @Destination int destination) {
         android.app.WallpaperInfo component = wallpaperInfo.getWallpaperComponent();
 
         if (destination == WallpaperPersister.DEST_HOME_SCREEN
@@ -481,15 +558,66 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
         }
     }
 
-    private class SetWallpaperTask extends AsyncTask<Void, Void, Boolean> {
+    /**
+     * Returns a task which sets the given bitmap, for {@link SetWallpaperPipeline} to run.
+     */
+    SetWallpaperTask newSetWallpaperTask(WallpaperInfo wallpaper, Bitmap bitmap,
+            @Nullable Rect cropHint, @Destination int destination) {
+        return new SetWallpaperTask(wallpaper, bitmap, cropHint, destination);
+    }
+
+    /**
+     * Returns a task which sets the given stream and closes it once released, for
+     * {@link SetWallpaperPipeline} to run.
+     */
+    SetWallpaperTask newSetWallpaperTask(WallpaperInfo wallpaper, InputStream stream,
+            @Nullable Rect cropHint, @Destination int destination) {
+        return new SetWallpaperTask(wallpaper, stream, cropHint, destination);
+    }
+
+    /**
+     * Notifies listeners that the wallpaper was changed. Must be called on the main thread.
+     */
+    void notifyWallpaperChanged() {
+        mWallpaperChangedNotifier.notifyWallpaperChanged();
+    }
+
+    /**
+     * Sets a wallpaper and saves its metadata, one step at a time from {@link #prepare} to
+     * {@link #saveMetadata} and then {@link #release}, as {@link SetWallpaperPipeline} runs it.
+     * Every step but {@link #release} blocks, so call them off the main thread.
+     */
+    class SetWallpaperTask {
 
         private final WallpaperInfo mWallpaper;
         @Destination
         private final int mDestination;
-        private final WallpaperPersister.SetWallpaperCallback mCallback;
 
         private Bitmap mBitmap;
         private InputStream mInputStream;
+        /**
+         * Downsampled copy of the streamed source, taken while the stream was being set.
+         */
+        @Nullable
+        private Bitmap mSourcePreview;
+        /**
+         * {@link WallpaperFingerprinter} fingerprint of the wallpaper file WallpaperManager stored
+         * once {@link #write} succeeded, or 0 if unknown.
+         */
+        private long mSourceHash;
+        /**
+         * Colors of {@link #mBitmap} once the home screen's metadata has been saved, for reuse by
+         * the lock screen's when the same image was set to both.
+         */
+        @Nullable
+        private WallpaperColors mHomeColors;
+        private final StageTimings mTimings = new StageTimings();
+
+        private int mWhichWallpaper;
+        private boolean mAllowBackup;
+        private boolean mWasLockWallpaperSet;
+        @Nullable
+        private File mEncodedFile;
         @Nullable
         private Rect mCropHint;
 
@@ -502,13 +630,11 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
         private Point mStretchSize;
 
         SetWallpaperTask(WallpaperInfo wallpaper, Bitmap bitmap, Rect cropHint,
-                @Destination int destination, WallpaperPersister.SetWallpaperCallback callback) {
-            super();
+                @Destination int destination) {
             mWallpaper = wallpaper;
             mBitmap = bitmap;
             mCropHint = cropHint;
             mDestination = destination;
-            mCallback = callback;
         }
 
         /**
@@ -516,12 +642,11 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
          * will close the InputStream once it is done with it.
          */
         SetWallpaperTask(WallpaperInfo wallpaper, InputStream stream, Rect cropHint,
-                @Destination int destination, WallpaperPersister.SetWallpaperCallback callback) {
+                @Destination int destination) {
             mWallpaper = wallpaper;
             mInputStream = stream;
             mCropHint = cropHint;
             mDestination = destination;
-            mCallback = callback;
         }
 
         void setFillSize(Point fillSize) {
@@ -542,92 +667,245 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
             mStretchSize = stretchSize;
         }
 
-        @Override
-        protected Boolean doInBackground(Void... unused) {
-            int whichWallpaper;
+        /**
+         * Reads the state of the device which the following steps depend on.
+         */
+        void prepare() {
             if (mDestination == DEST_HOME_SCREEN) {
-                whichWallpaper = WallpaperManager.FLAG_SYSTEM;
+                mWhichWallpaper = WallpaperManager.FLAG_SYSTEM;
             } else if (mDestination == DEST_LOCK_SCREEN) {
-                whichWallpaper = WallpaperManager.FLAG_LOCK;
+                mWhichWallpaper = WallpaperManager.FLAG_LOCK;
             } else { // DEST_BOTH
-                whichWallpaper = WallpaperManager.FLAG_SYSTEM
+                mWhichWallpaper = WallpaperManager.FLAG_SYSTEM
                         | WallpaperManager.FLAG_LOCK;
             }
 
-            boolean wasLockWallpaperSet = mWallpaperStatusChecker.isLockWallpaperSet();
+            mWasLockWallpaperSet = mWallpaperStatusChecker.isLockWallpaperSet();
+            mAllowBackup = mWallpaper.getBackupPermission() == WallpaperInfo.BACKUP_ALLOWED;
+        }
 
-            boolean allowBackup = mWallpaper.getBackupPermission() == WallpaperInfo.BACKUP_ALLOWED;
-            final int wallpaperId;
-            if (mBitmap != null) {
-                // Apply fill or stretch transformations on mBitmap if necessary.
+        /**
+         * Applies the fill or stretch transformation to the bitmap, if any.
+         */
+        void transform() {
+            if (mBitmap == null) {
+                return;
+            }
+            mTimings.measure(STAGE_TRANSFORM, () -> {
                 if (mFillSize != null) {
                     mBitmap = BitmapTransformer.applyFillTransformation(mBitmap, mFillSize);
                 }
                 if (mStretchSize != null) {
-                    mBitmap = Bitmap.createScaledBitmap(mBitmap, mStretchSize.x, mStretchSize.y,
-                            true);
+                    mBitmap = BitmapTransformer.applyStretchTransformation(mBitmap,
+                            mStretchSize);
                 }
+            });
+        }
 
-                wallpaperId = setBitmapToWallpaperManager(mBitmap, mCropHint, allowBackup,
-                        whichWallpaper);
+        /**
+         * Encodes the bitmap into a temporary file for {@link #write}. A stream is written as is.
+         */
+        void encode() {
+            if (mBitmap == null) {
+                return;
+            }
+            // Setting both destinations at once has WallpaperManager apply a single encode of
+            // the image to home and lock.
+            mEncodedFile = mTimings.measure(STAGE_ENCODE, () -> encodeToTempFile(mBitmap,
+                    mEncodePolicy.getEncodeFormat(mWhichWallpaper,
+                            WallpaperEncodePolicy.SOURCE_USER_SELECTED)));
+        }
+
+        /**
+         * Writes the wallpaper to WallpaperManager and returns its ID, or 0 if that failed.
+         */
+        int write() {
+            int wallpaperId = writeToWallpaperManager();
+            if (wallpaperId > 0) {
+                // WallpaperManager crops and re-encodes what it's handed, so only the file it
+                // stored matches the fingerprint WallpaperFingerprinter later reads back.
+                int which = (mWhichWallpaper & WallpaperManager.FLAG_SYSTEM) != 0
+                        ? WallpaperManager.FLAG_SYSTEM : WallpaperManager.FLAG_LOCK;
+                mSourceHash = mTimings.measure(STAGE_HASH,
+                        () -> mFingerprinter.getFingerprint(which));
+            }
+            return wallpaperId;
+        }
+
+        private int writeToWallpaperManager() {
+            if (mBitmap != null) {
+                File encodedFile = mEncodedFile;
+                mEncodedFile = null;
+                return mTimings.measure(STAGE_WRITE, () -> setEncodedBitmapToWallpaperManager(
+                        encodedFile, mBitmap, mCropHint, mAllowBackup, mWhichWallpaper));
             } else if (mInputStream != null) {
-                wallpaperId = setStreamToWallpaperManager(mInputStream, mCropHint,
-                        allowBackup, whichWallpaper);
+                return mTimings.measure(STAGE_WRITE, () -> mIsRefactorSettingWallpaper
+                        ? setStreamAndPreviewSource(mAllowBackup, mWhichWallpaper)
+                        : setStreamToWallpaperManager(mInputStream, mCropHint, mAllowBackup,
+                                mWhichWallpaper));
             } else {
                 Log.e(TAG,
                         "Both the wallpaper bitmap and input stream are null so we're unable "
                                 + "to set any kind of wallpaper here.");
-                wallpaperId = 0;
+                return 0;
             }
+        }
 
-            if (wallpaperId > 0) {
-                if (mDestination == DEST_HOME_SCREEN
-                        && mWallpaperPreferences.getWallpaperPresentationMode()
-                        == WallpaperPreferences.PRESENTATION_MODE_ROTATING
-                        && !wasLockWallpaperSet) {
-                    copyRotatingWallpaperToLock();
-                }
+        /**
+         * Saves the metadata of the wallpaper {@link #write} set with the given ID.
+         */
+        void saveMetadata(int wallpaperId) {
+            // One set's metadata is written to each preferences file at once, not value by value.
+            mWallpaperPreferences.edit(() -> saveMetadataToPreferences(wallpaperId));
+            Log.d(TAG, "Set wallpaper to destination " + mDestination + ": " + mTimings);
+        }
 
-                if (mIsRefactorSettingWallpaper) {
-                    if (mBitmap == null) {
-                        mWallpaperManager.forgetLoadedWallpaper();
-                        mBitmap = ((BitmapDrawable) mWallpaperManager
-                                .getDrawable(WallpaperPersister.destinationToFlags(mDestination)))
-                                .getBitmap();
-                    }
-                    setStaticWallpaperMetadataToPreferences(
-                            mDestination,
-                            wallpaperId,
-                            BitmapUtils.generateHashCode(mBitmap),
-                            WallpaperColors.fromBitmap(mBitmap));
-                } else {
-                    setImageWallpaperMetadata(mDestination, wallpaperId);
-                }
+        private void saveMetadataToPreferences(int wallpaperId) {
+            if (mDestination == DEST_HOME_SCREEN
+                    && mWallpaperPreferences.getWallpaperPresentationMode()
+                    == WallpaperPreferences.PRESENTATION_MODE_ROTATING
+                    && !mWasLockWallpaperSet) {
+                copyRotatingWallpaperToLock();
+            }
 
-                return true;
+            if (mIsRefactorSettingWallpaper) {
+                long sourceHash = mSourceHash;
+                if (mBitmap == null && mSourcePreview != null) {
+                    mBitmap = mSourcePreview;
+                } else if (mBitmap == null) {
+                    // The stream couldn't be previewed, read the wallpaper back instead.
+                    readBackWallpaper(() -> mWallpaperManager.getDrawable(
+                            WallpaperPersister.destinationToFlags(mDestination)));
+                }
+                Future<WallpaperColors> colors = extractColorsAsync(mBitmap);
+                long bitmapHash = sourceHash != 0 ? sourceHash : mTimings.measure(
+                        STAGE_HASH, () -> BitmapUtils.generateHashCode(mBitmap));
+                WallpaperColors wallpaperColors = awaitColors(colors, mBitmap);
+                mTimings.measure(STAGE_METADATA, () -> setStaticWallpaperMetadataToPreferences(
+                        mDestination, wallpaperId, bitmapHash, wallpaperColors));
+                cacheWallpaper(wallpaperId, wallpaperColors);
             } else {
-                return false;
+                setImageWallpaperMetadata(mDestination, wallpaperId);
+                cacheWallpaper(wallpaperId, mHomeColors);
             }
         }
 
-        @Override
-        protected void onPostExecute(Boolean isSuccess) {
+        /**
+         * Caches what this task knows of the wallpaper it set with the given ID, so that it
+         * doesn't have to be read back from WallpaperManager to be identified later on.
+         */
+        private void cacheWallpaper(int wallpaperId, @Nullable WallpaperColors colors) {
+            if (mDestination == DEST_HOME_SCREEN || mDestination == DEST_BOTH) {
+                cacheWallpaper(WallpaperManager.FLAG_SYSTEM, wallpaperId, colors);
+            }
+            if (mDestination == DEST_LOCK_SCREEN || mDestination == DEST_BOTH) {
+                cacheWallpaper(WallpaperManager.FLAG_LOCK, wallpaperId, colors);
+            }
+        }
+
+        private void cacheWallpaper(int which, int wallpaperId,
+                @Nullable WallpaperColors colors) {
+            // mSourceHash is a fingerprint of the wallpaper file; other hash codes aren't cached.
+            mIdCache.putHashCode(which, wallpaperId, mSourceHash);
+            if (colors != null) {
+                mIdCache.putColors(which, wallpaperId, colors);
+            }
+        }
+
+        /**
+         * Frees what the task may still hold, e.g. after being cancelled before {@link #write}:
+         * the encoded file and the input stream.
+         */
+        void release() {
+            if (mEncodedFile != null) {
+                deleteTempFile(mEncodedFile);
+                mEncodedFile = null;
+            }
             if (mInputStream != null) {
                 try {
                     mInputStream.close();
                 } catch (IOException e) {
-                    Log.e(TAG, "Failed to close input stream " + e);
-                    mCallback.onError(e /* throwable */);
-                    return;
+                    Log.w(TAG, "Failed to close input stream", e);
                 }
             }
+        }
 
-            if (isSuccess) {
-                mCallback.onSuccess(mWallpaper, mDestination);
-                mWallpaperChangedNotifier.notifyWallpaperChanged();
-            } else {
-                mCallback.onError(null /* throwable */);
+        /**
+         * Returns whether this task set {@link #mBitmap} and knows the fingerprint of the file
+         * WallpaperManager stored it in, in which case the bitmap doesn't have to be read back.
+         */
+        private boolean isSetBitmapFingerprinted() {
+            return mBitmap != null && mSourceHash != WallpaperFingerprinter.UNKNOWN_HASH_CODE;
+        }
+
+        /**
+         * Replaces {@link #mBitmap} with the wallpaper WallpaperManager now returns from the given
+         * getter, forgetting the previously loaded one so that the old wallpaper isn't returned.
+         */
+        private void readBackWallpaper(Supplier<Drawable> wallpaperGetter) {
+            mTimings.measure(STAGE_READ_BACK, () -> {
+                mWallpaperManager.forgetLoadedWallpaper();
+                mBitmap = ((BitmapDrawable) wallpaperGetter.get()).getBitmap();
+            });
+        }
+
+        /**
+         * Starts extracting the colors of the given bitmap in the color extraction lane of the
+         * {@link DecodeScheduler}, so that the caller can go on with the rest of the metadata
+         * meanwhile.
+         */
+        private Future<WallpaperColors> extractColorsAsync(Bitmap bitmap) {
+            return DecodeScheduler.getInstance().submit(Priority.COLOR_EXTRACTION,
+                    () -> mTimings.measure(STAGE_COLORS, () -> WallpaperColors.fromBitmap(bitmap)));
+        }
+
+        /**
+         * Returns the colors extracted by {@link #extractColorsAsync}, or extracts them on the
+         * calling thread if that failed.
+         */
+        private WallpaperColors awaitColors(Future<WallpaperColors> colors, Bitmap bitmap) {
+            try {
+                return colors.get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "unable to extract wallpaper colors in the background", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return WallpaperColors.fromBitmap(bitmap);
+        }
+
+        /**
+         * Sets {@link #mInputStream} to WallpaperManager while copying it into a temporary file,
+         * then decodes {@link #mSourcePreview} from that copy, so that the wallpaper's colors
+         * don't require decoding it back from WallpaperManager at full size.
+         */
+        private int setStreamAndPreviewSource(boolean allowBackup, int whichWallpaper) {
+            File spoolFile = null;
+            OutputStream spool;
+            try {
+                spoolFile = File.createTempFile(SPOOLED_WALLPAPER_FILE_PREFIX,
+                        /* suffix= */ null, mAppContext.getCacheDir());
+                spool = new BufferedOutputStream(new FileOutputStream(spoolFile),
+                        ENCODE_BUFFER_SIZE);
+            } catch (IOException e) {
+                Log.w(TAG, "unable to spool the wallpaper stream", e);
+                if (spoolFile != null) {
+                    deleteTempFile(spoolFile);
+                }
+                return setStreamToWallpaperManager(mInputStream, mCropHint, allowBackup,
+                        whichWallpaper);
+            }
+
+            SpoolingInputStream teeStream = new SpoolingInputStream(mInputStream, spool);
+            int wallpaperId = setStreamToWallpaperManager(teeStream, mCropHint, allowBackup,
+                    whichWallpaper);
+            teeStream.close();
+            if (wallpaperId > 0 && teeStream.isSpoolComplete()) {
+                mSourcePreview = decodeSourcePreview(spoolFile, mCropHint,
+                        SOURCE_PREVIEW_MIN_SIZE);
+            }
+            deleteTempFile(spoolFile);
+            return wallpaperId;
         }
 
         /**
@@ -670,7 +948,7 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
         private void setImageWallpaperMetadata(@Destination int destination, int wallpaperId) {
             if (destination == DEST_HOME_SCREEN || destination == DEST_BOTH) {
                 mWallpaperPreferences.clearHomeWallpaperMetadata();
-                setImageWallpaperHomeMetadata(wallpaperId);
+                mTimings.measure(STAGE_METADATA, () -> setImageWallpaperHomeMetadata(wallpaperId));
 
                 // Disable rotation wallpaper when setting static image wallpaper to home screen
                 // Daily rotation rotates both home and lock screen wallpaper when lock screen is
@@ -683,22 +961,31 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
 
             if (destination == DEST_LOCK_SCREEN || destination == DEST_BOTH) {
                 mWallpaperPreferences.clearLockWallpaperMetadata();
-                setImageWallpaperLockMetadata(wallpaperId);
+                mTimings.measure(STAGE_LOCK_METADATA,
+                        () -> setImageWallpaperLockMetadata(destination, wallpaperId));
             }
         }
 
         private void setImageWallpaperHomeMetadata(int homeWallpaperId) {
             mWallpaperPreferences.setHomeWallpaperManagerId(homeWallpaperId);
 
-            // Compute bitmap hash code after setting the wallpaper because JPEG compression has
-            // likely changed many pixels' color values. Forget the previously loaded wallpaper
-            // bitmap so that WallpaperManager doesn't return the old wallpaper drawable. Do this
-            // on N+ devices in addition to saving the wallpaper ID for the purpose of backup &
-            // restore.
-            mWallpaperManager.forgetLoadedWallpaper();
-            mBitmap = ((BitmapDrawable) mWallpaperManager.getDrawable()).getBitmap();
-            long bitmapHash = BitmapUtils.generateHashCode(mBitmap);
-            WallpaperColors colors = WallpaperColors.fromBitmap(mBitmap);
+            if (isSetBitmapFingerprinted()) {
+                // The hash code doesn't depend on the pixels WallpaperManager stored, so the
+                // bitmap just set stands in for them. Still forget the previously loaded wallpaper
+                // so that WallpaperManager doesn't return the old wallpaper drawable later on.
+                mWallpaperManager.forgetLoadedWallpaper();
+            } else {
+                // Compute bitmap hash code after setting the wallpaper because JPEG compression
+                // has likely changed many pixels' color values. Forget the previously loaded
+                // wallpaper bitmap so that WallpaperManager doesn't return the old wallpaper
+                // drawable. Do this on N+ devices in addition to saving the wallpaper ID for the
+                // purpose of backup & restore.
+                readBackWallpaper(mWallpaperManager::getDrawable);
+            }
+            Future<WallpaperColors> colorsFuture = extractColorsAsync(mBitmap);
+            long bitmapHash = mSourceHash != WallpaperFingerprinter.UNKNOWN_HASH_CODE
+                    ? mSourceHash
+                    : mTimings.measure(STAGE_HASH, () -> BitmapUtils.generateHashCode(mBitmap));
 
             mWallpaperPreferences.setHomeWallpaperHashCode(bitmapHash);
 
@@ -716,11 +1003,13 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
             // Wallpaper ID can not be null or empty to save to the recent wallpaper as preferences
             String recentWallpaperId = TextUtils.isEmpty(mWallpaper.getWallpaperId())
                     ? String.valueOf(bitmapHash) : mWallpaper.getWallpaperId();
+            mHomeColors = awaitColors(colorsFuture, mBitmap);
             mWallpaperPreferences.storeLatestWallpaper(FLAG_SYSTEM, recentWallpaperId,
-                    mWallpaper, mBitmap, colors);
+                    mWallpaper, mBitmap, mHomeColors);
         }
 
-        private void setImageWallpaperLockMetadata(int lockWallpaperId) {
+        private void setImageWallpaperLockMetadata(@Destination int destination,
+                int lockWallpaperId) {
             mWallpaperPreferences.setLockWallpaperManagerId(lockWallpaperId);
             mWallpaperPreferences.setLockWallpaperAttributions(
                     mWallpaper.getAttributions(mAppContext));
@@ -733,11 +1022,17 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
                     mWallpaper.getCollectionId(mAppContext));
             mWallpaperPreferences.setLockWallpaperRemoteId(mWallpaper.getWallpaperId());
 
+            if (destination == DEST_BOTH && mHomeColors != null) {
+                setMirroredLockWallpaperMetadata();
+                return;
+            }
+
             // Save the lock wallpaper image's hash code as well for the sake of backup & restore
             // because WallpaperManager-generated IDs are specific to a physical device and
             // cannot be  used to identify a wallpaper image on another device after restore is
             // complete.
-            Bitmap lockBitmap = getLockWallpaperBitmap();
+            Bitmap lockBitmap = isSetBitmapFingerprinted() && hasLockWallpaperFile()
+                    ? mBitmap : getLockWallpaperBitmap();
             long bitmapHashCode = 0;
             if (lockBitmap != null) {
                 saveLockWallpaperHashCode(lockBitmap);
@@ -760,6 +1055,38 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
             }
         }
 
+        /**
+         * Saves the lock screen's hash code and recents entry when the same image was just set to
+         * both destinations, reusing what the home screen's metadata already computed from it
+         * instead of decoding the lock wallpaper file and extracting its colors again.
+         */
+        private void setMirroredLockWallpaperMetadata() {
+            long bitmapHashCode = mWallpaperPreferences.getHomeWallpaperHashCode();
+            // As in setImageWallpaperLockMetadata, only a lock wallpaper with a file of its own
+            // gets a hash code; that file holds the same image as home here.
+            if (hasLockWallpaperFile()) {
+                mWallpaperPreferences.setLockWallpaperHashCode(bitmapHashCode);
+            }
+            mWallpaperPreferences.storeLatestWallpaper(FLAG_LOCK,
+                    TextUtils.isEmpty(mWallpaper.getWallpaperId()) ? String.valueOf(
+                            bitmapHashCode) : mWallpaper.getWallpaperId(), mWallpaper,
+                    mBitmap, mHomeColors);
+        }
+
+        private boolean hasLockWallpaperFile() {
+            ParcelFileDescriptor parcelFd = mWallpaperManager.getWallpaperFile(
+                    WallpaperManager.FLAG_LOCK);
+            if (parcelFd == null) {
+                return false;
+            }
+            try {
+                parcelFd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IO exception when closing the file descriptor.", e);
+            }
+            return true;
+        }
+
         private void setStaticWallpaperMetadataToPreferences(@Destination int destination,
                 int wallpaperId, long bitmapHash, WallpaperColors colors) {
             saveStaticWallpaperToPreferences(
@@ -821,7 +1148,13 @@ public class DefaultWallpaperPersister implements WallpaperPersister {
 
         private long saveLockWallpaperHashCode(Bitmap lockBitmap) {
             if (lockBitmap != null) {
-                long bitmapHash = BitmapUtils.generateHashCode(lockBitmap);
+                // The lock wallpaper is the one this task set, so its fingerprint is already known
+                // if it was read back once written.
+                long bitmapHash = mSourceHash != WallpaperFingerprinter.UNKNOWN_HASH_CODE
+                        ? mSourceHash : mFingerprinter.getFingerprint(WallpaperManager.FLAG_LOCK);
+                if (bitmapHash == WallpaperFingerprinter.UNKNOWN_HASH_CODE) {
+                    bitmapHash = BitmapUtils.generateHashCode(lockBitmap);
+                }
                 mWallpaperPreferences.setLockWallpaperHashCode(bitmapHash);
                 return bitmapHash;
             }
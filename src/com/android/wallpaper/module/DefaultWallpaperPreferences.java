@@ -27,6 +27,8 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.wallpaper.asset.DecodeScheduler;
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
 import com.android.wallpaper.model.StaticWallpaperMetadata;
 import com.android.wallpaper.module.WallpaperPersister.Destination;
 import com.android.wallpaper.module.WallpaperPreferenceKeys.NoBackupKeys;
@@ -42,6 +44,7 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 
 /**
@@ -58,22 +61,40 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
     protected SharedPreferences mNoBackupPrefs;
     protected Context mContext;
 
+    private final TransactionalSharedPreferences mTransactionalSharedPrefs;
+    private final TransactionalSharedPreferences mTransactionalNoBackupPrefs;
+    private final File mDailyRotationTimestampsFile;
+    @Nullable
+    private DailyRotationTimestamps mDailyRotationTimestamps;
+    private boolean mAreWallpaperColorsMigrated;
+
     // Keep a strong reference to this OnSharedPreferenceChangeListener to prevent the listener from
     // being garbage collected because SharedPreferences only holds a weak reference.
     private OnSharedPreferenceChangeListener mSharedPrefsChangedListener;
 
     public DefaultWallpaperPreferences(Context context) {
-        mSharedPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        mNoBackupPrefs = context.getSharedPreferences(NO_BACKUP_PREFS_NAME, Context.MODE_PRIVATE);
+        mTransactionalSharedPrefs = new TransactionalSharedPreferences(
+                context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        mTransactionalNoBackupPrefs = new TransactionalSharedPreferences(
+                context.getSharedPreferences(NO_BACKUP_PREFS_NAME, Context.MODE_PRIVATE));
+        mSharedPrefs = mTransactionalSharedPrefs;
+        mNoBackupPrefs = mTransactionalNoBackupPrefs;
         if (mNoBackupPrefs.getAll().isEmpty() && !mSharedPrefs.getAll().isEmpty()) {
             upgradePrefs();
         }
         mContext = context.getApplicationContext();
+        mDailyRotationTimestampsFile = new File(context.getNoBackupFilesDir(),
+                DailyRotationTimestamps.FILE_NAME);
 
         // Register a prefs changed listener so that all prefs changes trigger a backup event.
         final BackupManager backupManager = new BackupManager(context);
         mSharedPrefsChangedListener = (sharedPreferences, key) -> backupManager.dataChanged();
         mSharedPrefs.registerOnSharedPreferenceChangeListener(mSharedPrefsChangedListener);
+
+        // Creates and migrates the store of wallpaper colors off the main thread, so that it's
+        // loaded by the time a preview looks colors up.
+        DecodeScheduler.getInstance().execute(Priority.COLOR_EXTRACTION,
+                this::getWallpaperColorStore);
     }
 
     /**
@@ -164,6 +185,29 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
         editor.apply();
     }
 
+    @Override
+    public void edit(Runnable changes) {
+        // A nested transaction is part of the one it's nested in.
+        if (!mTransactionalSharedPrefs.beginTransaction()) {
+            changes.run();
+            return;
+        }
+        mTransactionalNoBackupPrefs.beginTransaction();
+        boolean isSuccess = false;
+        try {
+            changes.run();
+            isSuccess = true;
+        } finally {
+            if (isSuccess) {
+                mTransactionalSharedPrefs.endTransaction();
+                mTransactionalNoBackupPrefs.endTransaction();
+            } else {
+                mTransactionalSharedPrefs.abortTransaction();
+                mTransactionalNoBackupPrefs.abortTransaction();
+            }
+        }
+    }
+
     private int getResIdPersistedByName(String key, String type) {
         String resName = mSharedPrefs.getString(key, null);
         if (resName == null) {
@@ -635,40 +679,55 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
                 .apply();
     }
 
-    @Override
-    public void addDailyRotation(long timestamp) {
-        String jsonString = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]");
-        try {
-            JSONArray jsonArray = new JSONArray(jsonString);
-            jsonArray.put(timestamp);
-
-            mNoBackupPrefs.edit()
-                    .putString(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS,
-                            jsonArray.toString())
-                    .apply();
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to add a daily rotation timestamp due to a JSON parse exception");
+    /**
+     * Returns the timestamps of daily rotations, first moving those stored by older versions of
+     * the app as a JSON array in the no-backup preferences into them.
+     */
+    private synchronized DailyRotationTimestamps getDailyRotationTimestamps() {
+        if (mDailyRotationTimestamps == null) {
+            mDailyRotationTimestamps = new DailyRotationTimestamps(mDailyRotationTimestampsFile);
+            String jsonString = mNoBackupPrefs.getString(
+                    NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, null);
+            if (jsonString != null) {
+                migrateDailyRotationTimestamps(jsonString, mDailyRotationTimestamps);
+            }
         }
+        return mDailyRotationTimestamps;
     }
 
-    @Override
-    public long getLastDailyRotationTimestamp() {
-        String jsonString = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]");
-
+    private void migrateDailyRotationTimestamps(String jsonString,
+            DailyRotationTimestamps dailyRotationTimestamps) {
         try {
             JSONArray jsonArray = new JSONArray(jsonString);
-
-            if (jsonArray.length() == 0) {
-                return -1;
+            long[] timestamps = new long[jsonArray.length()];
+            for (int i = 0; i < timestamps.length; i++) {
+                timestamps[i] = jsonArray.getLong(i);
             }
-
-            return jsonArray.getLong(jsonArray.length() - 1);
+            // Only older versions of the app write the JSON array, so it's the most recent record.
+            dailyRotationTimestamps.clear();
+            dailyRotationTimestamps.addAll(timestamps);
         } catch (JSONException e) {
-            Log.e(TAG, "Failed to find a daily rotation timestamp due to a JSON parse exception");
-            return -1;
+            Log.e(TAG, "Failed to migrate daily rotation timestamps due to a JSON parse exception");
         }
+        mNoBackupPrefs.edit().remove(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS).apply();
+    }
+
+    private static List<Long> toList(long[] timestamps) {
+        List<Long> list = new ArrayList<>(timestamps.length);
+        for (long timestamp : timestamps) {
+            list.add(timestamp);
+        }
+        return list;
+    }
+
+    @Override
+    public void addDailyRotation(long timestamp) {
+        getDailyRotationTimestamps().add(timestamp);
+    }
+
+    @Override
+    public long getLastDailyRotationTimestamp() {
+        return getDailyRotationTimestamps().getLast();
     }
 
     @Override
@@ -687,32 +746,7 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
             return null;
         }
 
-        List<Long> timestamps = new ArrayList<>();
-        String jsonString = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]");
-
-        try {
-            JSONArray jsonArray = new JSONArray(jsonString);
-
-            // Before recording the new daily rotation timestamp, filter out any that are older than
-            // 1 week old.
-            for (int i = 0; i < jsonArray.length(); i++) {
-                long existingTimestamp = jsonArray.getLong(i);
-                if (existingTimestamp >= oneWeekAgoTimestamp) {
-                    timestamps.add(existingTimestamp);
-                }
-            }
-
-            jsonArray = new JSONArray(timestamps);
-            mNoBackupPrefs.edit()
-                    .putString(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS,
-                            jsonArray.toString())
-                    .apply();
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to get daily rotation timestamps due to a JSON parse exception");
-        }
-
-        return timestamps;
+        return toList(getDailyRotationTimestamps().getRange(oneWeekAgoTimestamp, Long.MAX_VALUE));
     }
 
     @Nullable
@@ -739,27 +773,8 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
             return null;
         }
 
-        List<Long> timestamps = new ArrayList<>();
-        String jsonString = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[]");
-
-        try {
-            JSONArray jsonArray = new JSONArray(jsonString);
-
-            // Filter the timestamps (which cover up to one week of data) to only include those
-            // between midnight yesterday and midnight today.
-            for (int i = 0; i < jsonArray.length(); i++) {
-                long timestamp = jsonArray.getLong(i);
-                if (timestamp >= midnightYesterdayTimestamp && timestamp < midnightTodayTimestamp) {
-                    timestamps.add(timestamp);
-                }
-            }
-
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed to get daily rotation timestamps due to a JSON parse exception");
-        }
-
-        return timestamps;
+        return toList(getDailyRotationTimestamps().getRange(midnightYesterdayTimestamp,
+                midnightTodayTimestamp));
     }
 
     @Override
@@ -778,6 +793,7 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void clearDailyRotations() {
+        getDailyRotationTimestamps().clear();
         mNoBackupPrefs.edit()
                 .remove(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS)
                 .remove(NoBackupKeys.KEY_DAILY_WALLPAPER_ENABLED_TIMESTAMP)
@@ -962,39 +978,69 @@ public class DefaultWallpaperPreferences implements WallpaperPreferences {
 
     @Override
     public void storeWallpaperColors(String storedWallpaperId, WallpaperColors wallpaperColors) {
-        Color primaryColor = wallpaperColors.getPrimaryColor();
-        String value = new String(String.valueOf(primaryColor.toArgb()));
-        Color secondaryColor = wallpaperColors.getSecondaryColor();
-        if (secondaryColor != null) {
-            value += "," + secondaryColor.toArgb();
-        }
-        Color tertiaryColor = wallpaperColors.getTertiaryColor();
-        if (tertiaryColor != null) {
-            value += "," + tertiaryColor.toArgb();
-        }
-        mNoBackupPrefs.edit().putString(
-                NoBackupKeys.KEY_PREVIEW_WALLPAPER_COLOR_ID + storedWallpaperId, value).apply();
+        getWallpaperColorStore().put(storedWallpaperId, wallpaperColors);
     }
 
     @Override
     public WallpaperColors getWallpaperColors(String storedWallpaperId) {
-        String value = mNoBackupPrefs.getString(
-                NoBackupKeys.KEY_PREVIEW_WALLPAPER_COLOR_ID + storedWallpaperId, "");
+        return getWallpaperColorStore().get(storedWallpaperId);
+    }
+
+    /**
+     * Returns the store of wallpaper colors, first moving the colors older versions of the app
+     * stored in the no-backup preferences, one entry per wallpaper, into it.
+     */
+    private synchronized WallpaperColorStore getWallpaperColorStore() {
+        WallpaperColorStore store = WallpaperColorStore.getInstance(mContext);
+        if (mAreWallpaperColorsMigrated) {
+            return store;
+        }
+        mAreWallpaperColorsMigrated = true;
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> entry : mNoBackupPrefs.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(NoBackupKeys.KEY_PREVIEW_WALLPAPER_COLOR_ID)) {
+                continue;
+            }
+            WallpaperColors colors = entry.getValue() instanceof String
+                    ? parseWallpaperColors((String) entry.getValue()) : null;
+            if (colors != null) {
+                store.put(key.substring(NoBackupKeys.KEY_PREVIEW_WALLPAPER_COLOR_ID.length()),
+                        colors);
+            }
+            if (editor == null) {
+                editor = mNoBackupPrefs.edit();
+            }
+            editor.remove(key);
+        }
+        if (editor != null) {
+            editor.apply();
+        }
+        return store;
+    }
+
+    @Nullable
+    private static WallpaperColors parseWallpaperColors(String value) {
         if (value.equals("")) {
             return null;
         }
         String[] colorStrings = value.split(",");
-        Color colorPrimary = Color.valueOf(Integer.parseInt(colorStrings[0]));
-        Color colorSecondary = null;
-        if (colorStrings.length >= 2) {
-            colorSecondary = Color.valueOf(Integer.parseInt(colorStrings[1]));
-        }
-        Color colorTerTiary = null;
-        if (colorStrings.length >= 3) {
-            colorTerTiary = Color.valueOf(Integer.parseInt(colorStrings[2]));
+        try {
+            Color colorPrimary = Color.valueOf(Integer.parseInt(colorStrings[0]));
+            Color colorSecondary = null;
+            if (colorStrings.length >= 2) {
+                colorSecondary = Color.valueOf(Integer.parseInt(colorStrings[1]));
+            }
+            Color colorTerTiary = null;
+            if (colorStrings.length >= 3) {
+                colorTerTiary = Color.valueOf(Integer.parseInt(colorStrings[2]));
+            }
+            return new WallpaperColors(colorPrimary, colorSecondary, colorTerTiary,
+                    WallpaperColors.HINT_FROM_BITMAP);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Failed to migrate wallpaper colors stored as " + value);
+            return null;
         }
-        return new WallpaperColors(colorPrimary, colorSecondary, colorTerTiary,
-                WallpaperColors.HINT_FROM_BITMAP);
     }
 
     private void setFirstWallpaperApplyDateSinceSetup(int firstApplyDate) {
@@ -21,21 +21,13 @@ import static android.app.WallpaperManager.FLAG_SYSTEM;
 import android.annotation.SuppressLint;
 import android.app.WallpaperManager;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.os.AsyncTask;
-import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.android.wallpaper.R;
-import com.android.wallpaper.asset.BitmapUtils;
 import com.android.wallpaper.model.LiveWallpaperMetadata;
 import com.android.wallpaper.model.WallpaperMetadata;
 
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -53,6 +45,7 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
     private final WallpaperPreferences mWallpaperPreferences;
     private final WallpaperManager mWallpaperManager;
     private final WallpaperStatusChecker mWallpaperStatusChecker;
+    private final WallpaperFingerprinter mFingerprinter;
 
     /**
      * @param context The application's context.
@@ -67,6 +60,8 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
         // Retrieve WallpaperManager using Context#getSystemService instead of
         // WallpaperManager#getInstance so it can be mocked out in test.
         mWallpaperManager = (WallpaperManager) context.getSystemService(Context.WALLPAPER_SERVICE);
+        mFingerprinter = new WallpaperFingerprinter(mWallpaperManager,
+                WallpaperIdCache.getInstance(mAppContext));
     }
 
     @Override
@@ -84,8 +79,6 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
         private final RefreshListener mListener;
         private final WallpaperManager mWallpaperManager;
 
-        private long mCurrentHomeWallpaperHashCode;
-        private long mCurrentLockWallpaperHashCode;
         private String mSystemWallpaperServiceName;
 
         @SuppressLint("ServiceCast")
@@ -227,71 +220,6 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
                     && homeScreenAttributions.get(2) == null;
         }
 
-        private long getCurrentHomeWallpaperHashCode() {
-            if (mCurrentHomeWallpaperHashCode == 0) {
-                BitmapDrawable wallpaperDrawable = (BitmapDrawable) mWallpaperManager.getDrawable();
-                // wallpaperDrawable should always be non-null, unless if there's a error in
-                // WallpaperManager's state, in which case we'll consider the hashcode as unset.
-                Bitmap wallpaperBitmap = wallpaperDrawable != null ? wallpaperDrawable.getBitmap()
-                        : null;
-                mCurrentHomeWallpaperHashCode =
-                        wallpaperBitmap != null ? BitmapUtils.generateHashCode(wallpaperBitmap) : 0;
-
-                // Manually request that WallpaperManager loses its reference to the current
-                // wallpaper bitmap, which can occupy a large memory allocation for the lifetime of
-                // the app.
-                mWallpaperManager.forgetLoadedWallpaper();
-            }
-            return mCurrentHomeWallpaperHashCode;
-        }
-
-        private long getCurrentLockWallpaperHashCode() {
-            if (mCurrentLockWallpaperHashCode == 0
-                    && mWallpaperStatusChecker.isLockWallpaperSet()) {
-                Bitmap wallpaperBitmap = getLockWallpaperBitmap();
-                // If isLockWallpaperSet() returned true, wallpaperBitmap should always be
-                // non-null, unless if there's a error in WallpaperManager, in which case we'll
-                // consider the hashcode as unset.
-                mCurrentLockWallpaperHashCode =
-                        wallpaperBitmap != null ? BitmapUtils.generateHashCode(wallpaperBitmap) : 0;
-            }
-            return mCurrentLockWallpaperHashCode;
-        }
-
-        /**
-         * Returns the lock screen wallpaper currently set on the device as a Bitmap, or null if no
-         * lock screen wallpaper is set.
-         */
-        private Bitmap getLockWallpaperBitmap() {
-            Bitmap lockBitmap = null;
-
-            ParcelFileDescriptor pfd = mWallpaperManager.getWallpaperFile(FLAG_LOCK);
-            // getWallpaperFile returns null if the lock screen isn't explicitly set, so need this
-            // check.
-            if (pfd != null) {
-                InputStream fileStream = null;
-                try {
-                    fileStream = new FileInputStream(pfd.getFileDescriptor());
-                    lockBitmap = BitmapFactory.decodeStream(fileStream);
-                    pfd.close();
-                    return lockBitmap;
-                } catch (IOException e) {
-                    Log.e(TAG, "IO exception when closing the file descriptor.");
-                } finally {
-                    if (fileStream != null) {
-                        try {
-                            fileStream.close();
-                        } catch (IOException e) {
-                            Log.e(TAG,
-                                    "IO exception when closing input stream for lock screen WP.");
-                        }
-                    }
-                }
-            }
-
-            return lockBitmap;
-        }
-
         /**
          * Returns whether the image wallpaper set to the system matches the metadata in
          * WallpaperPreferences.
@@ -326,17 +254,28 @@ public class DefaultWallpaperRefresher implements WallpaperRefresher {
          * WallpaperPreferences.
          */
         private boolean isLockScreenImageWallpaperCurrent() {
-            // Check for lock wallpaper image same-ness only when there is no stored lock wallpaper
-            // hash code. Otherwise if there is a lock wallpaper hash code stored in
-            // {@link WallpaperPreferences}, then check hash codes.
+            // A matching WallpaperManager ID identifies the lock wallpaper on this device.
+            // Otherwise, e.g. after a restore from another device, fall back to comparing the
+            // wallpaper file's fingerprint with the hash code stored in WallpaperPreferences.
+            if (mWallpaperPreferences.getLockWallpaperManagerId()
+                    == mWallpaperManager.getWallpaperId(FLAG_LOCK)) {
+                return true;
+            }
+            if (!mWallpaperStatusChecker.isLockWallpaperSet()) {
+                return false;
+            }
             long savedLockWallpaperHash = mWallpaperPreferences.getLockWallpaperHashCode();
-
-            if (savedLockWallpaperHash == 0) {
-                return mWallpaperPreferences.getLockWallpaperManagerId()
-                        == mWallpaperManager.getWallpaperId(FLAG_LOCK);
-            } else {
-                return savedLockWallpaperHash == getCurrentLockWallpaperHashCode();
+            long currentLockWallpaperHash =
+                    mFingerprinter.matchHashCode(savedLockWallpaperHash, FLAG_LOCK);
+            if (currentLockWallpaperHash == WallpaperFingerprinter.UNKNOWN_HASH_CODE) {
+                return false;
+            }
+            // Replace a hash code generated from decoded pixels, so that the next check doesn't
+            // have to decode the wallpaper again.
+            if (currentLockWallpaperHash != savedLockWallpaperHash) {
+                mWallpaperPreferences.setLockWallpaperHashCode(currentLockWallpaperHash);
             }
+            return true;
         }
 
         /**
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.app.WallpaperManager
+import android.graphics.Bitmap
+import android.graphics.Point
+import android.graphics.Rect
+import android.os.SystemClock
+import com.android.wallpaper.asset.Asset
+import com.android.wallpaper.asset.StreamableAsset
+import com.android.wallpaper.asset.awaitDecodeBitmap
+import com.android.wallpaper.asset.awaitDecodeRawDimensions
+import com.android.wallpaper.model.WallpaperInfo
+import com.android.wallpaper.module.WallpaperPersister.Destination
+import com.android.wallpaper.module.WallpaperPersister.SetWallpaperCallback
+import com.android.wallpaper.util.DisplayUtils
+import com.android.wallpaper.util.ScreenSizeCalculator
+import java.io.InputStream
+import kotlin.coroutines.cancellation.CancellationException
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.FlowCollector
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withContext
+
+/** A stage of setting a static wallpaper, in the order [SetWallpaperPipeline] runs them. */
+enum class SetWallpaperStage {
+    /** Decoding the source image, or opening its stream if it's set as is. */
+    DECODE,
+    /** Decoding the region of the crop at exactly its size. */
+    CROP,
+    /** Applying a fill or stretch transformation. */
+    TRANSFORM,
+    /** Encoding the bitmap to hand it to WallpaperManager. */
+    ENCODE,
+    /** Writing the wallpaper to WallpaperManager. Not cancellable from here on. */
+    WRITE,
+    /** Saving the wallpaper's metadata, hash and colors. */
+    METADATA,
+}
+
+/** Progress of [WallpaperPersister.setIndividualWallpaperWithProgress]. */
+sealed interface SetWallpaperProgress {
+    /** A stage finished; stages which don't apply to the wallpaper are skipped. */
+    data class StageCompleted(val stage: SetWallpaperStage, val durationMillis: Long) :
+        SetWallpaperProgress
+
+    /** The wallpaper was set with the given WallpaperManager ID. Always the last emission. */
+    data class Succeeded(
+        val wallpaperId: Int,
+        val stageDurationsMillis: Map<SetWallpaperStage, Long>,
+    ) : SetWallpaperProgress
+
+    /**
+     * The given stage failed, with the exception it threw if any, e.g. none when the image
+     * couldn't be decoded. Always the last emission.
+     */
+    data class Failed(val stage: SetWallpaperStage, val cause: Throwable? = null) :
+        SetWallpaperProgress
+}
+
+/**
+ * Sets static wallpapers for [DefaultWallpaperPersister], reporting the progress and duration of
+ * each [SetWallpaperStage] so that the UI can show it and slow applies can be attributed to a
+ * stage.
+ *
+ * Cancelling the collection cancels the apply as long as [SetWallpaperStage.WRITE] hasn't started;
+ * once it has, writing the wallpaper and its metadata always runs to completion so that they don't
+ * get out of sync.
+ */
+class SetWallpaperPipeline(
+    private val persister: DefaultWallpaperPersister,
+    private val wallpaperManager: WallpaperManager,
+    private val bitmapCropper: BitmapCropper,
+    private val screenSizeProvider: () -> Point,
+    private val bgDispatcher: CoroutineDispatcher,
+    private val mainDispatcher: CoroutineDispatcher,
+) {
+
+    /**
+     * Sets a static wallpaper with the parameters of
+     * [WallpaperPersister.setIndividualWallpaperWithProgress], emitting its progress.
+     */
+    fun setIndividualWallpaper(
+        wallpaper: WallpaperInfo,
+        asset: Asset,
+        cropRect: Rect?,
+        scale: Float,
+        @Destination destination: Int,
+    ): Flow<SetWallpaperProgress> =
+        flow {
+                val durations = linkedMapOf<SetWallpaperStage, Long>()
+                val task =
+                    try {
+                        decodeAndCrop(wallpaper, asset, cropRect, scale, destination, durations)
+                    } catch (e: StageFailedException) {
+                        emit(SetWallpaperProgress.Failed(e.stage, e.cause))
+                        return@flow
+                    }
+                try {
+                    runStage(SetWallpaperStage.TRANSFORM, durations) {
+                        task.prepare()
+                        task.transform()
+                    }
+                    runStage(SetWallpaperStage.ENCODE, durations) { task.encode() }
+                    currentCoroutineContext().ensureActive()
+
+                    // Past this point the apply can't be cancelled anymore.
+                    val wallpaperId =
+                        withContext(NonCancellable) {
+                            val id =
+                                timed(SetWallpaperStage.WRITE, durations) {
+                                    task.write().takeIf { it > 0 }
+                                        ?: throw StageFailedException(SetWallpaperStage.WRITE)
+                                }
+                            try {
+                                timed(SetWallpaperStage.METADATA, durations) {
+                                    task.saveMetadata(id)
+                                }
+                            } finally {
+                                // The wallpaper changed even if its metadata couldn't be saved.
+                                withContext(mainDispatcher) { persister.notifyWallpaperChanged() }
+                            }
+                            id
+                        }
+                    emitCompleted(SetWallpaperStage.WRITE, durations)
+                    emitCompleted(SetWallpaperStage.METADATA, durations)
+                    emit(SetWallpaperProgress.Succeeded(wallpaperId, durations.toMap()))
+                } catch (e: StageFailedException) {
+                    if (e.stage == SetWallpaperStage.METADATA) {
+                        emitCompleted(SetWallpaperStage.WRITE, durations)
+                    }
+                    emit(SetWallpaperProgress.Failed(e.stage, e.cause))
+                } finally {
+                    task.release()
+                }
+            }
+            .flowOn(bgDispatcher)
+
+    /**
+     * Sets a static wallpaper like [setIndividualWallpaper] does, collecting its progress in the
+     * given scope and reporting its outcome to the given callback on the main thread.
+     *
+     * @return The job collecting the progress, cancelling which cancels the apply the same way.
+     */
+    fun setIndividualWallpaper(
+        wallpaper: WallpaperInfo,
+        asset: Asset,
+        cropRect: Rect?,
+        scale: Float,
+        @Destination destination: Int,
+        scope: CoroutineScope,
+        callback: SetWallpaperCallback,
+    ): Job =
+        scope.launch(mainDispatcher) {
+            val progress = setIndividualWallpaper(wallpaper, asset, cropRect, scale, destination)
+            progress.collect {
+                when (it) {
+                    is SetWallpaperProgress.Succeeded -> callback.onSuccess(wallpaper, destination)
+                    is SetWallpaperProgress.Failed -> callback.onError(it.cause)
+                    is SetWallpaperProgress.StageCompleted -> {}
+                }
+            }
+        }
+
+    /**
+     * Runs [SetWallpaperStage.DECODE] and, if the image needs cropping, [SetWallpaperStage.CROP],
+     * picking the path which reads the least of the image. Returns the task to set the result
+     * with, or throws [StageFailedException] if the image couldn't be read.
+     */
+    private suspend fun FlowCollector<SetWallpaperProgress>.decodeAndCrop(
+        wallpaper: WallpaperInfo,
+        asset: Asset,
+        cropRect: Rect?,
+        scale: Float,
+        @Destination destination: Int,
+        durations: MutableMap<SetWallpaperStage, Long>,
+    ): DefaultWallpaperPersister.SetWallpaperTask {
+        val isMultiCropEnabled = wallpaperManager.isMultiCropEnabled
+        if (asset is StreamableAsset && (cropRect == null || isMultiCropEnabled)) {
+            // Set the stream as is, letting WallpaperManager crop it if there's a crop.
+            val stream =
+                runRequiredStage(SetWallpaperStage.DECODE, durations) { asset.awaitInputStream() }
+            return persister.newSetWallpaperTask(wallpaper, stream, cropRect, destination)
+        }
+
+        if (isMultiCropEnabled) {
+            // Let WallpaperManager crop the full image.
+            val bitmap =
+                runRequiredStage(SetWallpaperStage.DECODE, durations) { asset.awaitDecodeBitmap() }
+            return persister.newSetWallpaperTask(wallpaper, bitmap, cropRect, destination)
+        }
+
+        if (cropRect == null) {
+            // Without a crop, fall back to the size of the display.
+            val screenSize = screenSizeProvider()
+            val bitmap =
+                runRequiredStage(SetWallpaperStage.DECODE, durations) {
+                    asset.awaitDecodeBitmap(screenSize.x, screenSize.y)
+                }
+            return persister.newSetWallpaperTask(wallpaper, bitmap, null, destination)
+        }
+
+        if (asset is StreamableAsset) {
+            val dimensions =
+                runStage(SetWallpaperStage.DECODE, durations) { asset.awaitDecodeRawDimensions() }
+            if (DefaultWallpaperPersister.isFullImageCrop(cropRect, scale, dimensions)) {
+                // If the crop keeps the whole image at its original size, the original encoded
+                // stream already is the result, so skip decoding and encoding it again.
+                val stream =
+                    runRequiredStage(SetWallpaperStage.DECODE, durations) {
+                        asset.awaitInputStream()
+                    }
+                return persister.newSetWallpaperTask(wallpaper, stream, null, destination)
+            }
+        }
+
+        val cropped =
+            runRequiredStage(SetWallpaperStage.CROP, durations) {
+                bitmapCropper.awaitCropAndScaleBitmap(asset, scale, cropRect)
+            }
+        return persister.newSetWallpaperTask(wallpaper, cropped, null, destination)
+    }
+
+    /** Runs a stage, records its duration and emits its completion. */
+    private suspend fun <T> FlowCollector<SetWallpaperProgress>.runStage(
+        stage: SetWallpaperStage,
+        durations: MutableMap<SetWallpaperStage, Long>,
+        block: suspend () -> T,
+    ): T {
+        val result = timed(stage, durations, block)
+        emitCompleted(stage, durations)
+        return result
+    }
+
+    /** Like [runStage], but fails the stage if it has no result. */
+    private suspend fun <T : Any> FlowCollector<SetWallpaperProgress>.runRequiredStage(
+        stage: SetWallpaperStage,
+        durations: MutableMap<SetWallpaperStage, Long>,
+        block: suspend () -> T?,
+    ): T = runStage(stage, durations) { block() ?: throw StageFailedException(stage) }
+
+    private suspend fun FlowCollector<SetWallpaperProgress>.emitCompleted(
+        stage: SetWallpaperStage,
+        durations: Map<SetWallpaperStage, Long>,
+    ) {
+        emit(SetWallpaperProgress.StageCompleted(stage, durations.getValue(stage)))
+    }
+
+    /**
+     * Runs a stage and adds its duration to the ones recorded for it. Wraps what the stage throws,
+     * other than cancellation, into a [StageFailedException] for it.
+     */
+    private suspend fun <T> timed(
+        stage: SetWallpaperStage,
+        durations: MutableMap<SetWallpaperStage, Long>,
+        block: suspend () -> T,
+    ): T {
+        val startTime = SystemClock.elapsedRealtime()
+        try {
+            return block()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: StageFailedException) {
+            throw e
+        } catch (e: Exception) {
+            throw StageFailedException(stage, e)
+        } finally {
+            durations.merge(stage, SystemClock.elapsedRealtime() - startTime, Long::plus)
+        }
+    }
+
+    /** Thrown by a stage which failed, to end the apply with [SetWallpaperProgress.Failed]. */
+    private class StageFailedException(val stage: SetWallpaperStage, cause: Throwable? = null) :
+        Exception(cause)
+
+    companion object {
+        /** Returns a pipeline for the given persister using the device's wallpaper display. */
+        @JvmStatic
+        fun create(
+            persister: DefaultWallpaperPersister,
+            wallpaperManager: WallpaperManager,
+            bitmapCropper: BitmapCropper,
+            displayUtils: DisplayUtils,
+            bgDispatcher: CoroutineDispatcher,
+            mainDispatcher: CoroutineDispatcher,
+        ): SetWallpaperPipeline =
+            SetWallpaperPipeline(
+                persister,
+                wallpaperManager,
+                bitmapCropper,
+                {
+                    ScreenSizeCalculator.getInstance()
+                        .getScreenSize(displayUtils.getWallpaperDisplay())
+                },
+                bgDispatcher,
+                mainDispatcher,
+            )
+    }
+}
+
+/**
+ * Suspending variant of [BitmapCropper.cropAndScaleBitmap]. The crop isn't cancellable, so
+ * cancelling the calling coroutine resumes it right away and drops the result.
+ */
+private suspend fun BitmapCropper.awaitCropAndScaleBitmap(
+    asset: Asset,
+    scale: Float,
+    cropRect: Rect,
+): Bitmap? = suspendCancellableCoroutine { continuation ->
+    cropAndScaleBitmap(
+        asset,
+        scale,
+        cropRect,
+        /* adjustForRtl= */ false,
+        object : BitmapCropper.Callback {
+            override fun onBitmapCropped(croppedBitmap: Bitmap) {
+                continuation.resume(croppedBitmap)
+            }
+
+            override fun onError(e: Throwable?) {
+                if (e != null) {
+                    continuation.resumeWithException(e)
+                } else {
+                    continuation.resume(null)
+                }
+            }
+        }
+    )
+}
+
+private suspend fun StreamableAsset.awaitInputStream(): InputStream? =
+    suspendCancellableCoroutine { continuation ->
+        fetchInputStream { stream ->
+            if (continuation.isActive) {
+                continuation.resume(stream)
+            } else {
+                // Nobody is going to set the stream anymore.
+                stream?.close()
+            }
+        }
+    }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.util.Log;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream which copies the bytes read through it into a spool stream, so that a wallpaper
+ * handed to WallpaperManager as a stream can be previewed afterwards without reading it back from
+ * the system.
+ *
+ * <p>Failing to write the spool doesn't fail reads, the spool is just reported incomplete. Closing
+ * this stream doesn't close the wrapped stream, which stays owned by the caller.
+ */
+final class SpoolingInputStream extends FilterInputStream {
+    private static final String TAG = "SpoolingInputStream";
+
+    private final OutputStream mSpool;
+    private boolean mSpoolFailed;
+    private boolean mReachedEnd;
+
+    SpoolingInputStream(InputStream in, OutputStream spool) {
+        super(in);
+        mSpool = spool;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            mReachedEnd = true;
+        } else {
+            spool(new byte[] {(byte) b}, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = in.read(b, off, len);
+        if (count == -1) {
+            mReachedEnd = true;
+        } else if (count > 0) {
+            spool(b, off, count);
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes still have to be spooled, so read them instead.
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (count == -1) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        // Rereading marked bytes would spool them twice.
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Flushes and closes the spool, leaving the wrapped stream open.
+     */
+    @Override
+    public void close() {
+        try {
+            mSpool.close();
+        } catch (IOException e) {
+            Log.w(TAG, "unable to close the spool", e);
+            mSpoolFailed = true;
+        }
+    }
+
+    /**
+     * Returns whether the whole stream has been read and copied into the spool.
+     */
+    boolean isSpoolComplete() {
+        return mReachedEnd && !mSpoolFailed;
+    }
+
+    private void spool(byte[] b, int off, int len) {
+        if (mSpoolFailed) {
+            return;
+        }
+        try {
+            mSpool.write(b, off, len);
+        } catch (IOException e) {
+            Log.w(TAG, "unable to spool the stream", e);
+            mSpoolFailed = true;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Wall clock durations of the named stages of applying a wallpaper, which are also marked as
+ * trace sections. Stages may be measured from several threads at once.
+ */
+final class StageTimings {
+    static final long NOT_MEASURED = -1;
+
+    private final Map<String, Long> mDurations = new LinkedHashMap<>();
+
+    /**
+     * Runs the given stage on the calling thread and records how long it took.
+     */
+    void measure(String stage, Runnable work) {
+        measure(stage, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs the given stage on the calling thread, records how long it took and returns its result.
+     */
+    <T> T measure(String stage, Supplier<T> work) {
+        Trace.beginSection(stage);
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            return work.get();
+        } finally {
+            record(stage, SystemClock.elapsedRealtime() - startTime);
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Returns how long the given stage took in milliseconds, summed over its runs, or
+     * {@link #NOT_MEASURED}.
+     */
+    synchronized long getMillis(String stage) {
+        Long millis = mDurations.get(stage);
+        return millis != null ? millis : NOT_MEASURED;
+    }
+
+    private synchronized void record(String stage, long millis) {
+        mDurations.merge(stage, millis, Long::sum);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : mDurations.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(entry.getKey()).append('=').append(entry.getValue()).append("ms");
+        }
+        return builder.toString();
+    }
+}
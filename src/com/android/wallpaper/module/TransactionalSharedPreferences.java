@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SharedPreferences which can stage the changes made by a thread in a transaction, and write them
+ * all at once when the transaction ends, as a single {@link SharedPreferences.Editor#apply}.
+ *
+ * <p>Outside of a transaction, and on other threads than the one which began it, this behaves
+ * exactly like the SharedPreferences it wraps. Within one, editors stage their changes instead of
+ * writing them, and reads return the staged values, so code making a series of changes doesn't
+ * need to know that they're part of a transaction.
+ */
+class TransactionalSharedPreferences implements SharedPreferences {
+
+    /** Staged value of a key which was removed. */
+    private static final Object REMOVED = new Object();
+
+    private final SharedPreferences mPrefs;
+    private final ThreadLocal<Transaction> mTransaction = new ThreadLocal<>();
+
+    TransactionalSharedPreferences(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    /**
+     * Begins a transaction on the calling thread, unless one is open already.
+     *
+     * @return Whether a transaction was begun, which the caller then needs to end.
+     */
+    boolean beginTransaction() {
+        if (mTransaction.get() != null) {
+            return false;
+        }
+        mTransaction.set(new Transaction());
+        return true;
+    }
+
+    /**
+     * Ends the calling thread's transaction and writes its changes, if there are any, in a single
+     * write. The write is synchronous if a change was committed rather than applied.
+     */
+    void endTransaction() {
+        Transaction transaction = mTransaction.get();
+        mTransaction.remove();
+        if (transaction == null || (!transaction.mIsCleared && transaction.mChanges.isEmpty())) {
+            return;
+        }
+
+        Editor editor = mPrefs.edit();
+        if (transaction.mIsCleared) {
+            editor.clear();
+        }
+        for (Map.Entry<String, Object> change : transaction.mChanges.entrySet()) {
+            putValue(editor, change.getKey(), change.getValue());
+        }
+        if (transaction.mIsCommitRequested) {
+            editor.commit();
+        } else {
+            editor.apply();
+        }
+    }
+
+    /**
+     * Ends the calling thread's transaction without writing its changes.
+     */
+    void abortTransaction() {
+        mTransaction.remove();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putValue(Editor editor, String key, Object value) {
+        if (value == REMOVED) {
+            editor.remove(key);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else {
+            editor.putStringSet(key, (Set<String>) value);
+        }
+    }
+
+    /**
+     * Returns the value the calling thread's transaction staged for the given key, which is
+     * {@link #REMOVED} if it was removed, or null if the key wasn't changed by a transaction.
+     */
+    @Nullable
+    private Object getStagedValue(String key) {
+        Transaction transaction = mTransaction.get();
+        if (transaction == null) {
+            return null;
+        }
+        if (transaction.mChanges.containsKey(key)) {
+            return transaction.mChanges.get(key);
+        }
+        return transaction.mIsCleared ? REMOVED : null;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Transaction transaction = mTransaction.get();
+        if (transaction == null) {
+            return mPrefs.getAll();
+        }
+        Map<String, Object> all = new HashMap<>();
+        if (!transaction.mIsCleared) {
+            all.putAll(mPrefs.getAll());
+        }
+        for (Map.Entry<String, Object> change : transaction.mChanges.entrySet()) {
+            if (change.getValue() == REMOVED) {
+                all.remove(change.getKey());
+            } else {
+                all.put(change.getKey(), change.getValue());
+            }
+        }
+        return all;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        Object value = getStagedValue(key);
+        if (value == null) {
+            return mPrefs.getString(key, defValue);
+        }
+        return value != REMOVED ? (String) value : defValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        Object value = getStagedValue(key);
+        if (value == null) {
+            return mPrefs.getStringSet(key, defValues);
+        }
+        return value != REMOVED ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = getStagedValue(key);
+        if (value == null) {
+            return mPrefs.getInt(key, defValue);
+        }
+        return value != REMOVED ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = getStagedValue(key);
+        if (value == null) {
+            return mPrefs.getLong(key, defValue);
+        }
+        return value != REMOVED ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = getStagedValue(key);
+        if (value == null) {
+            return mPrefs.getFloat(key, defValue);
+        }
+        return value != REMOVED ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = getStagedValue(key);
+        if (value == null) {
+            return mPrefs.getBoolean(key, defValue);
+        }
+        return value != REMOVED ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        Object value = getStagedValue(key);
+        if (value == null) {
+            return mPrefs.contains(key);
+        }
+        return value != REMOVED;
+    }
+
+    @Override
+    public Editor edit() {
+        Transaction transaction = mTransaction.get();
+        return transaction != null ? new StagingEditor(transaction) : mPrefs.edit();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        mPrefs.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        mPrefs.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Changes staged by a thread since it began a transaction, which replace the values of the
+     * wrapped SharedPreferences once it ends.
+     */
+    private static final class Transaction {
+        final Map<String, Object> mChanges = new HashMap<>();
+        boolean mIsCleared;
+        boolean mIsCommitRequested;
+    }
+
+    /**
+     * Editor which stages its changes in a transaction once applied or committed, with the same
+     * semantics as a regular editor: a clear comes before the other changes, whatever their order.
+     */
+    private static final class StagingEditor implements Editor {
+        private final Transaction mTransaction;
+        private final Map<String, Object> mChanges = new HashMap<>();
+        private boolean mIsCleared;
+
+        StagingEditor(Transaction transaction) {
+            mTransaction = transaction;
+        }
+
+        private Editor stage(String key, @Nullable Object value) {
+            // Putting null is the same as removing the key.
+            mChanges.put(key, value != null ? value : REMOVED);
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            return stage(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            return stage(key, values);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return stage(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return stage(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return stage(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return stage(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return stage(key, REMOVED);
+        }
+
+        @Override
+        public Editor clear() {
+            mIsCleared = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            apply();
+            mTransaction.mIsCommitRequested = true;
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            if (mIsCleared) {
+                mTransaction.mChanges.clear();
+                mTransaction.mIsCleared = true;
+            }
+            mTransaction.mChanges.putAll(mChanges);
+            mChanges.clear();
+            mIsCleared = false;
+        }
+    }
+}
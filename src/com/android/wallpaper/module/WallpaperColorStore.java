@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.app.WallpaperColors;
+import android.content.Context;
+import android.graphics.Color;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.wallpaper.asset.DecodeScheduler;
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persisted colors of the wallpapers previewed most recently, keyed by their stored wallpaper ID,
+ * so that a preview can show them before the wallpaper is decoded.
+ *
+ * <p>At most {@link #MAX_ENTRIES} wallpapers are kept, evicting the least recently used. They're
+ * stored in a small binary file of their own, which is loaded in the background as soon as the
+ * store is created and written in the background after changes, unlike preferences which would
+ * keep growing with every wallpaper previewed and be loaded whole at startup.
+ *
+ * <p>Colors are keyed by stored wallpaper ID only, not by a fingerprint of the wallpaper's content:
+ * a preview has no fingerprint of its asset without reading it, which is what the store saves. So
+ * the colors stored for an ID are assumed to stay valid as long as they're kept. The colors of the
+ * wallpapers currently set are cached apart, by {@link WallpaperIdCache}.
+ */
+public class WallpaperColorStore {
+    private static final String TAG = "WallpaperColorStore";
+
+    @VisibleForTesting
+    static final String FILE_NAME = "wallpaper_colors";
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 64;
+
+    private static final int FORMAT_VERSION = 1;
+    /** Longest wallpaper ID stored, far longer than any actual one. */
+    private static final int MAX_ID_LENGTH = 512;
+
+    private static final Object sInstanceLock = new Object();
+    private static WallpaperColorStore sInstance;
+
+    private final AtomicFile mFile;
+    private final AtomicBoolean mIsWriteScheduled = new AtomicBoolean();
+    private final FutureTask<?> mLoad;
+    // Colors as ARGB ints, from the least to the most recently used.
+    private final LinkedHashMap<String, int[]> mColors =
+            new LinkedHashMap<String, int[]>(/* initialCapacity= */ 16, /* loadFactor= */ 0.75f,
+                    /* accessOrder= */ true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    @VisibleForTesting
+    WallpaperColorStore(File file) {
+        mFile = new AtomicFile(file);
+        mLoad = new FutureTask<>(this::load, /* result= */ null);
+        DecodeScheduler.getInstance().execute(Priority.COLOR_EXTRACTION, mLoad);
+    }
+
+    /**
+     * Returns the store of the app, which starts loading in the background when first requested.
+     */
+    public static WallpaperColorStore getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new WallpaperColorStore(new File(
+                        context.getApplicationContext().getNoBackupFilesDir(), FILE_NAME));
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Returns the colors stored for the wallpaper with the given ID, or null if there are none.
+     * Waits for the store to be loaded if it isn't yet.
+     */
+    @Nullable
+    public WallpaperColors get(String wallpaperId) {
+        awaitLoad();
+        int[] colors;
+        synchronized (mColors) {
+            colors = mColors.get(wallpaperId);
+        }
+        if (colors == null) {
+            return null;
+        }
+        return new WallpaperColors(
+                Color.valueOf(colors[0]),
+                colors.length >= 2 ? Color.valueOf(colors[1]) : null,
+                colors.length >= 3 ? Color.valueOf(colors[2]) : null,
+                WallpaperColors.HINT_FROM_BITMAP);
+    }
+
+    /**
+     * Stores the colors of the wallpaper with the given ID, evicting the colors of the least
+     * recently used wallpaper if the store is full. The store is written in the background.
+     */
+    public void put(String wallpaperId, WallpaperColors colors) {
+        if (wallpaperId.length() > MAX_ID_LENGTH) {
+            Log.w(TAG, "Not storing the colors of a wallpaper with an unexpectedly long ID");
+            return;
+        }
+        awaitLoad();
+        synchronized (mColors) {
+            mColors.put(wallpaperId, toArgb(colors));
+        }
+        // A write scheduled already but not started yet writes these colors as well.
+        if (mIsWriteScheduled.compareAndSet(false, true)) {
+            DecodeScheduler.getInstance().execute(Priority.COLOR_EXTRACTION, () -> {
+                mIsWriteScheduled.set(false);
+                write();
+            });
+        }
+    }
+
+    /**
+     * Writes the store on the calling thread instead of waiting for the scheduled write, so that
+     * a new store of the same file reads the colors back.
+     */
+    @VisibleForTesting
+    void writeNow() {
+        write();
+    }
+
+    private static int[] toArgb(WallpaperColors colors) {
+        Color secondaryColor = colors.getSecondaryColor();
+        Color tertiaryColor = secondaryColor != null ? colors.getTertiaryColor() : null;
+        int count = tertiaryColor != null ? 3 : secondaryColor != null ? 2 : 1;
+        int[] argb = new int[count];
+        argb[0] = colors.getPrimaryColor().toArgb();
+        if (secondaryColor != null) {
+            argb[1] = secondaryColor.toArgb();
+        }
+        if (tertiaryColor != null) {
+            argb[2] = tertiaryColor.toArgb();
+        }
+        return argb;
+    }
+
+    private void awaitLoad() {
+        // Loads the store right away if the scheduler didn't start to yet, rather than waiting
+        // behind the tasks which may be waiting for it.
+        mLoad.run();
+        try {
+            mLoad.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Unable to load wallpaper colors", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads the file, which holds the format version and the number of entries followed by the
+     * entries from the least to the most recently used: wallpaper ID, number of colors and colors.
+     */
+    private void load() {
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(mFile.openRead()))) {
+            if (input.readInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Ignoring wallpaper colors stored in an unknown format");
+                return;
+            }
+            int count = input.readInt();
+            synchronized (mColors) {
+                for (int i = 0; i < count; i++) {
+                    String wallpaperId = input.readUTF();
+                    int[] colors = new int[input.readUnsignedByte()];
+                    for (int j = 0; j < colors.length; j++) {
+                        colors[j] = input.readInt();
+                    }
+                    if (colors.length > 0) {
+                        mColors.put(wallpaperId, colors);
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No colors were stored yet.
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read wallpaper colors", e);
+            synchronized (mColors) {
+                mColors.clear();
+            }
+        }
+    }
+
+    // Writes run one at a time, as a write may be scheduled while the previous one is running.
+    private synchronized void write() {
+        List<Map.Entry<String, int[]>> entries;
+        synchronized (mColors) {
+            entries = new ArrayList<>(mColors.size());
+            // Iterating doesn't count as an access, so the order is kept.
+            for (Map.Entry<String, int[]> entry : mColors.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(entries.size());
+            for (Map.Entry<String, int[]> entry : entries) {
+                output.writeUTF(entry.getKey());
+                output.writeByte(entry.getValue().length);
+                for (int color : entry.getValue()) {
+                    output.writeInt(color);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to serialize wallpaper colors", e);
+            return;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = mFile.startWrite();
+            bytes.writeTo(stream);
+            mFile.finishWrite(stream);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write wallpaper colors", e);
+            if (stream != null) {
+                mFile.failWrite(stream);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+import java.io.OutputStream;
+
+/**
+ * Format in which a static wallpaper bitmap is encoded before it is handed to the
+ * WallpaperManager.
+ */
+public final class WallpaperEncodeFormat {
+    private static final int LOSSLESS_QUALITY = 100;
+
+    /** Lossless PNG, which is slow to encode and large but supported everywhere. */
+    public static final WallpaperEncodeFormat PNG =
+            new WallpaperEncodeFormat(CompressFormat.PNG, LOSSLESS_QUALITY);
+
+    /** Lossless WebP, usually noticeably smaller than PNG for photos. */
+    public static final WallpaperEncodeFormat WEBP_LOSSLESS =
+            new WallpaperEncodeFormat(CompressFormat.WEBP_LOSSLESS, LOSSLESS_QUALITY);
+
+    private final CompressFormat mCompressFormat;
+    private final int mQuality;
+
+    private WallpaperEncodeFormat(CompressFormat compressFormat, int quality) {
+        mCompressFormat = compressFormat;
+        mQuality = quality;
+    }
+
+    /**
+     * Returns a lossy WebP format with the given quality, from 0 to 100.
+     */
+    public static WallpaperEncodeFormat lossy(int quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be between 0 and 100: " + quality);
+        }
+        return new WallpaperEncodeFormat(CompressFormat.WEBP_LOSSY, quality);
+    }
+
+    public CompressFormat getCompressFormat() {
+        return mCompressFormat;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Returns whether decoding the encoded bitmap gives back exactly the same pixels.
+     */
+    public boolean isLossless() {
+        return mCompressFormat != CompressFormat.WEBP_LOSSY;
+    }
+
+    /**
+     * Encodes the given bitmap to the given stream, returning whether that succeeded.
+     */
+    public boolean encode(Bitmap bitmap, OutputStream outputStream) {
+        return bitmap.compress(mCompressFormat, mQuality, outputStream);
+    }
+
+    @Override
+    public String toString() {
+        return isLossless() ? mCompressFormat.name() : mCompressFormat.name() + "@" + mQuality;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import static android.app.WallpaperManager.SetWallpaperFlags;
+
+import androidx.annotation.IntDef;
+
+/**
+ * Interface for classes which choose the {@link WallpaperEncodeFormat} a static wallpaper is
+ * encoded in, e.g. to trade some quality for speed when wallpapers rotate in the background.
+ */
+public interface WallpaperEncodePolicy {
+
+    /** The user picked and applied the wallpaper. */
+    int SOURCE_USER_SELECTED = 0;
+    /** The wallpaper was set in the background by daily rotation. */
+    int SOURCE_DAILY_ROTATION = 1;
+
+    /**
+     * Returns the format to encode a wallpaper set from the given source to the given wallpaper
+     * flags in.
+     */
+    WallpaperEncodeFormat getEncodeFormat(@SetWallpaperFlags int whichWallpaper,
+            @Source int source);
+
+    /**
+     * Possible sources of a wallpaper being set.
+     */
+    @IntDef({
+            SOURCE_USER_SELECTED,
+            SOURCE_DAILY_ROTATION})
+    @interface Source {
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import static android.app.WallpaperManager.FLAG_LOCK;
+import static android.app.WallpaperManager.FLAG_SYSTEM;
+
+import android.app.WallpaperManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import com.android.wallpaper.asset.BitmapUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Identifies static wallpapers by a digest of their encoded file, which is read without decoding
+ * it, instead of by {@link BitmapUtils#generateHashCode} which needs the full decoded bitmap.
+ *
+ * <p>Hash codes stored by older versions of the app were generated from decoded pixels. They are
+ * still recognized by {@link #matchHashCode}, which decodes the wallpaper once to compare them and
+ * returns the fingerprint to store in their place from then on.
+ */
+public class WallpaperFingerprinter {
+    private static final String TAG = "WallpaperFingerprinter";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Hash code of a wallpaper which couldn't be identified, same as what wallpaper preferences
+     * use for an unknown hash code.
+     */
+    public static final long UNKNOWN_HASH_CODE = 0;
+
+    private final WallpaperManager mWallpaperManager;
+    @Nullable
+    private final WallpaperIdCache mIdCache;
+    @Nullable
+    private final ReadMonitor mReadMonitor;
+
+    public WallpaperFingerprinter(WallpaperManager wallpaperManager) {
+        this(wallpaperManager, /* idCache= */ null);
+    }
+
+    public WallpaperFingerprinter(WallpaperManager wallpaperManager,
+            @Nullable WallpaperIdCache idCache) {
+        this(wallpaperManager, idCache, /* readMonitor= */ null);
+    }
+
+    /**
+     * @param idCache     Cache to keep fingerprints in for as long as the wallpaper's ID stays
+     *                    the same, or null to read the wallpaper file every time.
+     * @param readMonitor Monitor to count the bytes read with and to stop reading once it's
+     *                    stopped, after which wallpapers which aren't cached are unknown.
+     */
+    public WallpaperFingerprinter(WallpaperManager wallpaperManager,
+            @Nullable WallpaperIdCache idCache, @Nullable ReadMonitor readMonitor) {
+        mWallpaperManager = wallpaperManager;
+        mIdCache = idCache;
+        mReadMonitor = readMonitor;
+    }
+
+    /**
+     * Returns the fingerprint of the file of the wallpaper set to the given destination, or
+     * {@link #UNKNOWN_HASH_CODE} if it has no file of its own or the file can't be read.
+     *
+     * @param which Either {@link WallpaperManager#FLAG_SYSTEM} or
+     *              {@link WallpaperManager#FLAG_LOCK}.
+     */
+    @WorkerThread
+    public long getFingerprint(int which) {
+        if (mIdCache == null) {
+            return readFingerprint(which);
+        }
+        int wallpaperId = mWallpaperManager.getWallpaperId(which);
+        long cachedFingerprint = mIdCache.getHashCode(which, wallpaperId);
+        if (cachedFingerprint != UNKNOWN_HASH_CODE) {
+            return cachedFingerprint;
+        }
+        long fingerprint = readFingerprint(which);
+        // Don't cache the fingerprint under the ID of a wallpaper replaced while it was being read.
+        if (fingerprint != UNKNOWN_HASH_CODE
+                && mWallpaperManager.getWallpaperId(which) == wallpaperId) {
+            mIdCache.putHashCode(which, wallpaperId, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    private long readFingerprint(int which) {
+        ParcelFileDescriptor parcelFd = mWallpaperManager.getWallpaperFile(which);
+        if (parcelFd == null) {
+            return UNKNOWN_HASH_CODE;
+        }
+        try {
+            return fingerprint(new FileInputStream(parcelFd.getFileDescriptor()).getChannel(),
+                    mReadMonitor);
+        } catch (InterruptedIOException e) {
+            Log.d(TAG, "Stopped fingerprinting the wallpaper file");
+            return UNKNOWN_HASH_CODE;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the wallpaper file to fingerprint it", e);
+            return UNKNOWN_HASH_CODE;
+        } finally {
+            try {
+                parcelFd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IO exception when closing the file descriptor.", e);
+            }
+        }
+    }
+
+    /**
+     * Returns the hash code to store for the wallpaper set to the given destination: its
+     * fingerprint or, for a home screen wallpaper without a file such as the default one, the
+     * hash code of its decoded pixels. Returns {@link #UNKNOWN_HASH_CODE} if there's neither.
+     */
+    @WorkerThread
+    public long getHashCode(int which) {
+        long fingerprint = getFingerprint(which);
+        if (fingerprint != UNKNOWN_HASH_CODE || which != FLAG_SYSTEM || isStopped()) {
+            return fingerprint;
+        }
+        return generatePixelHashCode(which);
+    }
+
+    /**
+     * Checks whether the given stored hash code was computed for the wallpaper currently set to
+     * the given destination. If it was, returns the hash code to store for that wallpaper from now
+     * on, which is its fingerprint unless it has no file; it differs from the stored hash code if
+     * that was generated from decoded pixels. Otherwise returns {@link #UNKNOWN_HASH_CODE}.
+     *
+     * <p>Only a hash code which isn't the current fingerprint costs a decode of the wallpaper, so
+     * once the returned hash code has been stored, checking whether it changed doesn't anymore.
+     */
+    @WorkerThread
+    public long matchHashCode(long storedHashCode, int which) {
+        if (storedHashCode == UNKNOWN_HASH_CODE) {
+            return UNKNOWN_HASH_CODE;
+        }
+        long fingerprint = getFingerprint(which);
+        if (fingerprint == storedHashCode) {
+            return fingerprint;
+        }
+        // Either a hash code from an older version of the app or a different wallpaper.
+        if (isStopped() || generatePixelHashCode(which) != storedHashCode) {
+            return UNKNOWN_HASH_CODE;
+        }
+        return fingerprint != UNKNOWN_HASH_CODE ? fingerprint : storedHashCode;
+    }
+
+    /**
+     * Returns the fingerprint of the given file's content.
+     */
+    @WorkerThread
+    public static long fingerprint(File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            return fingerprint(inputStream.getChannel(), /* readMonitor= */ null);
+        }
+    }
+
+    /**
+     * Returns the fingerprint of the content of the given file descriptor, which is read from its
+     * start and left open.
+     */
+    @WorkerThread
+    public static long fingerprint(ParcelFileDescriptor parcelFd) throws IOException {
+        // Closing the stream would close the descriptor, which stays owned by the caller.
+        FileInputStream inputStream = new FileInputStream(parcelFd.getFileDescriptor());
+        return fingerprint(inputStream.getChannel(), /* readMonitor= */ null);
+    }
+
+    /**
+     * @throws InterruptedIOException if the read monitor was stopped before the end of the file.
+     */
+    private static long fingerprint(FileChannel channel, @Nullable ReadMonitor readMonitor)
+            throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        long position = 0;
+        int count;
+        // Positional reads don't depend on where the descriptor was left by an earlier reader.
+        while ((count = channel.read(buffer, position)) != -1) {
+            if (readMonitor != null) {
+                readMonitor.onRead(count);
+                if (readMonitor.isStopped()) {
+                    throw new InterruptedIOException("Stopped after " + position + " bytes");
+                }
+            }
+            position += count;
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return toHashCode(digest.digest());
+    }
+
+    /**
+     * Returns a new digest of the kind fingerprints are built from.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is unavailable", e);
+        }
+    }
+
+    /**
+     * Returns a fingerprint built from the leading bytes of the given digest. Never returns
+     * {@link #UNKNOWN_HASH_CODE}.
+     */
+    private static long toHashCode(byte[] digest) {
+        long hash = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash != UNKNOWN_HASH_CODE ? hash : 1;
+    }
+
+    private boolean isStopped() {
+        return mReadMonitor != null && mReadMonitor.isStopped();
+    }
+
+    /**
+     * Generates the hash code older versions of the app stored for the wallpaper set to the given
+     * destination, by decoding it as they did.
+     */
+    private long generatePixelHashCode(int which) {
+        Bitmap bitmap = which == FLAG_LOCK ? decodeLockWallpaper() : getHomeWallpaperBitmap();
+        return bitmap != null ? BitmapUtils.generateHashCode(bitmap) : UNKNOWN_HASH_CODE;
+    }
+
+    @Nullable
+    private Bitmap getHomeWallpaperBitmap() {
+        Drawable drawable = mWallpaperManager.getDrawable();
+        // Release WallpaperManager's reference to the bitmap, which would otherwise stay in memory
+        // for the lifetime of the app.
+        mWallpaperManager.forgetLoadedWallpaper();
+        return drawable instanceof BitmapDrawable ? ((BitmapDrawable) drawable).getBitmap() : null;
+    }
+
+    @Nullable
+    private Bitmap decodeLockWallpaper() {
+        ParcelFileDescriptor parcelFd = mWallpaperManager.getWallpaperFile(FLAG_LOCK);
+        // getWallpaperFile returns null if the lock screen isn't explicitly set.
+        if (parcelFd == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeFileDescriptor(parcelFd.getFileDescriptor());
+        } finally {
+            try {
+                parcelFd.close();
+            } catch (IOException e) {
+                Log.e(TAG, "IO exception when closing the file descriptor.", e);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read by the fingerprinters it's given to, and stops them from another
+     * thread, e.g. when the job they run in is stopped.
+     */
+    public static final class ReadMonitor {
+        private final AtomicLong mBytesRead = new AtomicLong();
+        private volatile boolean mIsStopped;
+
+        /**
+         * Stops reading wallpapers. A read in progress is abandoned at its next chunk.
+         */
+        public void stop() {
+            mIsStopped = true;
+        }
+
+        public boolean isStopped() {
+            return mIsStopped;
+        }
+
+        /**
+         * Returns the number of bytes of wallpaper files read so far.
+         */
+        public long getBytesRead() {
+            return mBytesRead.get();
+        }
+
+        void onRead(int count) {
+            mBytesRead.addAndGet(count);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module;
+
+import static android.app.WallpaperManager.FLAG_LOCK;
+import static android.app.WallpaperManager.FLAG_SYSTEM;
+
+import android.app.WallpaperColors;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Color;
+import android.graphics.Point;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+/**
+ * Persisted facts about the wallpapers currently set to the home and lock screens, keyed by their
+ * WallpaperManager ID: their hash code, colors and dimensions. A new ID is a new wallpaper, so an
+ * entry stays valid exactly as long as its ID is the current one, and checking that costs a single
+ * {@link android.app.WallpaperManager#getWallpaperId} call instead of reading the wallpaper.
+ *
+ * <p>WallpaperManager IDs are local to the device, so the cache isn't backed up.
+ */
+public class WallpaperIdCache {
+    @VisibleForTesting
+    static final String PREFS_NAME = "wallpaper_id_cache";
+
+    private static final String KEY_PREFIX_HOME = "home_";
+    private static final String KEY_PREFIX_LOCK = "lock_";
+    private static final String KEY_ID = "id";
+    private static final String KEY_HASH_CODE = "hash_code";
+    private static final String KEY_COLORS = "colors";
+    private static final String KEY_COLOR_HINTS = "color_hints";
+    private static final String KEY_WIDTH = "width";
+    private static final String KEY_HEIGHT = "height";
+
+    private static final Object sInstanceLock = new Object();
+    private static WallpaperIdCache sInstance;
+
+    private final SharedPreferences mPrefs;
+
+    @VisibleForTesting
+    WallpaperIdCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the cache shared by everything which identifies the current wallpapers.
+     */
+    public static WallpaperIdCache getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new WallpaperIdCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Returns the hash code cached for the wallpaper with the given ID set to the given
+     * destination, or {@link WallpaperFingerprinter#UNKNOWN_HASH_CODE} if none is, e.g. because
+     * another wallpaper has been set since.
+     *
+     * @param which Either {@link android.app.WallpaperManager#FLAG_SYSTEM} or
+     *              {@link android.app.WallpaperManager#FLAG_LOCK}.
+     */
+    public synchronized long getHashCode(int which, int wallpaperId) {
+        String prefix = getKeyPrefix(which);
+        if (!isCurrent(prefix, wallpaperId)) {
+            return WallpaperFingerprinter.UNKNOWN_HASH_CODE;
+        }
+        return mPrefs.getLong(prefix + KEY_HASH_CODE, WallpaperFingerprinter.UNKNOWN_HASH_CODE);
+    }
+
+    /**
+     * Returns the colors cached for the wallpaper with the given ID set to the given destination,
+     * or null if none are.
+     */
+    @Nullable
+    public synchronized WallpaperColors getColors(int which, int wallpaperId) {
+        String prefix = getKeyPrefix(which);
+        if (!isCurrent(prefix, wallpaperId)) {
+            return null;
+        }
+        return parseColors(mPrefs.getString(prefix + KEY_COLORS, null),
+                mPrefs.getInt(prefix + KEY_COLOR_HINTS, 0));
+    }
+
+    /**
+     * Returns the dimensions cached for the wallpaper with the given ID set to the given
+     * destination, i.e. the size in pixels of the image WallpaperManager stores, or null if none
+     * are.
+     */
+    @Nullable
+    public synchronized Point getDimensions(int which, int wallpaperId) {
+        String prefix = getKeyPrefix(which);
+        if (!isCurrent(prefix, wallpaperId)) {
+            return null;
+        }
+        int width = mPrefs.getInt(prefix + KEY_WIDTH, 0);
+        int height = mPrefs.getInt(prefix + KEY_HEIGHT, 0);
+        return width > 0 && height > 0 ? new Point(width, height) : null;
+    }
+
+    /**
+     * Caches the hash code of the wallpaper with the given ID set to the given destination,
+     * keeping what is already cached for that wallpaper. An entry for the wallpaper that was set
+     * there before is replaced.
+     */
+    public synchronized void putHashCode(int which, int wallpaperId, long hashCode) {
+        if (hashCode == WallpaperFingerprinter.UNKNOWN_HASH_CODE) {
+            return;
+        }
+        SharedPreferences.Editor editor = edit(which, wallpaperId);
+        if (editor != null) {
+            editor.putLong(getKeyPrefix(which) + KEY_HASH_CODE, hashCode).apply();
+        }
+    }
+
+    /**
+     * Caches the colors of the wallpaper with the given ID set to the given destination, like
+     * {@link #putHashCode}.
+     */
+    public synchronized void putColors(int which, int wallpaperId, WallpaperColors colors) {
+        SharedPreferences.Editor editor = edit(which, wallpaperId);
+        if (editor != null) {
+            String prefix = getKeyPrefix(which);
+            editor.putString(prefix + KEY_COLORS, formatColors(colors))
+                    .putInt(prefix + KEY_COLOR_HINTS, colors.getColorHints())
+                    .apply();
+        }
+    }
+
+    /**
+     * Caches the dimensions of the wallpaper with the given ID set to the given destination, like
+     * {@link #putHashCode}.
+     */
+    public synchronized void putDimensions(int which, int wallpaperId, Point dimensions) {
+        SharedPreferences.Editor editor = edit(which, wallpaperId);
+        if (editor != null) {
+            String prefix = getKeyPrefix(which);
+            editor.putInt(prefix + KEY_WIDTH, dimensions.x)
+                    .putInt(prefix + KEY_HEIGHT, dimensions.y)
+                    .apply();
+        }
+    }
+
+    private boolean isCurrent(String prefix, int wallpaperId) {
+        return wallpaperId > 0 && mPrefs.getInt(prefix + KEY_ID, 0) == wallpaperId;
+    }
+
+    /**
+     * Returns an editor of the entry of the wallpaper with the given ID, having cleared the entry
+     * of another wallpaper, or null if there's no such wallpaper.
+     */
+    @Nullable
+    private SharedPreferences.Editor edit(int which, int wallpaperId) {
+        if (wallpaperId <= 0) {
+            return null;
+        }
+        String prefix = getKeyPrefix(which);
+        SharedPreferences.Editor editor = mPrefs.edit();
+        if (!isCurrent(prefix, wallpaperId)) {
+            editor.remove(prefix + KEY_HASH_CODE)
+                    .remove(prefix + KEY_COLORS)
+                    .remove(prefix + KEY_COLOR_HINTS)
+                    .remove(prefix + KEY_WIDTH)
+                    .remove(prefix + KEY_HEIGHT)
+                    .putInt(prefix + KEY_ID, wallpaperId);
+        }
+        return editor;
+    }
+
+    private static String getKeyPrefix(int which) {
+        switch (which) {
+            case FLAG_SYSTEM:
+                return KEY_PREFIX_HOME;
+            case FLAG_LOCK:
+                return KEY_PREFIX_LOCK;
+            default:
+                throw new IllegalArgumentException("Not a single destination: " + which);
+        }
+    }
+
+    private static String formatColors(WallpaperColors colors) {
+        StringBuilder value = new StringBuilder()
+                .append(colors.getPrimaryColor().toArgb());
+        Color secondaryColor = colors.getSecondaryColor();
+        if (secondaryColor != null) {
+            value.append(',').append(secondaryColor.toArgb());
+            Color tertiaryColor = colors.getTertiaryColor();
+            if (tertiaryColor != null) {
+                value.append(',').append(tertiaryColor.toArgb());
+            }
+        }
+        return value.toString();
+    }
+
+    @Nullable
+    private static WallpaperColors parseColors(@Nullable String value, int colorHints) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        String[] colors = value.split(",");
+        return new WallpaperColors(
+                Color.valueOf(Integer.parseInt(colors[0])),
+                colors.length >= 2 ? Color.valueOf(Integer.parseInt(colors[1])) : null,
+                colors.length >= 3 ? Color.valueOf(Integer.parseInt(colors[2])) : null,
+                colorHints);
+    }
+}
@@ -32,6 +32,8 @@ import com.android.wallpaper.model.WallpaperInfo;
 import java.io.InputStream;
 import java.util.List;
 
+import kotlinx.coroutines.flow.Flow;
+
 /**
  * Interface for classes which persist wallpapers to the system.
  */
@@ -57,6 +59,18 @@ public interface WallpaperPersister {
     void setIndividualWallpaper(WallpaperInfo wallpaper, Asset asset, @Nullable Rect cropRect,
                                 float scale, @Destination int destination, SetWallpaperCallback callback);
 
+    /**
+     * Variant of {@link #setIndividualWallpaper} which reports the progress of each
+     * {@link SetWallpaperStage} instead of calling back. The wallpaper is set once the returned
+     * flow is collected, and cancelling the collection before {@link SetWallpaperStage#WRITE}
+     * cancels setting it.
+     *
+     * @return A flow emitting each stage completed and ending with either
+     * {@link SetWallpaperProgress.Succeeded} or {@link SetWallpaperProgress.Failed}.
+     */
+    Flow<SetWallpaperProgress> setIndividualWallpaperWithProgress(WallpaperInfo wallpaper,
+            Asset asset, @Nullable Rect cropRect, float scale, @Destination int destination);
+
     /**
      * Sets an individual wallpaper to the system as the wallpaper in the current rotation along with
      * its metadata. Prevents automatic wallpaper backup to conserve user data.
@@ -62,6 +62,7 @@ open class WallpaperPicker2Injector
 @Inject
 internal constructor(
     @MainDispatcher private val mainScope: CoroutineScope,
+    @MainDispatcher private val mainDispatcher: CoroutineDispatcher,
     @BackgroundDispatcher private val bgDispatcher: CoroutineDispatcher,
 ) : Injector {
     private var alarmManagerWrapper: AlarmManagerWrapper? = null
@@ -253,6 +254,10 @@ internal constructor(
                     getBitmapCropper(),
                     getWallpaperStatusChecker(context),
                     getFlags().isRefactorSettingWallpaper(),
+                    DefaultWallpaperEncodePolicy(),
+                    mainScope,
+                    bgDispatcher,
+                    mainDispatcher,
                 )
                 .also { wallpaperPersister = it }
     }
@@ -542,7 +542,8 @@ public interface WallpaperPreferences {
     void storeWallpaperColors(String storedWallpaperId, WallpaperColors wallpaperColors);
 
     /**
-     * Returns the wallpaper colors from wallpaper's id.
+     * Returns the wallpaper colors from wallpaper's id. The colors may have to be loaded from disk,
+     * so this is best called off the main thread.
      * @param storedWallpaperId wallpaper id.
      */
     WallpaperColors getWallpaperColors(String storedWallpaperId);
@@ -584,6 +585,16 @@ public interface WallpaperPreferences {
     @interface PendingDailyWallpaperUpdateStatus {
     }
 
+    /**
+     * Makes the changes of the given runnable to the preferences as a single transaction, which
+     * writes them together once the runnable returns rather than one by one, or discards them if
+     * it throws. Within the transaction, preferences read on the same thread reflect the changes
+     * made so far. A transaction begun within another one is part of it.
+     */
+    default void edit(Runnable changes) {
+        changes.run();
+    }
+
     /**
      * Stores the given live wallpaper in the recent wallpapers list
      * @param which flag indicating the wallpaper destination
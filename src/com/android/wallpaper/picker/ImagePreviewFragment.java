@@ -26,6 +26,7 @@ import static com.google.android.material.bottomsheet.BottomSheetBehavior.STATE_
 import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.app.Activity;
+import android.app.WallpaperColors;
 import android.app.WallpaperManager;
 import android.content.Context;
 import android.content.res.Resources;
@@ -57,7 +58,10 @@ import androidx.annotation.VisibleForTesting;
 
 import com.android.wallpaper.R;
 import com.android.wallpaper.asset.Asset;
+import com.android.wallpaper.asset.AssetRegionDecoder;
 import com.android.wallpaper.asset.CurrentWallpaperAssetVN;
+import com.android.wallpaper.asset.DecodeScheduler;
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
 import com.android.wallpaper.model.SetWallpaperViewModel;
 import com.android.wallpaper.model.WallpaperInfo.ColorInfo;
 import com.android.wallpaper.module.BitmapCropper;
@@ -80,8 +84,6 @@ import com.davemorrissey.labs.subscaleview.SubsamplingScaleImageView;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 /**
@@ -93,8 +95,9 @@ public class ImagePreviewFragment extends PreviewFragment {
     private static final String TAG = "ImagePreviewFragment";
 
     private static final float DEFAULT_WALLPAPER_MAX_ZOOM = 8f;
+    // Wallpapers with more pixels than this many screens are previewed as tiles.
+    private static final int TILED_PREVIEW_MIN_SCREEN_AREAS = 4;
     private static final Interpolator ALPHA_OUT = new PathInterpolator(0f, 0f, 0.8f, 1f);
-    private static final Executor sExecutor = Executors.newCachedThreadPool();
 
     private final WallpaperSurfaceCallback mWallpaperSurfaceCallback =
             new WallpaperSurfaceCallback();
@@ -135,7 +138,9 @@ public class ImagePreviewFragment extends PreviewFragment {
         mPreviewBitmapTransformation = new WallpaperPreviewBitmapTransformation(
                 appContext, RtlUtils.isRtl(context));
         mBitmapCropper = mInjector.getBitmapCropper();
-        mWallpaperColorsExtractor = new WallpaperColorsExtractor(sExecutor, Handler.getMain());
+        mWallpaperColorsExtractor = new WallpaperColorsExtractor(
+                DecodeScheduler.getInstance().asExecutor(Priority.COLOR_EXTRACTION),
+                Handler.getMain());
         mWallpaperManager = context.getSystemService(WallpaperManager.class);
     }
 
@@ -236,8 +241,8 @@ public class ImagePreviewFragment extends PreviewFragment {
     }
 
     /**
-     * Initializes image view by initializing tiling, setting a fallback page bitmap, and
-     * initializing a zoom-scroll observer and click listener.
+     * Looks up the colors cached for the wallpaper in the background, then initializes the image
+     * view with them.
      */
     private synchronized void initFullResView() {
         if (mRawWallpaperSize == null || mFullResImageView == null
@@ -246,14 +251,32 @@ public class ImagePreviewFragment extends PreviewFragment {
         }
 
         final String storedWallpaperId = mWallpaper.getStoredWallpaperId(getContext());
-        final boolean isWallpaperColorCached =
-                storedWallpaperId != null && mWallpaperPreferences.getWallpaperColors(
-                        storedWallpaperId) != null;
+        if (storedWallpaperId == null) {
+            initFullResView(/* cachedWallpaperColors= */ null);
+            return;
+        }
+        // The cached colors may have to be loaded from disk first.
+        DecodeScheduler.getInstance().execute(Priority.COLOR_EXTRACTION, () -> {
+            WallpaperColors cachedWallpaperColors =
+                    mWallpaperPreferences.getWallpaperColors(storedWallpaperId);
+            Handler.getMain().post(() -> initFullResView(cachedWallpaperColors));
+        });
+    }
+
+    /**
+     * Initializes image view by initializing tiling, setting a fallback page bitmap, and
+     * initializing a zoom-scroll observer and click listener.
+     */
+    private synchronized void initFullResView(@Nullable WallpaperColors cachedWallpaperColors) {
+        if (getActivity() == null || mFullResImageView == null
+                || mFullResImageView.isImageLoaded()) {
+            return;
+        }
+
+        final boolean isWallpaperColorCached = cachedWallpaperColors != null;
         if (isWallpaperColorCached) {
             // Post-execute onWallpaperColorsChanged() to avoid UI blocking from the call
-            Handler.getMain().post(() -> onWallpaperColorsChanged(
-                    mWallpaperPreferences.getWallpaperColors(
-                            mWallpaper.getStoredWallpaperId(getContext()))));
+            Handler.getMain().post(() -> onWallpaperColorsChanged(cachedWallpaperColors));
         }
 
         // Minimum scale will only be respected under this scale type.
@@ -262,6 +285,11 @@ public class ImagePreviewFragment extends PreviewFragment {
         // disallow user to pan outside the view we show the wallpaper in.
         mFullResImageView.setPanLimit(SubsamplingScaleImageView.PAN_LIMIT_INSIDE);
 
+        if (shouldUseTiledPreview()) {
+            initTiledFullResView(isWallpaperColorCached);
+            return;
+        }
+
         Point targetPageBitmapSize = new Point(mRawWallpaperSize);
         mWallpaperAsset.decodeBitmap(targetPageBitmapSize.x, targetPageBitmapSize.y,
                 pageBitmap -> {
@@ -275,26 +303,77 @@ public class ImagePreviewFragment extends PreviewFragment {
                     }
 
                     mFullResImageView.setImage(ImageSource.bitmap(pageBitmap));
-                    setDefaultWallpaperZoomAndScroll(
-                            mWallpaperAsset instanceof CurrentWallpaperAssetVN);
-                    mFullResImageView.setOnStateChangedListener(
-                            new OnFullResImageViewStateChangedListener() {
-                                @Override
-                                public void onDebouncedCenterChanged(PointF newCenter, int origin) {
-                                    recalculateColors();
-                                }
-                            }
-                    );
-                    if (!isWallpaperColorCached) {
-                        mFullResImageView.setAlpha(0);
-                        // If not cached, delay the cross fade until the colors extracted
-                        extractColorFromBitmap(pageBitmap, true);
-                    } else {
-                        onSurfaceReady();
+                    onFullResImageSet(pageBitmap, isWallpaperColorCached);
+                });
+    }
+
+    /**
+     * Returns whether the wallpaper is so much larger than the screen that it should be shown as
+     * tiles decoded on demand rather than as a single raw-size bitmap.
+     */
+    private boolean shouldUseTiledPreview() {
+        if (!mWallpaperAsset.supportsTiling()) {
+            return false;
+        }
+        long rawPixels = (long) mRawWallpaperSize.x * mRawWallpaperSize.y;
+        long screenPixels = (long) mWallpaperScreenSize.x * mWallpaperScreenSize.y;
+        return rawPixels > TILED_PREVIEW_MIN_SCREEN_AREAS * screenPixels;
+    }
+
+    /**
+     * Shows the wallpaper through an {@link AssetRegionDecoder}, with a screen-sized bitmap as the
+     * preview layer until the visible tiles are decoded.
+     */
+    private void initTiledFullResView(boolean isWallpaperColorCached) {
+        Point rawWallpaperSize = new Point(mRawWallpaperSize);
+        mWallpaperAsset.decodeBitmap(mWallpaperScreenSize.x, mWallpaperScreenSize.y,
+                previewBitmap -> {
+                    if (getActivity() == null || mFullResImageView == null) {
+                        return;
+                    }
+
+                    if (previewBitmap == null) {
+                        showLoadWallpaperErrorDialog();
+                        return;
                     }
+
+                    mFullResImageView.setRegionDecoderFactory(
+                            () -> new AssetRegionDecoder(mWallpaperAsset, rawWallpaperSize));
+                    // The preview bitmap is also used for color extraction, so it must not be
+                    // recycled by the view.
+                    mFullResImageView.setImage(
+                            ImageSource.uri(AssetRegionDecoder.SOURCE_URI)
+                                    .dimensions(rawWallpaperSize.x, rawWallpaperSize.y)
+                                    .tilingEnabled(),
+                            ImageSource.cachedBitmap(previewBitmap));
+                    onFullResImageSet(previewBitmap, isWallpaperColorCached);
                 });
     }
 
+    /**
+     * Finishes initializing the image view once its image is set, using the given bitmap to
+     * extract the wallpaper colors if they aren't cached.
+     */
+    private void onFullResImageSet(Bitmap colorSourceBitmap, boolean isWallpaperColorCached) {
+        setDefaultWallpaperZoomAndScroll(
+                mWallpaperAsset instanceof CurrentWallpaperAssetVN);
+        mFullResImageView.setOnStateChangedListener(
+                new OnFullResImageViewStateChangedListener() {
+                    @Override
+                    public void onDebouncedCenterChanged(PointF newCenter, int origin) {
+                        recalculateColors();
+                    }
+                }
+        );
+        if (!isWallpaperColorCached) {
+            mFullResImageView.setAlpha(0);
+            // If not cached, delay the cross fade until the colors extracted
+            extractColorFromBitmap(colorSourceBitmap, true);
+        } else {
+            onSurfaceReady();
+        }
+    }
+
     /**
      * Recalculate the color from a new crop of the wallpaper. Note that we do not cache the
      * extracted. We only cache the color the first time we extract from the wallpaper as its
@@ -333,9 +412,11 @@ public class ImagePreviewFragment extends PreviewFragment {
                         onSurfaceReady();
                     }
                     onWallpaperColorsChanged(colors);
-                    if (cacheColor) {
-                        mWallpaperPreferences.storeWallpaperColors(
-                                mWallpaper.getStoredWallpaperId(context), colors);
+                    String storedWallpaperId = mWallpaper.getStoredWallpaperId(context);
+                    if (cacheColor && storedWallpaperId != null) {
+                        DecodeScheduler.getInstance().execute(Priority.COLOR_EXTRACTION,
+                                () -> mWallpaperPreferences.storeWallpaperColors(
+                                        storedWallpaperId, colors));
                     }
                 });
     }
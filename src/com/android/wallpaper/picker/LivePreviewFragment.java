@@ -596,6 +596,7 @@ public class LivePreviewFragment extends PreviewFragment {
             WallpaperColorsLoader.getWallpaperColors(
                     activity,
                     homeWallpaper.getThumbAsset(activity),
+                    homeWallpaper.getStoredWallpaperId(activity),
                     this::onWallpaperColorsChanged);
         }
 
@@ -25,6 +25,7 @@ import androidx.lifecycle.ViewModel
 import androidx.lifecycle.viewModelScope
 import com.android.wallpaper.asset.Asset
 import com.android.wallpaper.asset.CurrentWallpaperAssetVN
+import com.android.wallpaper.asset.awaitDecodeBitmap
 import com.android.wallpaper.dispatchers.BackgroundDispatcher
 import com.android.wallpaper.model.WallpaperInfo
 import com.android.wallpaper.module.WallpaperPreferences
@@ -77,7 +78,7 @@ constructor(
             .filterNotNull()
             .map {
                 val dimensions = it.decodeRawDimensions()
-                val bitmap = it.decodeBitmap(dimensions)
+                val bitmap = it.awaitDecodeBitmap(dimensions.x, dimensions.y)
                 if (bitmap != null) {
                     if (_cachedWallpaperColors.value == null && wallpaperId != null) {
                         // If no cached colors from the preferences, extra colors from the original
@@ -109,8 +110,14 @@ constructor(
             val id: String? = wallpaper.getStoredWallpaperId(appContext)
             wallpaperAsset.value = asset
             wallpaperId = id
-            id?.let { wallpaperPreferences.getWallpaperColors(it) }
-                ?.run { _cachedWallpaperColors.value = this }
+            if (id != null) {
+                // The cached colors may have to be loaded from disk first.
+                viewModelScope.launch(bgDispatcher) {
+                    wallpaperPreferences.getWallpaperColors(id)?.let {
+                        _cachedWallpaperColors.value = it
+                    }
+                }
+            }
             viewModelScope.launch(bgDispatcher) {
                 _lowResBitmap.value = asset?.getLowResBitmap(appContext)
             }
@@ -125,13 +132,6 @@ constructor(
             decodeRawDimensions(null, callback)
         }
 
-    // TODO b/296288298 Create a util class functions for Bitmap and Asset
-    private suspend fun Asset.decodeBitmap(dimensions: Point): Bitmap? =
-        suspendCancellableCoroutine { k: CancellableContinuation<Bitmap?> ->
-            val callback = Asset.BitmapReceiver { k.resumeWith(Result.success(it)) }
-            decodeBitmap(dimensions.x, dimensions.y, callback)
-        }
-
     // TODO b/296288298 Create a util class functions for Bitmap and Asset
     private fun Bitmap.extractColors(): WallpaperColors? {
         val tmpOut = ByteArrayOutputStream()
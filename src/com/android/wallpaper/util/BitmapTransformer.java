@@ -17,8 +17,12 @@ package com.android.wallpaper.util;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 
 /**
  * Applies fill and stretch transformations to bitmaps.
@@ -33,6 +37,9 @@ public class BitmapTransformer {
     /**
      * Centers the provided bitmap to a new bitmap with the dimensions of fillSize and fills in any
      * remaining empty space with black pixels.
+     *
+     * <p>Pixels are copied by drawing the source into the result, so apart from the result itself
+     * nothing proportional to the image size is allocated.
      */
     public static Bitmap applyFillTransformation(Bitmap bitmap, Point fillSize) {
         // Initialize a new result bitmap with all black pixels.
@@ -43,34 +50,25 @@ public class BitmapTransformer {
         int horizontalOffset = (bitmap.getWidth() - resultBitmap.getWidth()) / 2;
         int verticalOffset = (bitmap.getHeight() - resultBitmap.getHeight()) / 2;
 
-        // Allocate an int array to temporarily store a buffer of the pixel color data we are copying
-        // from the source to the final bitmap. We are only copying the portion of the source bitmap
-        // that fits within the bounds of the result bitmap, so take the lesser of both bitmap's width
-        // and height to calculate the size.
-        int pixelArraySize = Math.min(resultBitmap.getWidth(), bitmap.getWidth())
-                * Math.min(resultBitmap.getHeight(), bitmap.getHeight());
-        int[] srcPixels = new int[pixelArraySize];
-
-        // Copy region of source bitmap into pixel array buffer.
-        bitmap.getPixels(
-                srcPixels,
-                0 /* offset */,
-                bitmap.getWidth() /* stride */,
-                Math.max(0, horizontalOffset),
-                Math.max(0, verticalOffset),
-                Math.min(resultBitmap.getWidth(), bitmap.getWidth()) /* width */,
-                Math.min(resultBitmap.getHeight(), bitmap.getHeight()) /* height */);
-
-        // Copy the values stored in the pixel array buffer to the result bitmap.
-        resultBitmap.setPixels(
-                srcPixels,
-                0 /* offset */,
-                bitmap.getWidth() /* stride */,
-                Math.max(0, -1 * horizontalOffset),
-                Math.max(0, -1 * verticalOffset),
-                Math.min(resultBitmap.getWidth(), bitmap.getWidth()) /* width */,
-                Math.min(resultBitmap.getHeight(), bitmap.getHeight()) /* height */);
+        // Copy the portion of the source bitmap that fits within the bounds of the result bitmap.
+        // Source pixels replace the black ones rather than being blended over them, like a pixel
+        // copy would.
+        Paint copyPaint = new Paint();
+        copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+        new Canvas(resultBitmap).drawBitmap(bitmap, -horizontalOffset, -verticalOffset,
+                copyPaint);
 
         return resultBitmap;
     }
+
+    /**
+     * Scales the provided bitmap to a new bitmap with the dimensions of stretchSize, ignoring its
+     * aspect ratio. The result keeps the config and color space of the source.
+     *
+     * <p>Like {@link #applyFillTransformation}, the source is drawn into the result, so nothing
+     * proportional to the image size is allocated besides the result.
+     */
+    public static Bitmap applyStretchTransformation(Bitmap bitmap, Point stretchSize) {
+        return Bitmap.createScaledBitmap(bitmap, stretchSize.x, stretchSize.y, /* filter= */ true);
+    }
 }
@@ -27,36 +27,47 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
-import java.io.BufferedReader;
-import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.text.ParseException;
+import java.nio.ByteBuffer;
+import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Logs messages to logcat and for debuggable build types ("eng" or "userdebug") also mirrors logs
  * to a disk-based log buffer.
+ *
+ * <p>The buffer is made of append-only segment files, see {@link LogSegments}, which are only
+ * accessed from the logger thread. Logging threads only add their logs to a lock-free
+ * {@link LogRingBuffer}, which the logger thread drains at most once per flush interval, writing
+ * the logs drained in a single write.
  */
 public class DiskBasedLogger {
 
+    /** Single log file written by older versions of the app. */
     static final String LOGS_FILE_PATH = "logs.txt";
+    // Only used from the logger thread.
     static final SimpleDateFormat DATE_FORMAT =
             new SimpleDateFormat("EEE MMM dd HH:mm:ss.SSS z yyyy", Locale.US);
 
-    private static final String TEMP_LOGS_FILE_PATH = "temp_logs.txt";
     private static final String TAG = "DiskBasedLogger";
 
+    private static final long LOGS_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    @VisibleForTesting
+    static final long FLUSH_INTERVAL_MILLIS = 1000;
+    // Far more logs than are ever made within a flush interval, even when a failure is logged
+    // for every wallpaper of a category.
+    private static final int RING_BUFFER_CAPACITY = 1024;
+    private static final LogRingBuffer RING_BUFFER = new LogRingBuffer(RING_BUFFER_CAPACITY);
+    private static final AtomicBoolean IS_FLUSH_SCHEDULED = new AtomicBoolean();
+
     /**
-     * POJO used to lock thread creation and file read/write operations.
+     * POJO used to lock thread creation.
      */
     private static final Object S_LOCK = new Object();
 
@@ -64,9 +75,23 @@ public class DiskBasedLogger {
             TimeUnit.MILLISECONDS.convert(2, TimeUnit.MINUTES);
     private static Handler sHandler;
     private static HandlerThread sLoggerThread;
+    // Only accessed from the logger thread.
+    @Nullable
+    private static LogSegments sLogSegments;
+    private static final StringBuffer BATCH = new StringBuffer();
+    private static final Date BATCH_DATE = new Date();
+    private static final FieldPosition BATCH_FIELD_POSITION = new FieldPosition(0);
+    private static long sBatchTimeMillis;
+    private static final LogRingBuffer.Consumer BATCH_APPENDER = DiskBasedLogger::appendToBatch;
     private static final Runnable THREAD_CLEANUP_RUNNABLE = new Runnable() {
         @Override
         public void run() {
+            // Runs on the logger thread, after the last pending log.
+            if (sLogSegments != null) {
+                sLogSegments.close();
+                sLogSegments = null;
+            }
+
             if (sLoggerThread != null && sLoggerThread.isAlive()) {
 
                 // HandlerThread#quitSafely was added in JB-MR2, so prefer to use that instead of #quit.
@@ -132,32 +157,67 @@ public class DiskBasedLogger {
             return;
         }
 
+        // Logs are only added to the ring buffer here, so that logging doesn't take a lock or
+        // allocate, and written in batches from the logger thread.
+        RING_BUFFER.offer(System.currentTimeMillis(), tag, msg);
+        if (IS_FLUSH_SCHEDULED.compareAndSet(false, true)) {
+            scheduleFlush(context);
+        }
+    }
+
+    /**
+     * Schedules a write of the logs in the ring buffer to the disk-based log buffer after the flush
+     * interval, including those added until then.
+     */
+    private static void scheduleFlush(Context context) {
         Handler handler = getLoggerThreadHandler();
-        if (handler == null) {
+        if (handler == null || !handler.postDelayed(() -> flush(context), FLUSH_INTERVAL_MILLIS)) {
             Log.e(TAG, "Something went wrong creating the logger thread handler, quitting this logging "
                     + "operation");
-            return;
+            IS_FLUSH_SCHEDULED.set(false);
         }
+    }
 
-        handler.post(() -> {
-            File logs = new File(context.getFilesDir(), LOGS_FILE_PATH);
-
-            // Construct a log message that we can parse later in order to clean up old logs.
-            String datetime = DATE_FORMAT.format(Calendar.getInstance().getTime());
-            String log = datetime + "/E " + tag + ": " + msg + "\n";
+    /**
+     * Writes the logs in the ring buffer to the disk-based log buffer in a single write. Must be
+     * called on the logger thread.
+     */
+    private static void flush(Context context) {
+        // Reset first: a log added from now on either is drained below or schedules a new flush.
+        IS_FLUSH_SCHEDULED.set(false);
+
+        RING_BUFFER.drain(BATCH_APPENDER);
+        long droppedCount = RING_BUFFER.takeDroppedCount();
+        if (droppedCount > 0) {
+            appendToBatch(System.currentTimeMillis(), TAG,
+                    "Dropped " + droppedCount + " log(s) made faster than they could be written");
+        }
+        if (BATCH.length() == 0) {
+            return;
+        }
 
-            synchronized (S_LOCK) {
-                FileOutputStream outputStream;
+        try {
+            getLogSegments(context).append(sBatchTimeMillis,
+                    ByteBuffer.wrap(BATCH.toString().getBytes(UTF_8)));
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write to disk-based log buffer", e);
+        } finally {
+            BATCH.setLength(0);
+        }
+    }
 
-                try {
-                    outputStream = context.openFileOutput(logs.getName(), Context.MODE_APPEND);
-                    outputStream.write(log.getBytes(UTF_8));
-                    outputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to close output stream for disk-based log buffer", e);
-                }
-            }
-        });
+    /**
+     * Appends a log line to the batch being written. Must be called on the logger thread.
+     */
+    private static void appendToBatch(long timeMillis, String tag, String msg) {
+        // The batch goes to the segment of its first log.
+        if (BATCH.length() == 0) {
+            sBatchTimeMillis = timeMillis;
+        }
+        // Construct a log message that we can parse later.
+        BATCH_DATE.setTime(timeMillis);
+        DATE_FORMAT.format(BATCH_DATE, BATCH, BATCH_FIELD_POSITION);
+        BATCH.append("/E ").append(tag).append(": ").append(msg).append('\n');
     }
 
     /**
@@ -176,48 +236,18 @@ public class DiskBasedLogger {
         }
 
         handler.post(() -> {
-            // Check if the logs file exists first before trying to read from it.
-            File logsFile = new File(context.getFilesDir(), LOGS_FILE_PATH);
-            if (!logsFile.exists()) {
-                Log.w(TAG, "Disk-based log buffer doesn't exist, so there's nothing to clean up.");
-                return;
-            }
-
-            synchronized (S_LOCK) {
-                FileInputStream inputStream;
-                BufferedReader bufferedReader;
-
-                try {
-                    inputStream = context.openFileInput(LOGS_FILE_PATH);
-                    bufferedReader = new BufferedReader(new InputStreamReader(inputStream, UTF_8));
-                } catch (IOException e) {
-                    Log.e(TAG, "IO exception opening a buffered reader for the existing logs file", e);
-                    return;
-                }
-
-                Date sevenDaysAgo = getSevenDaysAgo();
-
-                File tempLogsFile = new File(context.getFilesDir(), TEMP_LOGS_FILE_PATH);
-                FileOutputStream outputStream;
-
-                try {
-                    outputStream = context.openFileOutput(TEMP_LOGS_FILE_PATH, Context.MODE_APPEND);
-                } catch (IOException e) {
-                    Log.e(TAG, "Unable to close output stream for disk-based log buffer", e);
-                    return;
-                }
-
-                copyLogsNewerThanDate(bufferedReader, outputStream, sevenDaysAgo);
-
-                // Close streams to prevent resource leaks.
-                closeStream(inputStream, "couldn't close input stream for log file");
-                closeStream(outputStream, "couldn't close output stream for temp log file");
-
-                // Rename temp log file (if it exists--which is only when the logs file has logs newer than
-                // 7 days to begin with) to the final logs file.
-                if (tempLogsFile.exists() && !tempLogsFile.renameTo(logsFile)) {
-                    Log.e(TAG, "couldn't rename temp logs file to final logs file");
-                }
+            long sevenDaysAgo = System.currentTimeMillis() - LOGS_RETENTION_MILLIS;
+
+            // Whole segments are deleted once all their logs are older than 7 days, so nothing is
+            // read or rewritten.
+            getLogSegments(context).deleteOlderThan(sevenDaysAgo);
+
+            // The log file of older versions of the app is no longer written, so it's deleted as
+            // a whole too once its last log is older than 7 days.
+            File legacyLogsFile = new File(context.getFilesDir(), LOGS_FILE_PATH);
+            if (legacyLogsFile.exists() && legacyLogsFile.lastModified() < sevenDaysAgo
+                    && !legacyLogsFile.delete()) {
+                Log.e(TAG, "couldn't delete legacy logs file");
             }
         });
     }
@@ -229,58 +259,13 @@ public class DiskBasedLogger {
     }
 
     /**
-     * Constructs and returns a {@link Date} object representing the time 7 days ago.
+     * Returns the segments of the disk-based log buffer. Must be called on the logger thread.
      */
-    private static Date getSevenDaysAgo() {
-        Calendar sevenDaysAgoCalendar = Calendar.getInstance();
-        sevenDaysAgoCalendar.add(Calendar.DAY_OF_MONTH, -7);
-        return sevenDaysAgoCalendar.getTime();
-    }
-
-    /**
-     * Tries to close the provided Closeable stream and logs the error message if the stream couldn't
-     * be closed.
-     */
-    private static void closeStream(Closeable stream, String errorMessage) {
-        try {
-            stream.close();
-        } catch (IOException e) {
-            Log.e(TAG, errorMessage);
-        }
-    }
-
-    /**
-     * Copies all log lines newer than the supplied date from the provided {@link BufferedReader} to
-     * the provided {@OutputStream}.
-     * <p>
-     * The caller of this method is responsible for closing the output stream and input stream
-     * underlying the BufferedReader when all operations have finished.
-     */
-    private static void copyLogsNewerThanDate(BufferedReader reader, OutputStream outputStream,
-                                              Date date) {
-        try {
-            String line = reader.readLine();
-            while (line != null) {
-                // Get the date from the line string.
-                String datetime = line.split("/")[0];
-                Date logDate;
-                try {
-                    logDate = DATE_FORMAT.parse(datetime);
-                } catch (ParseException e) {
-                    Log.e(TAG, "Error parsing date from previous logs", e);
-                    return;
-                }
-
-                // Copy logs newer than the provided date into a temp log file.
-                if (logDate.after(date)) {
-                    outputStream.write(line.getBytes(UTF_8));
-                    outputStream.write("\n".getBytes(UTF_8));
-                }
-
-                line = reader.readLine();
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "IO exception while reading line from buffered reader", e);
+    private static LogSegments getLogSegments(Context context) {
+        if (sLogSegments == null) {
+            sLogSegments = new LogSegments(
+                    new File(context.getFilesDir(), LogSegments.DIRECTORY_NAME));
         }
+        return sLogSegments;
     }
 }
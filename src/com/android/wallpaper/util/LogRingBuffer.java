@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded ring buffer of log records which any number of threads add to without locking or
+ * allocating, and a single thread drains.
+ *
+ * <p>Each slot has a sequence number telling whether it's free for the producer claiming it or
+ * holds a record published for the consumer, so producers only contend on claiming a slot. A
+ * record which doesn't fit because the consumer fell behind is dropped and counted instead of
+ * blocking the thread logging it.
+ */
+class LogRingBuffer {
+
+    /**
+     * Receives the records drained from the buffer.
+     */
+    interface Consumer {
+        void accept(long timeMillis, String tag, String msg);
+    }
+
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final long[] mTimes;
+    private final String[] mTags;
+    private final String[] mMessages;
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    // Only accessed by the consumer.
+    private long mHead;
+
+    /**
+     * @param capacity Number of records the buffer holds, which must be a power of two.
+     */
+    LogRingBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mMask = capacity - 1;
+        mSequences = new AtomicLongArray(capacity);
+        mTimes = new long[capacity];
+        mTags = new String[capacity];
+        mMessages = new String[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds a record to the buffer. Can be called from any thread.
+     *
+     * @return Whether the record was added, rather than dropped because the buffer is full.
+     */
+    boolean offer(long timeMillis, String tag, String msg) {
+        long tail = mTail.get();
+        while (true) {
+            int index = (int) tail & mMask;
+            long sequence = mSequences.get(index);
+            if (sequence == tail) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    mTimes[index] = timeMillis;
+                    mTags[index] = tag;
+                    mMessages[index] = msg;
+                    // Publishes the record to the consumer.
+                    mSequences.set(index, tail + 1);
+                    return true;
+                }
+                tail = mTail.get();
+            } else if (sequence < tail) {
+                // The slot still holds the record added a lap ago, which wasn't drained yet.
+                mDroppedCount.incrementAndGet();
+                return false;
+            } else {
+                // Another producer claimed the slot first.
+                tail = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Passes the records added so far to the given consumer, oldest first, and removes them. Must
+     * only be called from a single thread at a time.
+     *
+     * @return The number of records drained.
+     */
+    int drain(Consumer consumer) {
+        int count = 0;
+        while (true) {
+            int index = (int) mHead & mMask;
+            // A record claimed but not published yet is drained next time, with those after it.
+            if (mSequences.get(index) != mHead + 1) {
+                return count;
+            }
+            consumer.accept(mTimes[index], mTags[index], mMessages[index]);
+            mTags[index] = null;
+            mMessages[index] = null;
+            // Frees the slot for the producer of the next lap.
+            mSequences.set(index, mHead + mMask + 1);
+            mHead++;
+            count++;
+        }
+    }
+
+    /**
+     * Returns the number of records dropped since the last call, and resets it.
+     */
+    long takeDroppedCount() {
+        return mDroppedCount.getAndSet(0);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.util;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log files split into segments, each holding the records of a single day and capped
+ * in size, so that old records are deleted a whole segment at a time instead of by rewriting.
+ *
+ * <p>The segment being appended to is kept open between appends. Not thread-safe: the disk-based
+ * logger only uses it from its own thread.
+ */
+class LogSegments {
+    private static final String TAG = "LogSegments";
+
+    /** Name of the directory in the files directory the segments are written to. */
+    static final String DIRECTORY_NAME = "logs";
+
+    /** Size past which a segment is closed and the following records go to a new one. */
+    @VisibleForTesting
+    static final long MAX_SEGMENT_SIZE = 256 * 1024;
+
+    @VisibleForTesting
+    static final long BUCKET_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    // Segments are named "<prefix><bucket>-<index><suffix>", where the bucket is the number of days
+    // since the epoch of their records and the index counts the segments of that day.
+    private static final String PREFIX = "logs-";
+    private static final String SUFFIX = ".txt";
+
+    private final File mDirectory;
+    @Nullable
+    private FileChannel mChannel;
+    private long mBucket = -1;
+    private int mIndex;
+    private long mSize;
+
+    LogSegments(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Appends the given record, made at the given time, to the segment of its day.
+     */
+    void append(long timeMillis, ByteBuffer record) throws IOException {
+        long bucket = Math.floorDiv(timeMillis, BUCKET_MILLIS);
+        if (mChannel == null || bucket != mBucket) {
+            open(bucket, findLastIndex(bucket));
+        }
+        // A record larger than a whole segment still goes to a segment of its own.
+        if (mSize > 0 && mSize + record.remaining() > MAX_SEGMENT_SIZE) {
+            open(bucket, mIndex + 1);
+        }
+        while (record.hasRemaining()) {
+            mSize += mChannel.write(record);
+        }
+    }
+
+    /**
+     * Deletes the segments which only hold records made before the given time.
+     */
+    void deleteOlderThan(long timeMillis) {
+        for (File segment : getSegments()) {
+            long bucket = parseBucket(segment.getName());
+            if ((bucket + 1) * BUCKET_MILLIS > timeMillis) {
+                // Segments are sorted, so the rest are newer.
+                break;
+            }
+            if (bucket == mBucket) {
+                close();
+            }
+            if (!segment.delete()) {
+                Log.e(TAG, "Unable to delete log segment " + segment.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns the segments on disk, from the oldest to the newest.
+     */
+    List<File> getSegments() {
+        File[] files = mDirectory.listFiles(
+                (directory, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX)
+                        && parseBucket(name) >= 0 && parseIndex(name) >= 0);
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, (first, second) -> {
+            int byBucket = Long.compare(parseBucket(first.getName()),
+                    parseBucket(second.getName()));
+            return byBucket != 0 ? byBucket
+                    : Integer.compare(parseIndex(first.getName()), parseIndex(second.getName()));
+        });
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    /**
+     * Closes the segment being appended to, if any. The next append opens it again.
+     */
+    void close() {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close log segment", e);
+        }
+        mChannel = null;
+        mBucket = -1;
+    }
+
+    private void open(long bucket, int index) throws IOException {
+        close();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create the log segments directory");
+        }
+        File segment = new File(mDirectory, PREFIX + bucket + "-" + index + SUFFIX);
+        mChannel = new FileOutputStream(segment, /* append= */ true).getChannel();
+        mSize = mChannel.size();
+        mBucket = bucket;
+        mIndex = index;
+    }
+
+    /**
+     * Returns the index of the last segment of the given bucket, e.g. written before the process
+     * was restarted, or 0 if there's none yet.
+     */
+    private int findLastIndex(long bucket) {
+        int lastIndex = 0;
+        String[] names = mDirectory.list();
+        if (names == null) {
+            return lastIndex;
+        }
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX) && parseBucket(name) == bucket) {
+                lastIndex = Math.max(lastIndex, parseIndex(name));
+            }
+        }
+        return lastIndex;
+    }
+
+    /**
+     * Returns the bucket of the segment with the given name, or -1 if it isn't a valid name.
+     */
+    private static long parseBucket(String name) {
+        int separator = name.indexOf('-', PREFIX.length());
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the index of the segment with the given name, or -1 if it isn't a valid name.
+     */
+    private static int parseIndex(String name) {
+        int separator = name.indexOf('-', PREFIX.length());
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(separator + 1, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
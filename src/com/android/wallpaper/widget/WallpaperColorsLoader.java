@@ -19,6 +19,7 @@ import android.app.WallpaperColors;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Point;
+import android.os.Handler;
 import android.util.Log;
 import android.util.LruCache;
 import android.view.Display;
@@ -29,6 +30,9 @@ import androidx.annotation.Nullable;
 
 import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.asset.BitmapCachingAsset;
+import com.android.wallpaper.asset.DecodeScheduler;
+import com.android.wallpaper.asset.DecodeScheduler.Priority;
+import com.android.wallpaper.module.WallpaperColorStore;
 import com.android.wallpaper.util.ScreenSizeCalculator;
 
 /** A class to load the {@link WallpaperColors} from wallpaper {@link Asset}. */
@@ -45,6 +49,38 @@ public class WallpaperColorsLoader {
     // different.
     private static LruCache<Asset, WallpaperColors> sCache = new LruCache<>(/* maxSize= */ 6);
 
+    /**
+     * Gets the {@link WallpaperColors} from the wallpaper {@link Asset}, unless colors were stored
+     * for the wallpaper with the given stored ID in the {@link WallpaperColorStore}, in which case
+     * the asset isn't decoded. Colors extracted from the asset are stored for that ID.
+     */
+    public static void getWallpaperColors(Context context, @NonNull Asset asset,
+            @Nullable String storedWallpaperId, @NonNull Callback callback) {
+        if (storedWallpaperId == null || sCache.get(asset) != null) {
+            getWallpaperColors(context, asset, callback);
+            return;
+        }
+
+        WallpaperColorStore store = WallpaperColorStore.getInstance(context);
+        // The store may have to be loaded from disk first.
+        DecodeScheduler.getInstance().execute(Priority.COLOR_EXTRACTION, () -> {
+            WallpaperColors stored = store.get(storedWallpaperId);
+            Handler.getMain().post(() -> {
+                if (stored != null) {
+                    sCache.put(asset, stored);
+                    callback.onLoaded(stored);
+                    return;
+                }
+                getWallpaperColors(context, asset, colors -> {
+                    if (colors != null) {
+                        store.put(storedWallpaperId, colors);
+                    }
+                    callback.onLoaded(colors);
+                });
+            });
+        });
+    }
+
     /** Gets the {@link WallpaperColors} from the wallpaper {@link Asset}. */
     public static void getWallpaperColors(Context context, @NonNull Asset asset,
                                           @NonNull Callback callback) {
@@ -25,13 +25,21 @@ import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.model.StaticWallpaperMetadata;
 import com.android.wallpaper.model.WallpaperInfo;
 import com.android.wallpaper.module.InjectorProvider;
+import com.android.wallpaper.module.SetWallpaperProgress;
+import com.android.wallpaper.module.SetWallpaperStage;
 import com.android.wallpaper.module.WallpaperChangedNotifier;
 import com.android.wallpaper.module.WallpaperPersister;
 import com.android.wallpaper.module.WallpaperPreferences;
 
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.List;
 
+import kotlinx.coroutines.flow.Flow;
+import kotlinx.coroutines.flow.FlowKt;
+import kotlinx.coroutines.flow.MutableStateFlow;
+import kotlinx.coroutines.flow.StateFlowKt;
+
 /**
  * Test double for {@link WallpaperPersister}.
  */
@@ -95,6 +103,33 @@ public class TestWallpaperPersister implements WallpaperPersister {
         });
     }
 
+    /**
+     * Starts setting the wallpaper right away like {@link #setIndividualWallpaper} does, and
+     * emits its outcome once {@link #finishSettingWallpaper()} is called.
+     */
+    @Override
+    public Flow<SetWallpaperProgress> setIndividualWallpaperWithProgress(
+            WallpaperInfo wallpaperInfo, Asset asset, @Nullable Rect cropRect, float scale,
+            @Destination int destination) {
+        MutableStateFlow<SetWallpaperProgress> progress = StateFlowKt.MutableStateFlow(null);
+        setIndividualWallpaper(wallpaperInfo, asset, cropRect, scale, destination,
+                new SetWallpaperCallback() {
+                    @Override
+                    public void onSuccess(WallpaperInfo wallpaperInfo,
+                            @Destination int destination) {
+                        progress.setValue(new SetWallpaperProgress.Succeeded(
+                                /* wallpaperId= */ 1, Collections.emptyMap()));
+                    }
+
+                    @Override
+                    public void onError(@Nullable Throwable throwable) {
+                        progress.setValue(new SetWallpaperProgress.Failed(
+                                SetWallpaperStage.WRITE, throwable));
+                    }
+                });
+        return FlowKt.take(FlowKt.filterNotNull(progress), 1);
+    }
+
     @Override
     public boolean setWallpaperInRotation(Bitmap wallpaperBitmap, List<String> attributions,
             int actionLabelRes, int actionIconRes, String actionUrl, String collectionId,
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.app.Activity
+import android.graphics.Bitmap
+import android.graphics.Point
+import android.graphics.Rect
+import com.android.wallpaper.asset.Asset.BitmapReceiver
+import com.android.wallpaper.asset.Asset.DimensionsReceiver
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@OptIn(ExperimentalCoroutinesApi::class)
+@RunWith(RobolectricTestRunner::class)
+class AssetExtTest {
+
+    private val asset = FakeAsset()
+    private val bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)
+
+    @Test
+    fun awaitDecodeBitmap_resumesWithDecodedBitmap() = runTest {
+        val result = async { asset.awaitDecodeBitmap(TARGET_WIDTH, TARGET_HEIGHT) }
+        runCurrent()
+
+        asset.receivers.single().onBitmapDecoded(bitmap)
+
+        assertThat(result.await()).isSameInstanceAs(bitmap)
+    }
+
+    @Test
+    fun awaitDecodeBitmap_cancelled_cancelsUnderlyingDecode() = runTest {
+        val result = async { asset.awaitDecodeBitmap(TARGET_WIDTH, TARGET_HEIGHT) }
+        runCurrent()
+
+        result.cancel()
+        runCurrent()
+
+        assertThat(asset.handles.single().isCancelled).isTrue()
+        // A decode that ends anyway isn't delivered to the cancelled coroutine.
+        asset.receivers.single().onBitmapDecoded(bitmap)
+        assertThat(result.isCancelled).isTrue()
+    }
+
+    @Test
+    fun awaitDecodeBitmap_full_cancelled_cancelsUnderlyingDecode() = runTest {
+        val result = async { asset.awaitDecodeBitmap() }
+        runCurrent()
+
+        result.cancel()
+        runCurrent()
+
+        assertThat(asset.handles.single().isCancelled).isTrue()
+    }
+
+    @Test
+    fun awaitDecodeBitmapRegion_cancelled_cancelsUnderlyingDecode() = runTest {
+        val result = async {
+            asset.awaitDecodeBitmapRegion(
+                Rect(0, 0, TARGET_WIDTH, TARGET_HEIGHT),
+                TARGET_WIDTH,
+                TARGET_HEIGHT,
+                /* shouldAdjustForRtl= */ false
+            )
+        }
+        runCurrent()
+
+        result.cancel()
+        runCurrent()
+
+        assertThat(asset.handles.single().isCancelled).isTrue()
+    }
+
+    @Test
+    fun awaitDecodeRawDimensions_cancelled_dropsLateDimensions() = runTest {
+        val result = async { asset.awaitDecodeRawDimensions() }
+        runCurrent()
+
+        result.cancel()
+        runCurrent()
+        asset.dimensionsReceivers.single().onDimensionsDecoded(Point(1, 1))
+
+        assertThat(result.isCancelled).isTrue()
+    }
+
+    /** Asset whose decodes end when the test delivers to their receivers. */
+    private class FakeAsset : Asset() {
+        val receivers = mutableListOf<BitmapReceiver>()
+        val dimensionsReceivers = mutableListOf<DimensionsReceiver>()
+        val handles = mutableListOf<DecodeHandle>()
+
+        override fun decodeBitmapCancellable(
+            targetWidth: Int,
+            targetHeight: Int,
+            hardwareBitmapAllowed: Boolean,
+            receiver: BitmapReceiver
+        ): DecodeHandle =
+            super.decodeBitmapCancellable(
+                    targetWidth,
+                    targetHeight,
+                    hardwareBitmapAllowed,
+                    receiver
+                )
+                .also { handles.add(it) }
+
+        override fun decodeBitmapCancellable(receiver: BitmapReceiver): DecodeHandle =
+            super.decodeBitmapCancellable(receiver).also { handles.add(it) }
+
+        override fun decodeBitmapRegionCancellable(
+            rect: Rect,
+            targetWidth: Int,
+            targetHeight: Int,
+            shouldAdjustForRtl: Boolean,
+            receiver: BitmapReceiver
+        ): DecodeHandle =
+            super.decodeBitmapRegionCancellable(
+                    rect,
+                    targetWidth,
+                    targetHeight,
+                    shouldAdjustForRtl,
+                    receiver
+                )
+                .also { handles.add(it) }
+
+        override fun decodeBitmap(
+            targetWidth: Int,
+            targetHeight: Int,
+            useHardwareBitmapIfPossible: Boolean,
+            receiver: BitmapReceiver
+        ) {
+            receivers.add(receiver)
+        }
+
+        override fun decodeBitmap(receiver: BitmapReceiver) {
+            receivers.add(receiver)
+        }
+
+        override fun decodeBitmapRegion(
+            rect: Rect,
+            targetWidth: Int,
+            targetHeight: Int,
+            shouldAdjustForRtl: Boolean,
+            receiver: BitmapReceiver
+        ) {
+            receivers.add(receiver)
+        }
+
+        override fun decodeRawDimensions(activity: Activity?, receiver: DimensionsReceiver) {
+            dimensionsReceivers.add(receiver)
+        }
+
+        override fun supportsTiling() = false
+    }
+
+    private companion object {
+        const val TARGET_WIDTH = 40
+        const val TARGET_HEIGHT = 30
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.app.Activity
+import android.graphics.Bitmap
+import android.graphics.Point
+import android.graphics.Rect
+import com.android.wallpaper.asset.Asset.BitmapReceiver
+import com.android.wallpaper.asset.Asset.DimensionsReceiver
+import com.google.common.truth.Truth.assertThat
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import org.junit.Assert.assertThrows
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class AssetRegionDecoderTest {
+
+    private val asset = FakeTilingAsset()
+
+    @Test
+    fun decodeRegion_delivered_returnsBitmapDecodedAtSampleSize() {
+        asset.onDecodeRegion = { width, height, receiver ->
+            receiver.onBitmapDecoded(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888))
+        }
+        val decoder = AssetRegionDecoder(asset, RAW_DIMENSIONS)
+
+        val bitmap = decoder.decodeRegion(Rect(0, 0, 400, 200), /* sampleSize= */ 4)
+
+        assertThat(bitmap.width).isEqualTo(100)
+        assertThat(bitmap.height).isEqualTo(50)
+    }
+
+    @Test
+    fun decodeRegion_notDelivered_cancelsDecodeAndThrowsOnTimeout() {
+        val decoder = AssetRegionDecoder(asset, RAW_DIMENSIONS, SHORT_TIMEOUT_MILLIS)
+
+        assertThrows(RuntimeException::class.java) { decoder.decodeRegion(TILE, 1) }
+
+        assertThat(asset.handles.single().isCancelled).isTrue()
+    }
+
+    @Test
+    fun recycle_whileDecoding_cancelsDecodeAndReleasesTileThread() {
+        val started = CountDownLatch(1)
+        asset.onDecodeRegion = { _, _, _ -> started.countDown() }
+        val decoder = AssetRegionDecoder(asset, RAW_DIMENSIONS)
+        var error: Throwable? = null
+        val tileThread = thread {
+            try {
+                decoder.decodeRegion(TILE, 1)
+            } catch (e: RuntimeException) {
+                error = e
+            }
+        }
+        assertThat(started.await(1, TimeUnit.SECONDS)).isTrue()
+
+        decoder.recycle()
+
+        tileThread.join(TimeUnit.SECONDS.toMillis(1))
+        assertThat(tileThread.isAlive).isFalse()
+        assertThat(error).isNotNull()
+        assertThat(asset.handles.single().isCancelled).isTrue()
+        assertThat(decoder.isReady).isFalse()
+    }
+
+    @Test
+    fun recycle_whileDecodeStarting_cancelsDecodeOnceItsHandleIsAssigned() {
+        val decoder = AssetRegionDecoder(asset, RAW_DIMENSIONS)
+        // Recycles before #decodeBitmapRegionCancellable has returned the handle.
+        asset.onDecodeRegion = { _, _, _ -> decoder.recycle() }
+
+        assertThrows(RuntimeException::class.java) { decoder.decodeRegion(TILE, 1) }
+
+        assertThat(asset.handles.single().isCancelled).isTrue()
+    }
+
+    @Test
+    fun decodeRegion_afterRecycle_throwsWithoutDecoding() {
+        val decoder = AssetRegionDecoder(asset, RAW_DIMENSIONS)
+        decoder.recycle()
+
+        assertThrows(IllegalStateException::class.java) { decoder.decodeRegion(TILE, 1) }
+
+        assertThat(asset.handles).isEmpty()
+    }
+
+    /** Asset whose region decodes are handled by the test, and which keeps their handles. */
+    private class FakeTilingAsset : Asset() {
+        var onDecodeRegion: (Int, Int, BitmapReceiver) -> Unit = { _, _, _ -> }
+        val handles = mutableListOf<DecodeHandle>()
+
+        override fun decodeBitmapRegionCancellable(
+            rect: Rect,
+            targetWidth: Int,
+            targetHeight: Int,
+            shouldAdjustForRtl: Boolean,
+            receiver: BitmapReceiver
+        ): DecodeHandle =
+            super.decodeBitmapRegionCancellable(
+                    rect,
+                    targetWidth,
+                    targetHeight,
+                    shouldAdjustForRtl,
+                    receiver
+                )
+                .also { handles.add(it) }
+
+        override fun decodeBitmapRegion(
+            rect: Rect,
+            targetWidth: Int,
+            targetHeight: Int,
+            shouldAdjustForRtl: Boolean,
+            receiver: BitmapReceiver
+        ) = onDecodeRegion(targetWidth, targetHeight, receiver)
+
+        override fun decodeBitmap(
+            targetWidth: Int,
+            targetHeight: Int,
+            useHardwareBitmapIfPossible: Boolean,
+            receiver: BitmapReceiver
+        ) = receiver.onBitmapDecoded(null)
+
+        override fun decodeBitmap(receiver: BitmapReceiver) = receiver.onBitmapDecoded(null)
+
+        override fun decodeRawDimensions(activity: Activity?, receiver: DimensionsReceiver) =
+            receiver.onDimensionsDecoded(RAW_DIMENSIONS)
+
+        override fun supportsTiling() = true
+    }
+
+    private companion object {
+        val RAW_DIMENSIONS = Point(4000, 3000)
+        val TILE = Rect(0, 0, 256, 256)
+        const val SHORT_TIMEOUT_MILLIS = 50L
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.content.ContentProvider
+import android.content.ContentResolver
+import android.content.ContentValues
+import android.content.Context
+import android.database.Cursor
+import android.database.MatrixCursor
+import android.graphics.Bitmap
+import android.graphics.Point
+import android.media.ExifInterface
+import android.net.Uri
+import android.provider.DocumentsContract
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import java.io.ByteArrayInputStream
+import java.io.File
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+
+@RunWith(RobolectricTestRunner::class)
+class ContentUriMetadataTest {
+
+    private val context = ApplicationProvider.getApplicationContext<Context>()
+    private val resolver: ContentResolver = context.contentResolver
+    private lateinit var provider: FakeImageProvider
+    private val openCounts = mutableMapOf<Uri, Int>()
+
+    @Before
+    fun setUp() {
+        ContentUriMetadata.clearCache()
+        provider =
+            Robolectric.buildContentProvider(FakeImageProvider::class.java).create(AUTHORITY).get()
+    }
+
+    @After
+    fun tearDown() {
+        ContentUriMetadata.clearCache()
+    }
+
+    @Test
+    fun probe_readsMimeTypeLastModifiedAndRotatedBounds() {
+        val uri =
+            addImage(
+                "rotated",
+                lastModified = 1000L,
+                width = 40,
+                height = 20,
+                orientation = ExifInterface.ORIENTATION_ROTATE_90,
+            )
+
+        val metadata = ContentUriMetadata.probe(resolver, uri)
+
+        assertThat(metadata.mimeType).isEqualTo(MIME_TYPE)
+        assertThat(metadata.lastModified).isEqualTo(1000L)
+        assertThat(metadata.exifOrientation).isEqualTo(ExifInterface.ORIENTATION_ROTATE_90)
+        assertThat(metadata.exif).isNotNull()
+        // Swapped for the rotation.
+        assertThat(metadata.rawDimensions).isEqualTo(Point(20, 40))
+    }
+
+    @Test
+    fun probe_noExifOrientation_normalOrientationAndBounds() {
+        val uri = addImage("upright", lastModified = 1000L, width = 40, height = 20)
+
+        val metadata = ContentUriMetadata.probe(resolver, uri)
+
+        assertThat(metadata.exifOrientation)
+            .isEqualTo(ExifInterfaceCompat.EXIF_ORIENTATION_NORMAL)
+        assertThat(metadata.rawDimensions).isEqualTo(Point(40, 20))
+    }
+
+    @Test
+    fun probe_sameLastModified_servedFromCache() {
+        val uri = addImage("image", lastModified = 1000L)
+        val metadata = ContentUriMetadata.probe(resolver, uri)
+        val opensAfterFirstProbe = openCounts[uri]
+
+        assertThat(ContentUriMetadata.probe(resolver, uri)).isSameInstanceAs(metadata)
+        assertThat(openCounts[uri]).isEqualTo(opensAfterFirstProbe)
+    }
+
+    @Test
+    fun probe_lastModifiedChanged_probesAgain() {
+        val uri = addImage("image", lastModified = 1000L)
+        val metadata = ContentUriMetadata.probe(resolver, uri)
+        val opensAfterFirstProbe = openCounts.getValue(uri)
+
+        provider.lastModified[uri] = 2000L
+        val reprobed = ContentUriMetadata.probe(resolver, uri)
+
+        assertThat(reprobed).isNotSameInstanceAs(metadata)
+        assertThat(reprobed.lastModified).isEqualTo(2000L)
+        assertThat(openCounts[uri]).isGreaterThan(opensAfterFirstProbe)
+    }
+
+    @Test
+    fun probe_unknownLastModified_notCached() {
+        val uri = addImage("image", lastModified = null)
+        val metadata = ContentUriMetadata.probe(resolver, uri)
+
+        assertThat(metadata.lastModified).isEqualTo(ContentUriMetadata.UNKNOWN_LAST_MODIFIED)
+        assertThat(ContentUriMetadata.probe(resolver, uri)).isNotSameInstanceAs(metadata)
+    }
+
+    @Test
+    fun probe_moreUrisThanCacheSize_evictsLeastRecentlyUsed() {
+        val uris = List(ContentUriMetadata.CACHE_SIZE + 1) { addImage("image$it", 1000L) }
+        val first = ContentUriMetadata.probe(resolver, uris[0])
+        val second = ContentUriMetadata.probe(resolver, uris[1])
+        uris.drop(2).dropLast(1).forEach { ContentUriMetadata.probe(resolver, it) }
+
+        // Using the first one makes the second one the least recently used.
+        ContentUriMetadata.probe(resolver, uris[0])
+        ContentUriMetadata.probe(resolver, uris.last())
+
+        assertThat(ContentUriMetadata.probe(resolver, uris[0])).isSameInstanceAs(first)
+        assertThat(ContentUriMetadata.probe(resolver, uris[1])).isNotSameInstanceAs(second)
+    }
+
+    /**
+     * Adds a JPEG image to the fake provider and returns its URI.
+     *
+     * @param lastModified Last modified time the provider reports, or null if it reports none.
+     */
+    private fun addImage(
+        name: String,
+        lastModified: Long?,
+        width: Int = 4,
+        height: Int = 2,
+        orientation: Int? = null,
+    ): Uri {
+        val uri = Uri.parse("content://$AUTHORITY/$name")
+        val file = File(context.cacheDir, "$name.jpg")
+        file.outputStream().use {
+            Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+                .compress(Bitmap.CompressFormat.JPEG, 100, it)
+        }
+        if (orientation != null) {
+            ExifInterface(file.path).apply {
+                setAttribute(ExifInterface.TAG_ORIENTATION, orientation.toString())
+                saveAttributes()
+            }
+        }
+        val bytes = file.readBytes()
+        file.delete()
+
+        if (lastModified != null) {
+            provider.lastModified[uri] = lastModified
+        }
+        shadowOf(resolver).registerInputStreamSupplier(uri) {
+            openCounts[uri] = (openCounts[uri] ?: 0) + 1
+            ByteArrayInputStream(bytes)
+        }
+        return uri
+    }
+
+    /** Provider of the MIME type and last modified time of images. */
+    class FakeImageProvider : ContentProvider() {
+        val lastModified = mutableMapOf<Uri, Long>()
+
+        override fun onCreate() = true
+
+        override fun query(
+            uri: Uri,
+            projection: Array<out String>?,
+            selection: String?,
+            selectionArgs: Array<out String>?,
+            sortOrder: String?
+        ): Cursor? {
+            val time = lastModified[uri] ?: return null
+            return MatrixCursor(arrayOf(DocumentsContract.Document.COLUMN_LAST_MODIFIED)).apply {
+                addRow(arrayOf(time))
+            }
+        }
+
+        override fun getType(uri: Uri): String = MIME_TYPE
+
+        override fun insert(uri: Uri, values: ContentValues?): Uri? =
+            throw UnsupportedOperationException()
+
+        override fun delete(uri: Uri, selection: String?, selectionArgs: Array<out String>?): Int =
+            throw UnsupportedOperationException()
+
+        override fun update(
+            uri: Uri,
+            values: ContentValues?,
+            selection: String?,
+            selectionArgs: Array<out String>?
+        ): Int = throw UnsupportedOperationException()
+    }
+
+    private companion object {
+        const val AUTHORITY = "com.android.wallpaper.asset.test"
+        const val MIME_TYPE = "image/jpeg"
+    }
+}
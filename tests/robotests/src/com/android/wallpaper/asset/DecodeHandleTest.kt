@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.graphics.Bitmap
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class DecodeHandleTest {
+
+    private val handle = DecodeHandle()
+    private val delivered = mutableListOf<Bitmap?>()
+    private val bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)
+
+    @Test
+    fun wrap_notCancelled_deliversBitmap() {
+        handle.wrap { delivered.add(it) }.onBitmapDecoded(bitmap)
+
+        assertThat(delivered).containsExactly(bitmap)
+    }
+
+    @Test
+    fun cancel_beforeDecodeEnds_suppressesDelivery() {
+        val receiver = handle.wrap { delivered.add(it) }
+
+        handle.cancel()
+        receiver.onBitmapDecoded(bitmap)
+
+        assertThat(handle.isCancelled).isTrue()
+        assertThat(delivered).isEmpty()
+    }
+
+    @Test
+    fun cancel_twice_runsListenerOnce() {
+        var cancellations = 0
+        handle.setOnCancelListener { cancellations++ }
+
+        handle.cancel()
+        handle.cancel()
+
+        assertThat(cancellations).isEqualTo(1)
+    }
+
+    @Test
+    fun setOnCancelListener_notCancelled_runsListenerOnCancel() {
+        var cancelled = false
+        handle.setOnCancelListener { cancelled = true }
+        assertThat(cancelled).isFalse()
+
+        handle.cancel()
+
+        assertThat(cancelled).isTrue()
+    }
+
+    @Test
+    fun setOnCancelListener_alreadyCancelled_runsListenerRightAway() {
+        var cancelled = false
+        handle.cancel()
+
+        handle.setOnCancelListener { cancelled = true }
+
+        assertThat(cancelled).isTrue()
+    }
+
+    @Test
+    fun link_cancelsLinkedHandleOnCancel() {
+        val linked = DecodeHandle()
+        handle.link(linked)
+        assertThat(linked.isCancelled).isFalse()
+
+        handle.cancel()
+
+        assertThat(linked.isCancelled).isTrue()
+    }
+
+    @Test
+    fun link_alreadyCancelled_cancelsLinkedHandleRightAway() {
+        val linked = DecodeHandle()
+        handle.cancel()
+
+        handle.link(linked)
+
+        assertThat(linked.isCancelled).isTrue()
+    }
+
+    @Test
+    fun cancel_linkedHandle_leavesLinkingHandleUncancelled() {
+        val linked = DecodeHandle()
+        handle.link(linked)
+
+        linked.cancel()
+
+        assertThat(handle.isCancelled).isFalse()
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import com.android.wallpaper.asset.DecodeScheduler.Priority
+import com.google.common.truth.Truth.assertThat
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class DecodeSchedulerTest {
+
+    @Test
+    fun execute_runsHigherPriorityLanesFirst() {
+        val scheduler = DecodeScheduler(/* poolSize= */ 1)
+        val blocker = CountDownLatch(1)
+        val done = CountDownLatch(4)
+        val order = Collections.synchronizedList(mutableListOf<Priority>())
+
+        // Occupy the only thread so that the following tasks queue up.
+        scheduler.execute(Priority.VISIBLE_PREVIEW) { blocker.await() }
+        listOf(
+                Priority.COLOR_EXTRACTION,
+                Priority.PREFETCH,
+                Priority.VISIBLE_THUMBNAIL,
+                Priority.VISIBLE_PREVIEW,
+            )
+            .forEach { priority ->
+                scheduler.execute(priority) {
+                    order.add(priority)
+                    done.countDown()
+                }
+            }
+        blocker.countDown()
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue()
+        assertThat(order)
+            .containsExactly(
+                Priority.VISIBLE_PREVIEW,
+                Priority.VISIBLE_THUMBNAIL,
+                Priority.PREFETCH,
+                Priority.COLOR_EXTRACTION,
+            )
+            .inOrder()
+    }
+
+    @Test
+    fun submit_countsExecutedTasksPerLane() {
+        val scheduler = DecodeScheduler(/* poolSize= */ 1)
+
+        val result = scheduler.submit(Priority.PREFETCH) { 42 }.get(5, TimeUnit.SECONDS)
+        // Counters are updated after the task body returns; on a single thread, waiting for a
+        // second task guarantees the first one has been fully accounted for.
+        scheduler.submit(Priority.VISIBLE_PREVIEW) {}.get(5, TimeUnit.SECONDS)
+
+        assertThat(result).isEqualTo(42)
+        val stats = scheduler.getStats(Priority.PREFETCH)
+        assertThat(stats.executedCount).isEqualTo(1)
+        assertThat(stats.queueDepth).isEqualTo(0)
+        assertThat(scheduler.getStats(Priority.COLOR_EXTRACTION).executedCount).isEqualTo(0)
+    }
+
+    @Test
+    fun calculatePoolSize_boundedByCpusAndHeap() {
+        val mib = 1024L * 1024L
+        assertThat(DecodeScheduler.calculatePoolSize(8, 512 * mib)).isEqualTo(8)
+        assertThat(DecodeScheduler.calculatePoolSize(8, 256 * mib)).isEqualTo(4)
+        assertThat(DecodeScheduler.calculatePoolSize(1, 512 * mib)).isEqualTo(2)
+        assertThat(DecodeScheduler.calculatePoolSize(8, 64 * mib)).isEqualTo(2)
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.graphics.Bitmap
+import androidx.test.core.app.ApplicationProvider
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class DecodedBitmapCacheTest {
+
+    private lateinit var cache: DecodedBitmapCache
+
+    @Before
+    fun setUp() {
+        val context: Context = ApplicationProvider.getApplicationContext()
+        // Room for exactly two 10x10 ARGB_8888 bitmaps.
+        cache = DecodedBitmapCache(2 * 10 * 10 * 4, File(context.cacheDir, "test_bitmaps"))
+    }
+
+    @Test
+    fun putInMemory_evictsLeastRecentlyUsedWhenFull() {
+        cache.putInMemory("a", newBitmap())
+        cache.putInMemory("b", newBitmap())
+        cache.getFromMemory("a")
+        cache.putInMemory("c", newBitmap())
+
+        assertThat(cache.getFromMemory("a")).isNotNull()
+        assertThat(cache.getFromMemory("b")).isNull()
+        assertThat(cache.getFromMemory("c")).isNotNull()
+    }
+
+    @Test
+    fun onTrimMemory_uiHidden_shrinksMemoryTier() {
+        cache.putInMemory("a", newBitmap())
+        cache.putInMemory("b", newBitmap())
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+
+        assertThat(cache.getFromMemory("a")).isNull()
+        assertThat(cache.getFromMemory("b")).isNotNull()
+    }
+
+    @Test
+    fun onTrimMemory_complete_clearsMemoryTier() {
+        cache.putInMemory("a", newBitmap())
+
+        cache.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE)
+
+        assertThat(cache.getFromMemory("a")).isNull()
+    }
+
+    @Test
+    fun calculateMemoryCacheSize_isAnEighthOfTheMemoryClass() {
+        assertThat(DecodedBitmapCache.calculateMemoryCacheSize(256)).isEqualTo(32 * 1024 * 1024)
+    }
+
+    private fun newBitmap(): Bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888)
+}
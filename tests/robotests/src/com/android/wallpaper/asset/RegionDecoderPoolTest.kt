@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.graphics.Bitmap
+import android.graphics.BitmapRegionDecoder
+import android.os.Looper
+import com.google.common.truth.Truth.assertThat
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+
+@RunWith(RobolectricTestRunner::class)
+class RegionDecoderPoolTest {
+
+    private val encodedImage =
+        ByteArrayOutputStream().let {
+            Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888)
+                .compress(Bitmap.CompressFormat.PNG, 100, it)
+            it.toByteArray()
+        }
+    private var openCount = 0
+    private val factory =
+        RegionDecoderPool.Factory {
+            openCount++
+            BitmapRegionDecoder.newInstance(ByteArrayInputStream(encodedImage))
+        }
+
+    @Test
+    fun calculateMaxSize_boundedByCpusAndMaxPoolSize() {
+        assertThat(RegionDecoderPool.calculateMaxSize(0)).isEqualTo(1)
+        assertThat(RegionDecoderPool.calculateMaxSize(2)).isEqualTo(2)
+        assertThat(RegionDecoderPool.calculateMaxSize(16)).isEqualTo(4)
+    }
+
+    @Test
+    fun acquire_afterRelease_reusesDecoder() {
+        val pool = RegionDecoderPool(factory, /* maxSize= */ 2)
+
+        val decoder = pool.acquire()!!
+        pool.release(decoder)
+
+        assertThat(pool.acquire()).isSameInstanceAs(decoder)
+        assertThat(openCount).isEqualTo(1)
+    }
+
+    @Test
+    fun acquire_allInUse_opensUpToMaxSizeThenWaitsForRelease() {
+        val pool = RegionDecoderPool(factory, /* maxSize= */ 2)
+        val first = pool.acquire()!!
+        val second = pool.acquire()!!
+        assertThat(second).isNotSameInstanceAs(first)
+
+        val acquired = CountDownLatch(1)
+        var third: BitmapRegionDecoder? = null
+        val waiter = thread {
+            third = pool.acquire()
+            acquired.countDown()
+        }
+        assertThat(acquired.await(200, TimeUnit.MILLISECONDS)).isFalse()
+
+        pool.release(first)
+
+        assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue()
+        waiter.join()
+        assertThat(third).isSameInstanceAs(first)
+        assertThat(openCount).isEqualTo(2)
+    }
+
+    @Test
+    fun acquire_openFails_returnsNullAndFreesSlot() {
+        var fail = true
+        val pool =
+            RegionDecoderPool(
+                { if (fail) null else factory.open() },
+                /* maxSize= */ 1,
+            )
+
+        assertThat(pool.acquire()).isNull()
+        fail = false
+
+        assertThat(pool.acquire()).isNotNull()
+    }
+
+    @Test
+    fun release_noneInUse_keepsOnlyOneDecoder() {
+        val pool = RegionDecoderPool(factory, /* maxSize= */ 3)
+        val decoders = List(3) { pool.acquire()!! }
+
+        decoders.forEach { pool.release(it) }
+
+        assertThat(pool.decoderCount).isEqualTo(1)
+        assertThat(decoders.count { it.isRecycled }).isEqualTo(2)
+    }
+
+    @Test
+    fun release_idleForTimeout_recyclesDecoder() {
+        val pool = RegionDecoderPool(factory, /* maxSize= */ 2)
+        val decoder = pool.acquire()!!
+        pool.release(decoder)
+
+        shadowOf(Looper.getMainLooper())
+            .idleFor(Duration.ofMillis(RegionDecoderPool.IDLE_TIMEOUT_MILLIS))
+
+        assertThat(decoder.isRecycled).isTrue()
+        assertThat(pool.decoderCount).isEqualTo(0)
+        assertThat(pool.acquire()).isNotSameInstanceAs(decoder)
+        assertThat(openCount).isEqualTo(2)
+    }
+
+    @Test
+    fun release_usedAgainBeforeTimeout_keepsDecoder() {
+        val pool = RegionDecoderPool(factory, /* maxSize= */ 2)
+        val decoder = pool.acquire()!!
+        pool.release(decoder)
+        shadowOf(Looper.getMainLooper())
+            .idleFor(Duration.ofMillis(RegionDecoderPool.IDLE_TIMEOUT_MILLIS / 2))
+
+        pool.release(pool.acquire()!!)
+        shadowOf(Looper.getMainLooper())
+            .idleFor(Duration.ofMillis(RegionDecoderPool.IDLE_TIMEOUT_MILLIS / 2))
+
+        assertThat(decoder.isRecycled).isFalse()
+        assertThat(pool.decoderCount).isEqualTo(1)
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.content.Context
+import android.content.pm.PackageInfo
+import androidx.test.core.app.ApplicationProvider
+import com.android.wallpaper.R
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+
+@RunWith(RobolectricTestRunner::class)
+class ResourceAssetTest {
+
+    private val context: Context = ApplicationProvider.getApplicationContext()
+    private val asset = ResourceAsset(context.resources, R.drawable.ic_explore_24px)
+
+    @Test
+    fun getStableContentKey_samePackage_staysTheSame() {
+        assertThat(asset.getStableContentKey(context)).isNotNull()
+        assertThat(asset.getStableContentKey(context))
+            .isEqualTo(
+                ResourceAsset(context.resources, R.drawable.ic_explore_24px)
+                    .getStableContentKey(context)
+            )
+    }
+
+    @Test
+    fun getStableContentKey_packageUpdated_changes() {
+        val keyBeforeUpdate = asset.getStableContentKey(context)
+
+        updatePackage { lastUpdateTime += 1000 }
+
+        assertThat(asset.getStableContentKey(context)).isNotEqualTo(keyBeforeUpdate)
+    }
+
+    @Test
+    fun getStableContentKey_packageVersionChanged_changes() {
+        val keyBeforeUpdate = asset.getStableContentKey(context)
+
+        updatePackage { longVersionCode += 1 }
+
+        assertThat(asset.getStableContentKey(context)).isNotEqualTo(keyBeforeUpdate)
+    }
+
+    private fun updatePackage(update: PackageInfo.() -> Unit) {
+        val packageManager = context.packageManager
+        val packageInfo = packageManager.getPackageInfo(context.packageName, 0)
+        packageInfo.update()
+        shadowOf(packageManager).installPackage(packageInfo)
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class ReusableBitmapPoolTest {
+
+    private val pool = ReusableBitmapPool(/* maxSizeBytes= */ 4L * 1024 * 1024)
+
+    @Test
+    fun prepareForDecode_emptyPool_countsMiss() {
+        val options = BitmapFactory.Options()
+
+        pool.prepareForDecode(options, 100, 100)
+
+        assertThat(options.inBitmap).isNotNull()
+        assertThat(options.inMutable).isTrue()
+        assertThat(pool.hitCount).isEqualTo(0)
+        assertThat(pool.missCount).isEqualTo(1)
+    }
+
+    @Test
+    fun prepareForDecode_afterPut_reusesBitmap() {
+        val bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888)
+        pool.put(bitmap)
+        val options = BitmapFactory.Options()
+
+        pool.prepareForDecode(options, 100, 100)
+
+        assertThat(options.inBitmap).isSameInstanceAs(bitmap)
+        assertThat(pool.hitCount).isEqualTo(1)
+        assertThat(pool.missCount).isEqualTo(0)
+    }
+
+    @Test
+    fun prepareForDecode_hardwareConfig_leavesOptionsAlone() {
+        val options = BitmapFactory.Options().apply { inPreferredConfig = Bitmap.Config.HARDWARE }
+
+        pool.prepareForDecode(options, 100, 100)
+
+        assertThat(options.inBitmap).isNull()
+        assertThat(pool.missCount).isEqualTo(0)
+    }
+
+    @Test
+    fun put_immutableBitmap_isNotPooled() {
+        val bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888).copy(
+            Bitmap.Config.ARGB_8888,
+            /* isMutable= */ false
+        )
+        pool.put(bitmap)
+        val options = BitmapFactory.Options()
+
+        pool.prepareForDecode(options, 100, 100)
+
+        assertThat(options.inBitmap).isNotSameInstanceAs(bitmap)
+        assertThat(pool.missCount).isEqualTo(1)
+    }
+
+    @Test
+    fun getSampledSize_roundsUp() {
+        assertThat(ReusableBitmapPool.getSampledSize(1001, 2)).isEqualTo(501)
+        assertThat(ReusableBitmapPool.getSampledSize(1000, 2)).isEqualTo(500)
+        assertThat(ReusableBitmapPool.getSampledSize(1, 8)).isEqualTo(1)
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.graphics.Bitmap
+import android.graphics.Rect
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class RotatedRegionDecodingTest {
+
+    private val decodedRegions = mutableListOf<Rect>()
+    private val stripBitmaps = mutableListOf<Bitmap?>()
+    private val source =
+        RotatedRegionDecoding.RegionSource { rect, options ->
+            decodedRegions.add(Rect(rect))
+            stripBitmaps.add(options.inBitmap)
+            options.inBitmap
+        }
+
+    @Test
+    fun decodeRotatedRegion_rotated90_swapsDimensions() {
+        val bitmap =
+            RotatedRegionDecoding.decodeRotatedRegion(
+                source,
+                Rect(0, 0, 1000, 600),
+                /* sampleSize= */ 2,
+                /* degrees= */ 90
+            )
+
+        assertThat(bitmap!!.width).isEqualTo(300)
+        assertThat(bitmap.height).isEqualTo(500)
+    }
+
+    @Test
+    fun decodeRotatedRegion_rotated180_keepsDimensions() {
+        val bitmap =
+            RotatedRegionDecoding.decodeRotatedRegion(
+                source,
+                Rect(0, 0, 1000, 600),
+                /* sampleSize= */ 1,
+                /* degrees= */ 180
+            )
+
+        assertThat(bitmap!!.width).isEqualTo(1000)
+        assertThat(bitmap.height).isEqualTo(600)
+    }
+
+    @Test
+    fun decodeInStrips_decodesContiguousStrips() {
+        val sampleSize = 2
+        val crop = Rect(10, 20, 410, 20 + 3 * RotatedRegionDecoding.STRIP_HEIGHT * sampleSize - 7)
+
+        RotatedRegionDecoding.decodeInStrips(source, crop, sampleSize, /* degrees= */ 270)
+
+        assertThat(decodedRegions).hasSize(3)
+        var top = crop.top
+        for (region in decodedRegions) {
+            assertThat(region.left).isEqualTo(crop.left)
+            assertThat(region.right).isEqualTo(crop.right)
+            assertThat(region.top).isEqualTo(top)
+            assertThat(region.height()).isAtMost(RotatedRegionDecoding.STRIP_HEIGHT * sampleSize)
+            top = region.bottom
+        }
+        assertThat(top).isEqualTo(crop.bottom)
+    }
+
+    @Test
+    fun decodeInStrips_reusesOneStripBitmap() {
+        val crop = Rect(0, 0, 800, 4 * RotatedRegionDecoding.STRIP_HEIGHT)
+
+        RotatedRegionDecoding.decodeInStrips(
+            source,
+            crop,
+            /* sampleSize= */ 1,
+            /* degrees= */ 90
+        )
+
+        // Peak memory is the output plus a single strip, never a second full size bitmap.
+        val strip = stripBitmaps.first()!!
+        assertThat(stripBitmaps.distinct()).containsExactly(strip)
+        assertThat(strip.width).isEqualTo(crop.width())
+        assertThat(strip.height).isEqualTo(RotatedRegionDecoding.STRIP_HEIGHT)
+    }
+
+    @Test
+    fun decodeInStrips_stripFails_returnsNull() {
+        val failingSource = RotatedRegionDecoding.RegionSource { _, _ -> null }
+
+        val bitmap =
+            RotatedRegionDecoding.decodeInStrips(
+                failingSource,
+                Rect(0, 0, 100, 100),
+                /* sampleSize= */ 1,
+                /* degrees= */ 90
+            )
+
+        assertThat(bitmap).isNull()
+    }
+
+    @Test
+    fun decodeOnceAndRotate_decodesWholeRegionOnce() {
+        val crop = Rect(10, 20, 410, 20 + 3 * RotatedRegionDecoding.STRIP_HEIGHT)
+
+        val bitmap =
+            RotatedRegionDecoding.decodeOnceAndRotate(
+                source,
+                crop,
+                /* sampleSize= */ 1,
+                /* degrees= */ 90
+            )
+
+        assertThat(decodedRegions).containsExactly(crop)
+        assertThat(bitmap!!.width).isEqualTo(crop.height())
+        assertThat(bitmap.height).isEqualTo(crop.width())
+    }
+
+    @Test
+    fun decodeOnceAndRotate_decodeFails_returnsNull() {
+        val failingSource = RotatedRegionDecoding.RegionSource { _, _ -> null }
+
+        val bitmap =
+            RotatedRegionDecoding.decodeOnceAndRotate(
+                failingSource,
+                Rect(0, 0, 100, 100),
+                /* sampleSize= */ 1,
+                /* degrees= */ 90
+            )
+
+        assertThat(bitmap).isNull()
+    }
+
+    @Test
+    fun shouldDecodeInStrips_fullResolution_neverDecodesInStrips() {
+        assertThat(
+                RotatedRegionDecoding.shouldDecodeInStrips(
+                    Rect(0, 0, 12_000, 9_000),
+                    /* sampleSize= */ 1,
+                    MAX_HEAP_BYTES
+                )
+            )
+            .isFalse()
+    }
+
+    @Test
+    fun shouldDecodeInStrips_sampled_onlyWhenOutputIsMemoryBound() {
+        // 6000 x 4500 ARGB_8888 output, over an eighth of the heap.
+        assertThat(
+                RotatedRegionDecoding.shouldDecodeInStrips(
+                    Rect(0, 0, 12_000, 9_000),
+                    /* sampleSize= */ 2,
+                    MAX_HEAP_BYTES
+                )
+            )
+            .isTrue()
+        // 2000 x 1500 ARGB_8888 output, well within it.
+        assertThat(
+                RotatedRegionDecoding.shouldDecodeInStrips(
+                    Rect(0, 0, 4_000, 3_000),
+                    /* sampleSize= */ 2,
+                    MAX_HEAP_BYTES
+                )
+            )
+            .isFalse()
+    }
+
+    @Test
+    fun getRotationMatrix_rotated90_mapsCornersIntoBounds() {
+        val points = floatArrayOf(0f, 0f, 4f, 2f)
+
+        RotatedRegionDecoding.getRotationMatrix(90, /* width= */ 4, /* height= */ 2)
+            .mapPoints(points)
+
+        assertThat(points.toList()).containsExactly(2f, 0f, 0f, 4f).inOrder()
+    }
+
+    private companion object {
+        const val MAX_HEAP_BYTES = 512L * 1024 * 1024
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.graphics.Bitmap
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class SingleFlightTest {
+
+    private val singleFlight = SingleFlight<String>()
+    private val pendingReceivers = mutableListOf<Asset.BitmapReceiver>()
+    private val decodeHandles = mutableListOf<DecodeHandle>()
+    private val decoder =
+        SingleFlight.Decoder { receiver ->
+            pendingReceivers.add(receiver)
+            DecodeHandle().also { decodeHandles.add(it) }
+        }
+
+    @Test
+    fun join_sameKey_sharesOneDecode() {
+        val results = mutableListOf<Bitmap?>()
+        singleFlight.join("key", { results.add(it) }, decoder)
+        singleFlight.join("key", { results.add(it) }, decoder)
+
+        val bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)
+        pendingReceivers.single().onBitmapDecoded(bitmap)
+
+        assertThat(results).containsExactly(bitmap, bitmap)
+        assertThat(singleFlight.counters.executedCount).isEqualTo(1)
+        assertThat(singleFlight.counters.coalescedCount).isEqualTo(1)
+    }
+
+    @Test
+    fun join_differentKeys_decodesEach() {
+        singleFlight.join("key1", {}, decoder)
+        singleFlight.join("key2", {}, decoder)
+
+        assertThat(pendingReceivers).hasSize(2)
+        assertThat(singleFlight.counters.executedCount).isEqualTo(2)
+        assertThat(singleFlight.counters.coalescedCount).isEqualTo(0)
+    }
+
+    @Test
+    fun join_afterCompletion_decodesAgain() {
+        singleFlight.join("key", {}, decoder)
+        pendingReceivers.single().onBitmapDecoded(null)
+
+        singleFlight.join("key", {}, decoder)
+
+        assertThat(pendingReceivers).hasSize(2)
+    }
+
+    @Test
+    fun cancel_oneOfTwoWaiters_keepsDecodeForTheOther() {
+        var cancelledResult: Bitmap? = null
+        var result: Bitmap? = null
+        val handle = singleFlight.join("key", { cancelledResult = it }, decoder)
+        singleFlight.join("key", { result = it }, decoder)
+
+        handle.cancel()
+        val bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)
+        pendingReceivers.single().onBitmapDecoded(bitmap)
+
+        assertThat(decodeHandles.single().isCancelled).isFalse()
+        assertThat(cancelledResult).isNull()
+        assertThat(result).isSameInstanceAs(bitmap)
+    }
+
+    @Test
+    fun cancel_allWaiters_cancelsDecode() {
+        val handle1 = singleFlight.join("key", {}, decoder)
+        val handle2 = singleFlight.join("key", {}, decoder)
+
+        handle1.cancel()
+        handle2.cancel()
+
+        assertThat(decodeHandles.single().isCancelled).isTrue()
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.backup
+
+import android.app.WallpaperManager
+import android.app.WallpaperManager.FLAG_LOCK
+import android.app.WallpaperManager.FLAG_SYSTEM
+import android.app.job.JobParameters
+import android.content.Context
+import android.content.ContextWrapper
+import android.content.SharedPreferences
+import android.os.ParcelFileDescriptor
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.wallpaper.module.InjectorProvider
+import com.android.wallpaper.module.WallpaperFingerprinter
+import com.android.wallpaper.module.WallpaperPreferences
+import com.android.wallpaper.testing.TestInjector
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import kotlin.random.Random
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.robolectric.Robolectric
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class MissingHashCodeGeneratorJobServiceTest {
+
+    private lateinit var context: Context
+    private lateinit var manager: WallpaperManager
+    private lateinit var prefs: WallpaperPreferences
+    private lateinit var progress: SharedPreferences
+    private lateinit var homeFile: File
+    private lateinit var lockFile: File
+    private val params: JobParameters = mock(JobParameters::class.java)
+
+    /** Number of the lock wallpaper file open during which the running job is stopped. */
+    private var stopAtLockOpen = 0
+    private var lockOpens = 0
+    private var runningService: MissingHashCodeGeneratorJobService? = null
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        val injector = TestInjector()
+        InjectorProvider.setInjector(injector)
+        prefs = injector.getPreferences(context)
+        progress =
+            context.getSharedPreferences(
+                MissingHashCodeGeneratorJobService.PROGRESS_PREFS_NAME,
+                Context.MODE_PRIVATE
+            )
+        homeFile = writeWallpaperFile("home", HOME_SEED)
+        lockFile = writeWallpaperFile("lock", LOCK_SEED)
+
+        manager = mock(WallpaperManager::class.java)
+        doAnswer { open(homeFile) }.`when`(manager).getWallpaperFile(FLAG_SYSTEM)
+        doAnswer {
+                lockOpens++
+                if (lockOpens == stopAtLockOpen) {
+                    runningService!!.onStopJob(params)
+                }
+                open(lockFile)
+            }
+            .`when`(manager)
+            .getWallpaperFile(FLAG_LOCK)
+    }
+
+    @After
+    fun tearDown() {
+        progress.edit().clear().commit()
+    }
+
+    @Test
+    fun stoppedWhileReadingLock_resumesWithoutRereadingHomeAndClearsTotalsOnFinish() {
+        // The first lock open checks whether there's a distinct lock wallpaper, the second one
+        // fingerprints it.
+        stopAtLockOpen = 2
+
+        runJob()
+
+        assertThat(prefs.homeWallpaperHashCode)
+            .isEqualTo(WallpaperFingerprinter.fingerprint(homeFile))
+        assertThat(prefs.lockWallpaperHashCode).isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+        assertThat(progress.getInt(MissingHashCodeGeneratorJobService.KEY_RUN_COUNT, 0))
+            .isEqualTo(1)
+        assertThat(progress.getLong(MissingHashCodeGeneratorJobService.KEY_BYTES_READ, 0))
+            .isAtLeast(SIZE.toLong())
+
+        runJob()
+
+        verify(manager, times(1)).getWallpaperFile(FLAG_SYSTEM)
+        assertThat(prefs.lockWallpaperHashCode)
+            .isEqualTo(WallpaperFingerprinter.fingerprint(lockFile))
+        assertThat(progress.all).isEmpty()
+    }
+
+    @Test
+    fun finishedInOneRun_clearsTotals() {
+        runJob()
+
+        assertThat(prefs.homeWallpaperHashCode)
+            .isEqualTo(WallpaperFingerprinter.fingerprint(homeFile))
+        assertThat(prefs.lockWallpaperHashCode)
+            .isEqualTo(WallpaperFingerprinter.fingerprint(lockFile))
+        assertThat(progress.all).isEmpty()
+    }
+
+    /** Runs the job on a new service, as a rescheduled job would be, and waits for it to end. */
+    private fun runJob() {
+        val service =
+            Robolectric.buildService(TestJobService::class.java).create().get().also {
+                it.manager = manager
+            }
+        runningService = service
+
+        assertThat(service.onStartJob(params)).isTrue()
+        service.workerThread!!.join(TIMEOUT_MILLIS)
+        assertThat(service.workerThread!!.isAlive).isFalse()
+    }
+
+    private fun writeWallpaperFile(name: String, seed: Int): File =
+        File(context.cacheDir, name).apply { writeBytes(Random(seed).nextBytes(SIZE)) }
+
+    private fun open(file: File): ParcelFileDescriptor =
+        ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)
+
+    /** Job service which gets the given wallpaper manager from its application context. */
+    class TestJobService : MissingHashCodeGeneratorJobService() {
+        lateinit var manager: WallpaperManager
+
+        override fun getApplicationContext(): Context =
+            object : ContextWrapper(super.getApplicationContext()) {
+                override fun getSystemService(name: String): Any? =
+                    if (name == Context.WALLPAPER_SERVICE) manager
+                    else super.getSystemService(name)
+            }
+    }
+
+    private companion object {
+        const val HOME_SEED = 5
+        const val LOCK_SEED = 7
+        // Several read buffers, so a stopped read is abandoned before the end of the file.
+        const val SIZE = 300_000
+        const val TIMEOUT_MILLIS = 10_000L
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class DailyRotationTimestampsTest {
+
+    private val file =
+        File(
+            InstrumentationRegistry.getInstrumentation().targetContext.noBackupFilesDir,
+            DailyRotationTimestamps.FILE_NAME
+        )
+
+    @Test
+    fun getLast_noTimestamps_minusOne() {
+        assertThat(DailyRotationTimestamps(file).last).isEqualTo(-1L)
+    }
+
+    @Test
+    fun add_timestampsReadBackByNewInstance() {
+        val timestamps = DailyRotationTimestamps(file)
+        timestamps.add(100L)
+        timestamps.add(200L)
+
+        val reloaded = DailyRotationTimestamps(file)
+
+        assertThat(reloaded.last).isEqualTo(200L)
+        assertThat(reloaded.getRange(0L, Long.MAX_VALUE).toList()).containsExactly(100L, 200L)
+            .inOrder()
+    }
+
+    @Test
+    fun add_overCapacity_keepsMostRecent() {
+        val timestamps = DailyRotationTimestamps(file)
+        val count = DailyRotationTimestamps.CAPACITY + 5
+        for (i in 1..count) {
+            timestamps.add(i.toLong())
+        }
+
+        val expected = (6..count).map { it.toLong() }
+        assertThat(timestamps.getRange(0L, Long.MAX_VALUE).toList()).isEqualTo(expected)
+        assertThat(DailyRotationTimestamps(file).getRange(0L, Long.MAX_VALUE).toList())
+            .isEqualTo(expected)
+    }
+
+    @Test
+    fun getRange_includesStartExcludesEnd() {
+        val timestamps = DailyRotationTimestamps(file)
+        timestamps.addAll(longArrayOf(10L, 20L, 30L, 40L))
+
+        assertThat(timestamps.getRange(20L, 40L).toList()).containsExactly(20L, 30L).inOrder()
+    }
+
+    @Test
+    fun clear_removesTimestampsAndFile() {
+        val timestamps = DailyRotationTimestamps(file)
+        timestamps.add(100L)
+
+        timestamps.clear()
+
+        assertThat(timestamps.last).isEqualTo(-1L)
+        assertThat(file.exists()).isFalse()
+    }
+
+    @Test
+    fun load_unknownFormat_noTimestamps() {
+        file.writeBytes(byteArrayOf(1, 2, 3))
+
+        assertThat(DailyRotationTimestamps(file).last).isEqualTo(-1L)
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.graphics.Rect
+import android.os.Looper
+import com.android.wallpaper.testing.TestAsset
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+
+@RunWith(RobolectricTestRunner::class)
+class DefaultBitmapCropperTest {
+
+    private val cropper = DefaultBitmapCropper()
+
+    @Test
+    fun cropAndScaleBitmap_fitsToExactCropSize() {
+        val results = mutableListOf<Bitmap>()
+
+        cropper.cropAndScaleBitmap(
+            TestAsset(Color.RED, /* isCorrupt= */ false),
+            /* scale= */ 4f,
+            Rect(0, 0, 40, 24),
+            /* isRtl= */ false,
+            recordingCallback(results, errors = mutableListOf())
+        )
+        awaitUntil { results.isNotEmpty() }
+
+        assertThat(results.single().width).isEqualTo(40)
+        assertThat(results.single().height).isEqualTo(24)
+    }
+
+    @Test
+    fun cropAndScaleBitmap_independentCrops_eachGetsItsOwnSize() {
+        val asset = TestAsset(Color.BLUE, /* isCorrupt= */ false)
+        val results = mutableListOf<Bitmap>()
+        val callback = recordingCallback(results, errors = mutableListOf())
+
+        cropper.cropAndScaleBitmap(asset, 1f, Rect(0, 0, 10, 20), false, callback)
+        cropper.cropAndScaleBitmap(asset, 1f, Rect(0, 0, 30, 5), false, callback)
+        awaitUntil { results.size == 2 }
+
+        assertThat(results.map { it.width to it.height }).containsExactly(10 to 20, 30 to 5)
+    }
+
+    @Test
+    fun cropAndScaleBitmap_corruptAsset_reportsError() {
+        val errors = mutableListOf<Throwable?>()
+
+        cropper.cropAndScaleBitmap(
+            TestAsset(Color.RED, /* isCorrupt= */ true),
+            1f,
+            Rect(0, 0, 10, 10),
+            false,
+            recordingCallback(results = mutableListOf(), errors)
+        )
+        awaitUntil { errors.isNotEmpty() }
+
+        assertThat(errors).hasSize(1)
+    }
+
+    private fun recordingCallback(
+        results: MutableList<Bitmap>,
+        errors: MutableList<Throwable?>,
+    ) =
+        object : BitmapCropper.Callback {
+            override fun onBitmapCropped(croppedBitmap: Bitmap) {
+                results.add(croppedBitmap)
+            }
+
+            override fun onError(e: Throwable?) {
+                errors.add(e)
+            }
+        }
+
+    /** Runs the main looper until the condition holds, as scaling happens on a decode thread. */
+    private fun awaitUntil(condition: () -> Boolean) {
+        // Robolectric's SystemClock only advances with the looper, so use the real clock.
+        val deadline = System.currentTimeMillis() + TIMEOUT_MILLIS
+        while (!condition() && System.currentTimeMillis() < deadline) {
+            shadowOf(Looper.getMainLooper()).idle()
+            Thread.sleep(POLL_MILLIS)
+        }
+    }
+
+    private companion object {
+        const val TIMEOUT_MILLIS = 5_000L
+        const val POLL_MILLIS = 10L
+    }
+}
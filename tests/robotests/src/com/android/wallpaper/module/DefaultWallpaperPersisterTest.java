@@ -19,16 +19,23 @@ import static android.app.WallpaperManager.FLAG_LOCK;
 import static android.app.WallpaperManager.FLAG_SYSTEM;
 
 import static com.android.wallpaper.module.WallpaperPersister.DEST_BOTH;
+import static com.android.wallpaper.module.WallpaperPersister.DEST_HOME_SCREEN;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.robolectric.shadows.ShadowLooper.shadowMainLooper;
 
 import android.app.WallpaperManager;
 import android.content.Context;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -48,12 +55,16 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
-import org.robolectric.android.util.concurrent.PausedExecutorService;
-import org.robolectric.shadows.ShadowPausedAsyncTask;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 
+import kotlinx.coroutines.CoroutineScopeKt;
+import kotlinx.coroutines.Dispatchers;
+
 @RunWith(RobolectricTestRunner.class)
 public class DefaultWallpaperPersisterTest {
     private static final String TAG = "DefaultWallpaperPersisterTest";
@@ -66,8 +77,6 @@ public class DefaultWallpaperPersisterTest {
     private WallpaperManager mManager;
     /** Fake instance of WallpaperPreferences */
     private TestWallpaperPreferences mPrefs;
-    /** Executor to use for AsyncTask */
-    private final PausedExecutorService mPausedExecutor = new PausedExecutorService();
 
     @Before
     public void setUp() {
@@ -79,8 +88,11 @@ public class DefaultWallpaperPersisterTest {
         TestBitmapCropper cropper = new TestBitmapCropper();
         TestWallpaperStatusChecker statusChecker = new TestWallpaperStatusChecker();
 
+        // Sets wallpapers on the calling thread, i.e. as soon as the main looper has decoded them.
         mPersister = new DefaultWallpaperPersister(mContext, mManager, mPrefs, changedNotifier,
-                displayUtils, cropper, statusChecker, false);
+                displayUtils, cropper, statusChecker, false, new DefaultWallpaperEncodePolicy(),
+                CoroutineScopeKt.CoroutineScope(Dispatchers.getUnconfined()),
+                Dispatchers.getUnconfined(), Dispatchers.getUnconfined());
     }
 
     @Test
@@ -123,6 +135,59 @@ public class DefaultWallpaperPersisterTest {
         assertThat(mPrefs.getLockWallpaperActionUrl()).isEqualTo(ACTION_URL);
     }
 
+    @Test
+    public void setBitmapWallpaper_savesFingerprintOfStoredWallpaper() throws IOException {
+        File storedWallpaper = stubStoredHomeWallpaper();
+        TestStaticWallpaperInfo wallpaperInfo = newStaticWallpaperInfo();
+        prepareWallpaperSetFromInfo(wallpaperInfo);
+        TestSetWallpaperCallback callback = new TestSetWallpaperCallback();
+
+        mPersister.setIndividualWallpaper(wallpaperInfo, wallpaperInfo.getAsset(mContext), null,
+                1.0f, DEST_BOTH, callback);
+
+        verifyWallpaperSetSuccess(callback);
+        assertThat(mPrefs.getHomeWallpaperHashCode())
+                .isEqualTo(WallpaperFingerprinter.fingerprint(storedWallpaper));
+    }
+
+    @Test
+    public void setBitmapWallpaper_fingerprinted_doesNotReadWallpaperBack() throws IOException {
+        stubStoredHomeWallpaper();
+        TestStaticWallpaperInfo wallpaperInfo = newStaticWallpaperInfo();
+        prepareWallpaperSetFromInfo(wallpaperInfo);
+        TestSetWallpaperCallback callback = new TestSetWallpaperCallback();
+
+        mPersister.setIndividualWallpaper(wallpaperInfo, wallpaperInfo.getAsset(mContext), null,
+                1.0f, DEST_HOME_SCREEN, callback);
+
+        verifyWallpaperSetSuccess(callback);
+        verify(mManager, never()).getDrawable();
+    }
+
+    @Test
+    public void isFullImageCrop_wholeImageAtOriginalSize_true() {
+        assertThat(DefaultWallpaperPersister.isFullImageCrop(new Rect(0, 0, 400, 300), 1.0f,
+                new Point(400, 300))).isTrue();
+    }
+
+    @Test
+    public void isFullImageCrop_scaled_false() {
+        assertThat(DefaultWallpaperPersister.isFullImageCrop(new Rect(0, 0, 400, 300), 0.5f,
+                new Point(400, 300))).isFalse();
+    }
+
+    @Test
+    public void isFullImageCrop_partOfImage_false() {
+        assertThat(DefaultWallpaperPersister.isFullImageCrop(new Rect(10, 0, 400, 300), 1.0f,
+                new Point(400, 300))).isFalse();
+    }
+
+    @Test
+    public void isFullImageCrop_unknownDimensions_false() {
+        assertThat(DefaultWallpaperPersister.isFullImageCrop(new Rect(0, 0, 400, 300), 1.0f,
+                null)).isFalse();
+    }
+
      // Creates a basic test wallpaper info instance.
     private static TestStaticWallpaperInfo newStaticWallpaperInfo() {
         List<String> attributions = new ArrayList<>();
@@ -138,6 +203,19 @@ public class DefaultWallpaperPersisterTest {
         return wallpaperInfo;
     }
 
+    /**
+     * Makes WallpaperManager return a home wallpaper file of its own, as it stores its own encode
+     * of the wallpaper rather than the one it's handed.
+     */
+    private File stubStoredHomeWallpaper() throws IOException {
+        File storedWallpaper = File.createTempFile("stored_wallpaper", null,
+                mContext.getCacheDir());
+        Files.write(storedWallpaper.toPath(), new byte[] {1, 2, 3, 4});
+        doAnswer(invocation -> ParcelFileDescriptor.open(storedWallpaper,
+                ParcelFileDescriptor.MODE_READ_ONLY)).when(mManager).getWallpaperFile(FLAG_SYSTEM);
+        return storedWallpaper;
+    }
+
     // Call this method to prepare for a call to setIndividualWallpaper with non-streamable bitmap.
     private void prepareWallpaperSetFromInfo(TestStaticWallpaperInfo wallpaperInfo) {
         // Retrieve the bitmap to be set by the given WallpaperInfo, and override the return value
@@ -145,17 +223,10 @@ public class DefaultWallpaperPersisterTest {
         TestAsset asset = (TestAsset) wallpaperInfo.getAsset(mContext);
         doReturn(new BitmapDrawable(mContext.getResources(), asset.getBitmap())).when(mManager)
                 .getDrawable();
-        // Override the background executor for AsyncTask to that we can explicitly execute its
-        // tasks - otherwise this will remain in the queue even after main looper idle.
-        ShadowPausedAsyncTask.overrideExecutor(mPausedExecutor);
     }
 
     private void verifyWallpaperSetSuccess(TestSetWallpaperCallback callback) {
-        // Execute pending Asset#decodeBitmap; queues SetWallpaperTask background job
-        shadowMainLooper().idle();
-        // Execute SetWallpaperTask background job; queues onPostExecute on main thread
-        mPausedExecutor.runAll();
-        // Execute SetWallpaperTask#onPostExecute
+        // Execute pending Asset#decodeBitmap, after which the wallpaper is set right away.
         shadowMainLooper().idle();
 
         assertThat(callback.getStatus()).isEqualTo(SetWallpaperStatus.SUCCESS);
@@ -16,6 +16,9 @@
 package com.android.wallpaper.module
 
 import android.content.Context
+import android.content.ContextWrapper
+import android.content.SharedPreferences
+import android.graphics.Color
 import androidx.test.core.app.ApplicationProvider
 import com.android.wallpaper.R
 import com.android.wallpaper.model.StaticWallpaperMetadata
@@ -112,4 +115,175 @@ class DefaultWallpaperPreferencesTest {
         assertThat(pref.getString(NoBackupKeys.KEY_LOCK_WALLPAPER_REMOTE_ID, null))
             .isEqualTo("ocean")
     }
+
+    @Test
+    fun edit_metadataOfOneApply_writesEachFileOnce() {
+        val files = mutableMapOf<String, WriteCountingSharedPreferences>()
+        val preferences = DefaultWallpaperPreferences(writeCountingContext(files))
+
+        preferences.edit {
+            preferences.clearHomeWallpaperMetadata()
+            preferences.setHomeWallpaperManagerId(3)
+            preferences.setHomeWallpaperAttributions(listOf("attr1", "attr2"))
+            preferences.setHomeWallpaperActionUrl("http://www.google.com/")
+            preferences.setHomeWallpaperActionLabelRes(R.string.explore)
+            preferences.setHomeWallpaperCollectionId("cultural_events")
+            preferences.setHomeWallpaperHashCode(10013L)
+            preferences.setHomeWallpaperRemoteId("ocean")
+            preferences.setHomeWallpaperRecentsKey("ocean")
+            preferences.setWallpaperPresentationMode(WallpaperPreferences.PRESENTATION_MODE_STATIC)
+        }
+
+        assertThat(files.getValue(DefaultWallpaperPreferences.PREFS_NAME).writeCount).isEqualTo(1)
+        assertThat(files.getValue(DefaultWallpaperPreferences.NO_BACKUP_PREFS_NAME).writeCount)
+            .isEqualTo(1)
+        assertThat(preferences.homeWallpaperHashCode).isEqualTo(10013L)
+        assertThat(preferences.homeWallpaperManagerId).isEqualTo(3)
+        assertThat(preferences.homeWallpaperRecentsKey).isEqualTo("ocean")
+    }
+
+    @Test
+    fun edit_readsWithinTransaction_reflectChangesSoFar() {
+        wallpaperPreferences.setHomeWallpaperHashCode(1L)
+        wallpaperPreferences.setHomeWallpaperCollectionId("old_collection")
+        var hashCodeRead = 0L
+        var collectionIdRead: String? = "not read"
+
+        wallpaperPreferences.edit {
+            wallpaperPreferences.setHomeWallpaperHashCode(2L)
+            wallpaperPreferences.clearHomeWallpaperMetadata()
+            wallpaperPreferences.setHomeWallpaperHashCode(3L)
+            hashCodeRead = wallpaperPreferences.homeWallpaperHashCode
+            collectionIdRead = wallpaperPreferences.homeWallpaperCollectionId
+        }
+
+        assertThat(hashCodeRead).isEqualTo(3L)
+        assertThat(collectionIdRead).isNull()
+        assertThat(wallpaperPreferences.homeWallpaperHashCode).isEqualTo(3L)
+    }
+
+    @Test
+    fun edit_changesThrow_discardsChanges() {
+        wallpaperPreferences.setHomeWallpaperHashCode(1L)
+
+        try {
+            wallpaperPreferences.edit {
+                wallpaperPreferences.setHomeWallpaperHashCode(2L)
+                throw IllegalStateException()
+            }
+        } catch (e: IllegalStateException) {
+            // Expected.
+        }
+
+        assertThat(wallpaperPreferences.homeWallpaperHashCode).isEqualTo(1L)
+    }
+
+    @Test
+    fun getLastDailyRotationTimestamp_jsonFromOlderVersion_migratesAndRemovesKey() {
+        val noBackupPrefs =
+            (ApplicationProvider.getApplicationContext() as Context).getSharedPreferences(
+                DefaultWallpaperPreferences.NO_BACKUP_PREFS_NAME,
+                Context.MODE_PRIVATE
+            )
+        noBackupPrefs.edit().putString(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS, "[1,2]").commit()
+
+        assertThat(wallpaperPreferences.lastDailyRotationTimestamp).isEqualTo(2L)
+        wallpaperPreferences.addDailyRotation(3L)
+
+        assertThat(noBackupPrefs.contains(NoBackupKeys.KEY_DAILY_ROTATION_TIMESTAMPS)).isFalse()
+        assertThat(
+                DefaultWallpaperPreferences(ApplicationProvider.getApplicationContext())
+                    .lastDailyRotationTimestamp
+            )
+            .isEqualTo(3L)
+    }
+
+    @Test
+    fun getWallpaperColors_storedByOlderVersion_migratesAndRemovesKey() {
+        val noBackupPrefs =
+            (ApplicationProvider.getApplicationContext() as Context).getSharedPreferences(
+                DefaultWallpaperPreferences.NO_BACKUP_PREFS_NAME,
+                Context.MODE_PRIVATE
+            )
+        val key = NoBackupKeys.KEY_PREVIEW_WALLPAPER_COLOR_ID + "migrated-ocean"
+        noBackupPrefs.edit().putString(key, "${Color.RED},${Color.BLUE}").commit()
+
+        val colors = wallpaperPreferences.getWallpaperColors("migrated-ocean")
+
+        assertThat(colors!!.primaryColor.toArgb()).isEqualTo(Color.RED)
+        assertThat(colors.secondaryColor!!.toArgb()).isEqualTo(Color.BLUE)
+        assertThat(noBackupPrefs.contains(key)).isFalse()
+    }
+
+    private fun writeCountingContext(files: MutableMap<String, WriteCountingSharedPreferences>) =
+        object : ContextWrapper(ApplicationProvider.getApplicationContext()) {
+            override fun getSharedPreferences(name: String, mode: Int): SharedPreferences =
+                files.getOrPut(name) {
+                    WriteCountingSharedPreferences(super.getSharedPreferences(name, mode))
+                }
+        }
+
+    /** Counts the editors applied or committed to the SharedPreferences it wraps. */
+    private class WriteCountingSharedPreferences(private val prefs: SharedPreferences) :
+        SharedPreferences by prefs {
+        var writeCount = 0
+
+        override fun edit(): SharedPreferences.Editor = CountingEditor(prefs.edit())
+
+        private inner class CountingEditor(private val editor: SharedPreferences.Editor) :
+            SharedPreferences.Editor {
+            override fun putString(key: String?, value: String?): SharedPreferences.Editor {
+                editor.putString(key, value)
+                return this
+            }
+
+            override fun putStringSet(
+                key: String?,
+                values: MutableSet<String>?
+            ): SharedPreferences.Editor {
+                editor.putStringSet(key, values)
+                return this
+            }
+
+            override fun putInt(key: String?, value: Int): SharedPreferences.Editor {
+                editor.putInt(key, value)
+                return this
+            }
+
+            override fun putLong(key: String?, value: Long): SharedPreferences.Editor {
+                editor.putLong(key, value)
+                return this
+            }
+
+            override fun putFloat(key: String?, value: Float): SharedPreferences.Editor {
+                editor.putFloat(key, value)
+                return this
+            }
+
+            override fun putBoolean(key: String?, value: Boolean): SharedPreferences.Editor {
+                editor.putBoolean(key, value)
+                return this
+            }
+
+            override fun remove(key: String?): SharedPreferences.Editor {
+                editor.remove(key)
+                return this
+            }
+
+            override fun clear(): SharedPreferences.Editor {
+                editor.clear()
+                return this
+            }
+
+            override fun commit(): Boolean {
+                writeCount++
+                return editor.commit()
+            }
+
+            override fun apply() {
+                writeCount++
+                editor.apply()
+            }
+        }
+    }
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.app.Activity
+import android.app.WallpaperManager
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.graphics.Point
+import android.graphics.Rect
+import android.graphics.drawable.BitmapDrawable
+import android.os.Looper
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.wallpaper.asset.Asset
+import com.android.wallpaper.module.SetWallpaperProgress.Failed
+import com.android.wallpaper.module.SetWallpaperProgress.StageCompleted
+import com.android.wallpaper.module.SetWallpaperProgress.Succeeded
+import com.android.wallpaper.module.WallpaperPersister.DEST_BOTH
+import com.android.wallpaper.testing.TestAsset
+import com.android.wallpaper.testing.TestBitmapCropper
+import com.android.wallpaper.testing.TestStaticWallpaperInfo
+import com.android.wallpaper.testing.TestWallpaperPreferences
+import com.android.wallpaper.testing.TestWallpaperStatusChecker
+import com.android.wallpaper.util.DisplayUtils
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.doThrow
+import org.mockito.Mockito.never
+import org.mockito.Mockito.spy
+import org.mockito.Mockito.verify
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+
+@OptIn(ExperimentalCoroutinesApi::class)
+@RunWith(RobolectricTestRunner::class)
+class SetWallpaperPipelineTest {
+
+    private lateinit var context: Context
+    private lateinit var manager: WallpaperManager
+    private lateinit var testScope: TestScope
+    private lateinit var pipeline: SetWallpaperPipeline
+    private val wallpaper = TestStaticWallpaperInfo(Color.RED)
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        manager = spy(WallpaperManager.getInstance(context))
+        doReturn(false).`when`(manager).isMultiCropEnabled
+        val currentWallpaper = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)
+        doReturn(BitmapDrawable(context.resources, currentWallpaper)).`when`(manager).drawable
+        val testDispatcher = StandardTestDispatcher()
+        testScope = TestScope(testDispatcher)
+        val persister =
+            DefaultWallpaperPersister(
+                context,
+                manager,
+                TestWallpaperPreferences(),
+                WallpaperChangedNotifier.getInstance(),
+                DisplayUtils(context),
+                TestBitmapCropper(),
+                TestWallpaperStatusChecker(),
+                /* isRefactorSettingWallpaper= */ false,
+            )
+        pipeline =
+            SetWallpaperPipeline(
+                persister,
+                manager,
+                TestBitmapCropper(),
+                { Point(SCREEN_SIZE, SCREEN_SIZE) },
+                testDispatcher,
+                testDispatcher,
+            )
+    }
+
+    @Test
+    fun setIndividualWallpaper_emitsEachStageThenSucceeded() =
+        testScope.runTest {
+            val progress = mutableListOf<SetWallpaperProgress>()
+            setWallpaper(TestAsset(Color.RED, /* isCorrupt= */ false), progress)
+
+            runToCompletion()
+
+            assertThat(progress.dropLast(1).map { (it as StageCompleted).stage })
+                .containsExactly(
+                    SetWallpaperStage.DECODE,
+                    SetWallpaperStage.TRANSFORM,
+                    SetWallpaperStage.ENCODE,
+                    SetWallpaperStage.WRITE,
+                    SetWallpaperStage.METADATA,
+                )
+                .inOrder()
+            val succeeded = progress.last() as Succeeded
+            assertThat(succeeded.wallpaperId).isGreaterThan(0)
+            assertThat(succeeded.stageDurationsMillis.keys)
+                .containsExactlyElementsIn(
+                    progress.dropLast(1).map { (it as StageCompleted).stage }
+                )
+        }
+
+    @Test
+    fun setIndividualWallpaper_decodeFails_emitsFailedDecode() =
+        testScope.runTest {
+            val progress = mutableListOf<SetWallpaperProgress>()
+            setWallpaper(TestAsset(Color.RED, /* isCorrupt= */ true), progress)
+
+            runToCompletion()
+
+            assertThat(progress).containsExactly(Failed(SetWallpaperStage.DECODE))
+        }
+
+    @Test
+    fun setIndividualWallpaper_writeThrows_emitsFailedWriteWithCause() =
+        testScope.runTest {
+            val error = IllegalStateException("Setting wallpapers is disabled")
+            doThrow(error).`when`(manager).setStream(any(), any(), anyBoolean(), anyInt())
+            doThrow(error).`when`(manager).setBitmap(any(), any(), anyBoolean(), anyInt())
+            val progress = mutableListOf<SetWallpaperProgress>()
+            setWallpaper(TestAsset(Color.RED, /* isCorrupt= */ false), progress)
+
+            runToCompletion()
+
+            assertThat(progress.dropLast(1).map { (it as StageCompleted).stage })
+                .containsExactly(
+                    SetWallpaperStage.DECODE,
+                    SetWallpaperStage.TRANSFORM,
+                    SetWallpaperStage.ENCODE,
+                )
+                .inOrder()
+            assertThat(progress.last()).isEqualTo(Failed(SetWallpaperStage.WRITE, error))
+        }
+
+    @Test
+    fun setIndividualWallpaper_cancelledBeforeWrite_doesNotSetWallpaper() =
+        testScope.runTest {
+            val asset = PendingAsset()
+            val progress = mutableListOf<SetWallpaperProgress>()
+            val job = setWallpaper(asset, progress)
+            runCurrent()
+
+            job.cancel()
+            asset.completeDecodes()
+            runToCompletion()
+
+            assertThat(progress).isEmpty()
+            verify(manager, never()).setStream(any(), any(), anyBoolean(), anyInt())
+            verify(manager, never()).setBitmap(any(), any(), anyBoolean(), anyInt())
+        }
+
+    private fun TestScope.setWallpaper(
+        asset: Asset,
+        progress: MutableList<SetWallpaperProgress>,
+    ): Job =
+        backgroundScope.launch {
+            pipeline
+                .setIndividualWallpaper(wallpaper, asset, /* cropRect= */ null, 1f, DEST_BOTH)
+                .toList(progress)
+        }
+
+    /** Runs the pipeline, and the decodes it posts to the main looper, until it's done. */
+    private fun TestScope.runToCompletion() {
+        runCurrent()
+        shadowOf(Looper.getMainLooper()).idle()
+        advanceUntilIdle()
+    }
+
+    /** Asset whose decodes only complete once [completeDecodes] is called. */
+    private class PendingAsset : Asset() {
+        private val bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888)
+        private val receivers = mutableListOf<BitmapReceiver>()
+
+        fun completeDecodes() {
+            receivers.forEach { it.onBitmapDecoded(bitmap) }
+            receivers.clear()
+        }
+
+        override fun decodeBitmap(
+            targetWidth: Int,
+            targetHeight: Int,
+            hardwareBitmapAllowed: Boolean,
+            receiver: BitmapReceiver,
+        ) {
+            receivers += receiver
+        }
+
+        override fun decodeBitmap(receiver: BitmapReceiver) {
+            receivers += receiver
+        }
+
+        override fun decodeBitmapRegion(
+            rect: Rect,
+            targetWidth: Int,
+            targetHeight: Int,
+            shouldAdjustForRtl: Boolean,
+            receiver: BitmapReceiver,
+        ) {
+            receivers += receiver
+        }
+
+        override fun decodeRawDimensions(activity: Activity?, receiver: DimensionsReceiver) {
+            receiver.onDimensionsDecoded(Point(bitmap.width, bitmap.height))
+        }
+
+        override fun supportsTiling(): Boolean = false
+    }
+
+    companion object {
+        private const val SCREEN_SIZE = 100
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import com.google.common.truth.Truth.assertThat
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import kotlin.random.Random
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class SpoolingInputStreamTest {
+
+    private val content = Random(SEED).nextBytes(100_000)
+
+    @Test
+    fun readToEnd_spoolsEveryByte() {
+        val spool = ByteArrayOutputStream()
+        val stream = SpoolingInputStream(ByteArrayInputStream(content), spool)
+
+        stream.readBytes()
+        stream.close()
+
+        assertThat(spool.toByteArray()).isEqualTo(content)
+        assertThat(stream.isSpoolComplete).isTrue()
+    }
+
+    @Test
+    fun readByteByByte_spoolsEveryByte() {
+        val spool = ByteArrayOutputStream()
+        val stream = SpoolingInputStream(ByteArrayInputStream(content), spool)
+
+        while (stream.read() != -1) {}
+
+        assertThat(spool.toByteArray()).isEqualTo(content)
+        assertThat(stream.isSpoolComplete).isTrue()
+    }
+
+    @Test
+    fun skip_stillSpoolsSkippedBytes() {
+        val spool = ByteArrayOutputStream()
+        val stream = SpoolingInputStream(ByteArrayInputStream(content), spool)
+
+        stream.skip(1000)
+        stream.read()
+        stream.readBytes()
+
+        assertThat(spool.toByteArray()).isEqualTo(content)
+    }
+
+    @Test
+    fun partialRead_spoolIncomplete() {
+        val stream = SpoolingInputStream(ByteArrayInputStream(content), ByteArrayOutputStream())
+
+        stream.read(ByteArray(10))
+
+        assertThat(stream.isSpoolComplete).isFalse()
+    }
+
+    @Test
+    fun spoolWriteFails_readsStillSucceed() {
+        val failingSpool =
+            object : OutputStream() {
+                override fun write(b: Int) {
+                    throw IOException("disk full")
+                }
+            }
+        val stream = SpoolingInputStream(ByteArrayInputStream(content), failingSpool)
+
+        assertThat(stream.readBytes()).isEqualTo(content)
+        assertThat(stream.isSpoolComplete).isFalse()
+    }
+
+    private companion object {
+        const val SEED = 7
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.os.SystemClock
+import com.google.common.truth.Truth.assertThat
+import java.util.function.Supplier
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class StageTimingsTest {
+
+    private val timings = StageTimings()
+
+    @Test
+    fun measure_returnsResultAndRecordsDuration() {
+        val result =
+            timings.measure(
+                "decode",
+                Supplier {
+                    SystemClock.sleep(30)
+                    42
+                }
+            )
+
+        assertThat(result).isEqualTo(42)
+        assertThat(timings.getMillis("decode")).isEqualTo(30)
+    }
+
+    @Test
+    fun measure_sameStageTwice_sumsDurations() {
+        timings.measure("write", Runnable { SystemClock.sleep(10) })
+        timings.measure("write", Runnable { SystemClock.sleep(5) })
+
+        assertThat(timings.getMillis("write")).isEqualTo(15)
+    }
+
+    @Test
+    fun getMillis_unmeasuredStage_notMeasured() {
+        assertThat(timings.getMillis("encode")).isEqualTo(StageTimings.NOT_MEASURED)
+    }
+
+    @Test
+    fun measure_workThrows_stillRecordsDuration() {
+        try {
+            timings.measure("hash", Runnable { throw IllegalStateException() })
+        } catch (expected: IllegalStateException) {}
+
+        assertThat(timings.getMillis("hash")).isAtLeast(0)
+    }
+
+    @Test
+    fun toString_listsStagesInOrder() {
+        timings.measure("write", Runnable { SystemClock.sleep(2) })
+        timings.measure("metadata", Runnable { SystemClock.sleep(1) })
+
+        assertThat(timings.toString()).isEqualTo("write=2ms, metadata=1ms")
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.app.WallpaperColors
+import android.graphics.Color
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class WallpaperColorStoreTest {
+
+    private val file =
+        File(
+            InstrumentationRegistry.getInstrumentation().targetContext.noBackupFilesDir,
+            WallpaperColorStore.FILE_NAME
+        )
+
+    @Test
+    fun get_noColorsStored_null() {
+        assertThat(WallpaperColorStore(file).get("ocean")).isNull()
+    }
+
+    @Test
+    fun put_colorsReadBackByNewStore() {
+        WallpaperColorStore(file).apply {
+            put("ocean", COLORS)
+            writeNow()
+        }
+
+        val colors = WallpaperColorStore(file).get("ocean")
+
+        assertThat(colors!!.primaryColor.toArgb()).isEqualTo(Color.RED)
+        assertThat(colors.secondaryColor!!.toArgb()).isEqualTo(Color.BLUE)
+        assertThat(colors.tertiaryColor).isNull()
+    }
+
+    @Test
+    fun put_overCapacity_evictsLeastRecentlyUsed() {
+        val store = WallpaperColorStore(file)
+        for (i in 0 until WallpaperColorStore.MAX_ENTRIES) {
+            store.put("wallpaper$i", COLORS)
+        }
+        // Using the oldest wallpaper makes the second oldest the least recently used.
+        store.get("wallpaper0")
+
+        store.put("new", COLORS)
+
+        assertThat(store.get("wallpaper0")).isNotNull()
+        assertThat(store.get("wallpaper1")).isNull()
+        store.writeNow()
+        assertThat(WallpaperColorStore(file).get("wallpaper1")).isNull()
+        assertThat(WallpaperColorStore(file).get("new")).isNotNull()
+    }
+
+    @Test
+    fun get_unknownFormat_null() {
+        file.writeBytes(byteArrayOf(0, 0, 0, 9))
+
+        assertThat(WallpaperColorStore(file).get("ocean")).isNull()
+    }
+
+    private companion object {
+        val COLORS = WallpaperColors(Color.valueOf(Color.RED), Color.valueOf(Color.BLUE), null)
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.app.WallpaperManager.FLAG_LOCK
+import android.app.WallpaperManager.FLAG_SYSTEM
+import android.graphics.Bitmap.CompressFormat
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class WallpaperEncodeFormatTest {
+
+    @Test
+    fun lossy_usesLossyWebpWithQuality() {
+        val format = WallpaperEncodeFormat.lossy(90)
+
+        assertThat(format.compressFormat).isEqualTo(CompressFormat.WEBP_LOSSY)
+        assertThat(format.quality).isEqualTo(90)
+        assertThat(format.isLossless).isFalse()
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun lossy_qualityOutOfRange_throws() {
+        WallpaperEncodeFormat.lossy(101)
+    }
+
+    @Test
+    fun losslessFormats_areLossless() {
+        assertThat(WallpaperEncodeFormat.PNG.isLossless).isTrue()
+        assertThat(WallpaperEncodeFormat.WEBP_LOSSLESS.isLossless).isTrue()
+    }
+
+    @Test
+    fun defaultPolicy_alwaysPng() {
+        val policy = DefaultWallpaperEncodePolicy()
+
+        assertThat(
+                policy.getEncodeFormat(
+                    FLAG_SYSTEM or FLAG_LOCK,
+                    WallpaperEncodePolicy.SOURCE_USER_SELECTED
+                )
+            )
+            .isEqualTo(WallpaperEncodeFormat.PNG)
+        assertThat(policy.getEncodeFormat(FLAG_SYSTEM, WallpaperEncodePolicy.SOURCE_DAILY_ROTATION))
+            .isEqualTo(WallpaperEncodeFormat.PNG)
+    }
+}
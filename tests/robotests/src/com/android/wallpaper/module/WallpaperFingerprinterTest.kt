@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.app.WallpaperManager
+import android.app.WallpaperManager.FLAG_LOCK
+import android.app.WallpaperManager.FLAG_SYSTEM
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.graphics.drawable.BitmapDrawable
+import android.os.ParcelFileDescriptor
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.wallpaper.asset.BitmapUtils
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import kotlin.random.Random
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.spy
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class WallpaperFingerprinterTest {
+
+    private lateinit var context: Context
+    private lateinit var manager: WallpaperManager
+    private lateinit var fingerprinter: WallpaperFingerprinter
+    private lateinit var wallpaperFile: File
+
+    @Before
+    fun setUp() {
+        context = InstrumentationRegistry.getInstrumentation().targetContext
+        manager = spy(WallpaperManager.getInstance(context))
+        fingerprinter = WallpaperFingerprinter(manager)
+        wallpaperFile =
+            File(context.cacheDir, "wallpaper").apply { writeBytes(Random(SEED).nextBytes(SIZE)) }
+    }
+
+    @Test
+    fun fingerprint_sameContent_sameFingerprint() {
+        val copy = File(context.cacheDir, "copy").apply { writeBytes(wallpaperFile.readBytes()) }
+
+        assertThat(WallpaperFingerprinter.fingerprint(copy))
+            .isEqualTo(WallpaperFingerprinter.fingerprint(wallpaperFile))
+        assertThat(WallpaperFingerprinter.fingerprint(wallpaperFile))
+            .isNotEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+    }
+
+    @Test
+    fun fingerprint_differentContent_differentFingerprint() {
+        val content = wallpaperFile.readBytes()
+        content[SIZE / 2] = (content[SIZE / 2] + 1).toByte()
+        val other = File(context.cacheDir, "other").apply { writeBytes(content) }
+
+        assertThat(WallpaperFingerprinter.fingerprint(other))
+            .isNotEqualTo(WallpaperFingerprinter.fingerprint(wallpaperFile))
+    }
+
+    @Test
+    fun fingerprint_sameDescriptorTwice_readsFromStartAndLeavesItOpen() {
+        val parcelFd = openWallpaperFile()
+        val expected = WallpaperFingerprinter.fingerprint(wallpaperFile)
+
+        assertThat(WallpaperFingerprinter.fingerprint(parcelFd)).isEqualTo(expected)
+        assertThat(WallpaperFingerprinter.fingerprint(parcelFd)).isEqualTo(expected)
+        assertThat(parcelFd.fileDescriptor.valid()).isTrue()
+        parcelFd.close()
+    }
+
+    @Test
+    fun getFingerprint_noWallpaperFile_unknown() {
+        doReturn(null).`when`(manager).getWallpaperFile(FLAG_LOCK)
+
+        assertThat(fingerprinter.getFingerprint(FLAG_LOCK))
+            .isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+    }
+
+    @Test
+    fun matchHashCode_storedFingerprint_matchesWithoutDecoding() {
+        doAnswer { openWallpaperFile() }.`when`(manager).getWallpaperFile(FLAG_SYSTEM)
+        doAnswer { throw AssertionError("decoded the wallpaper") }.`when`(manager).drawable
+        val stored = WallpaperFingerprinter.fingerprint(wallpaperFile)
+
+        assertThat(fingerprinter.matchHashCode(stored, FLAG_SYSTEM)).isEqualTo(stored)
+    }
+
+    @Test
+    fun matchHashCode_storedPixelHashCode_returnsFingerprintToStoreInstead() {
+        val bitmap = redBitmap()
+        doAnswer { openWallpaperFile() }.`when`(manager).getWallpaperFile(FLAG_SYSTEM)
+        doReturn(BitmapDrawable(context.resources, bitmap)).`when`(manager).drawable
+
+        val current = fingerprinter.matchHashCode(BitmapUtils.generateHashCode(bitmap), FLAG_SYSTEM)
+
+        assertThat(current).isEqualTo(WallpaperFingerprinter.fingerprint(wallpaperFile))
+    }
+
+    @Test
+    fun matchHashCode_differentWallpaper_unknown() {
+        val bitmap = redBitmap()
+        doAnswer { openWallpaperFile() }.`when`(manager).getWallpaperFile(FLAG_SYSTEM)
+        doReturn(BitmapDrawable(context.resources, bitmap)).`when`(manager).drawable
+
+        assertThat(fingerprinter.matchHashCode(STALE_HASH_CODE, FLAG_SYSTEM))
+            .isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+    }
+
+    @Test
+    fun matchHashCode_unknownStoredHashCode_unknown() {
+        assertThat(fingerprinter.matchHashCode(WallpaperFingerprinter.UNKNOWN_HASH_CODE, FLAG_LOCK))
+            .isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+    }
+
+    @Test
+    fun getFingerprint_readMonitor_countsBytesOfWholeFile() {
+        val monitor = WallpaperFingerprinter.ReadMonitor()
+        doAnswer { openWallpaperFile() }.`when`(manager).getWallpaperFile(FLAG_LOCK)
+
+        val fingerprint =
+            WallpaperFingerprinter(manager, /* idCache= */ null, monitor).getFingerprint(FLAG_LOCK)
+
+        assertThat(fingerprint).isEqualTo(WallpaperFingerprinter.fingerprint(wallpaperFile))
+        assertThat(monitor.bytesRead).isEqualTo(SIZE.toLong())
+    }
+
+    @Test
+    fun getHashCode_stoppedReadMonitor_unknownWithoutDecoding() {
+        val monitor = WallpaperFingerprinter.ReadMonitor().apply { stop() }
+        doAnswer { openWallpaperFile() }.`when`(manager).getWallpaperFile(FLAG_SYSTEM)
+        doAnswer { throw AssertionError("decoded the wallpaper") }.`when`(manager).drawable
+
+        val hashCode =
+            WallpaperFingerprinter(manager, /* idCache= */ null, monitor).getHashCode(FLAG_SYSTEM)
+
+        assertThat(hashCode).isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+        assertThat(monitor.bytesRead).isLessThan(SIZE.toLong())
+    }
+
+    private fun redBitmap(): Bitmap =
+        Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888).apply { eraseColor(Color.RED) }
+
+    private fun openWallpaperFile(): ParcelFileDescriptor =
+        ParcelFileDescriptor.open(wallpaperFile, ParcelFileDescriptor.MODE_READ_ONLY)
+
+    private companion object {
+        const val SEED = 3
+        const val SIZE = 200_000
+        const val STALE_HASH_CODE = 42L
+    }
+}
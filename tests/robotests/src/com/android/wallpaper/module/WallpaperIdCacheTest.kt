@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.app.WallpaperColors
+import android.app.WallpaperManager
+import android.app.WallpaperManager.FLAG_LOCK
+import android.app.WallpaperManager.FLAG_SYSTEM
+import android.graphics.Color
+import android.graphics.Point
+import android.os.ParcelFileDescriptor
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.doAnswer
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.spy
+import org.mockito.Mockito.times
+import org.mockito.Mockito.verify
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class WallpaperIdCacheTest {
+
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+    private val cache = WallpaperIdCache(context)
+
+    @Test
+    fun getHashCode_sameId_returnsCachedHashCode() {
+        cache.putHashCode(FLAG_SYSTEM, 7, HASH_CODE)
+
+        assertThat(cache.getHashCode(FLAG_SYSTEM, 7)).isEqualTo(HASH_CODE)
+    }
+
+    @Test
+    fun getHashCode_otherId_unknown() {
+        cache.putHashCode(FLAG_SYSTEM, 7, HASH_CODE)
+
+        assertThat(cache.getHashCode(FLAG_SYSTEM, 8))
+            .isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+    }
+
+    @Test
+    fun getHashCode_destinationsAreCachedSeparately() {
+        cache.putHashCode(FLAG_SYSTEM, 7, HASH_CODE)
+
+        assertThat(cache.getHashCode(FLAG_LOCK, 7))
+            .isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+    }
+
+    @Test
+    fun putHashCode_newId_replacesPreviousWallpaper() {
+        cache.putHashCode(FLAG_LOCK, 7, HASH_CODE)
+
+        cache.putHashCode(FLAG_LOCK, 9, OTHER_HASH_CODE)
+
+        assertThat(cache.getHashCode(FLAG_LOCK, 9)).isEqualTo(OTHER_HASH_CODE)
+        assertThat(cache.getHashCode(FLAG_LOCK, 7))
+            .isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+    }
+
+    @Test
+    fun getColors_sameId_returnsColorsWithTheirHints() {
+        cache.putColors(FLAG_SYSTEM, 7, COLORS)
+
+        val colors = cache.getColors(FLAG_SYSTEM, 7)
+
+        assertThat(colors!!.primaryColor.toArgb()).isEqualTo(Color.RED)
+        assertThat(colors.secondaryColor!!.toArgb()).isEqualTo(Color.BLUE)
+        assertThat(colors.tertiaryColor).isNull()
+        assertThat(colors.colorHints).isEqualTo(WallpaperColors.HINT_SUPPORTS_DARK_TEXT)
+    }
+
+    @Test
+    fun getDimensions_sameId_returnsDimensions() {
+        cache.putDimensions(FLAG_LOCK, 7, Point(1080, 2400))
+
+        assertThat(cache.getDimensions(FLAG_LOCK, 7)).isEqualTo(Point(1080, 2400))
+        assertThat(cache.getDimensions(FLAG_LOCK, 8)).isNull()
+    }
+
+    @Test
+    fun put_sameId_keepsOtherValues() {
+        cache.putColors(FLAG_SYSTEM, 7, COLORS)
+        cache.putDimensions(FLAG_SYSTEM, 7, Point(1080, 2400))
+
+        cache.putHashCode(FLAG_SYSTEM, 7, HASH_CODE)
+
+        assertThat(cache.getHashCode(FLAG_SYSTEM, 7)).isEqualTo(HASH_CODE)
+        assertThat(cache.getColors(FLAG_SYSTEM, 7)).isNotNull()
+        assertThat(cache.getDimensions(FLAG_SYSTEM, 7)).isEqualTo(Point(1080, 2400))
+    }
+
+    @Test
+    fun put_newId_clearsValuesOfPreviousWallpaper() {
+        cache.putColors(FLAG_SYSTEM, 7, COLORS)
+        cache.putDimensions(FLAG_SYSTEM, 7, Point(1080, 2400))
+
+        cache.putHashCode(FLAG_SYSTEM, 9, HASH_CODE)
+
+        assertThat(cache.getColors(FLAG_SYSTEM, 9)).isNull()
+        assertThat(cache.getDimensions(FLAG_SYSTEM, 9)).isNull()
+    }
+
+    @Test
+    fun putHashCode_noWallpaperId_ignored() {
+        cache.putHashCode(FLAG_LOCK, -1, HASH_CODE)
+
+        assertThat(cache.getHashCode(FLAG_LOCK, -1))
+            .isEqualTo(WallpaperFingerprinter.UNKNOWN_HASH_CODE)
+    }
+
+    @Test
+    fun fingerprinter_unchangedId_readsWallpaperFileOnce() {
+        val file = File(context.cacheDir, "wallpaper").apply { writeBytes(ByteArray(1024) { 1 }) }
+        val manager = spy(WallpaperManager.getInstance(context))
+        doReturn(7).`when`(manager).getWallpaperId(FLAG_SYSTEM)
+        doAnswer { ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY) }
+            .`when`(manager)
+            .getWallpaperFile(FLAG_SYSTEM)
+        val fingerprinter = WallpaperFingerprinter(manager, cache)
+
+        val first = fingerprinter.getFingerprint(FLAG_SYSTEM)
+        val second = fingerprinter.getFingerprint(FLAG_SYSTEM)
+
+        assertThat(second).isEqualTo(first)
+        verify(manager, times(1)).getWallpaperFile(FLAG_SYSTEM)
+    }
+
+    private companion object {
+        const val HASH_CODE = 1234L
+        const val OTHER_HASH_CODE = 5678L
+        val COLORS =
+            WallpaperColors(
+                Color.valueOf(Color.RED),
+                Color.valueOf(Color.BLUE),
+                null,
+                WallpaperColors.HINT_SUPPORTS_DARK_TEXT,
+            )
+    }
+}
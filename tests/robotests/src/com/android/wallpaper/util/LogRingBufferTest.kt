@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.util
+
+import com.google.common.truth.Truth.assertThat
+import java.util.concurrent.CountDownLatch
+import kotlin.concurrent.thread
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class LogRingBufferTest {
+
+    private val buffer = LogRingBuffer(CAPACITY)
+
+    @Test
+    fun drain_returnsRecordsInOrderOnce() {
+        buffer.offer(1L, "tag", "first")
+        buffer.offer(2L, "tag", "second")
+
+        assertThat(drainMessages()).containsExactly("first", "second").inOrder()
+        assertThat(drainMessages()).isEmpty()
+    }
+
+    @Test
+    fun offer_full_dropsAndCountsRecords() {
+        for (i in 0 until CAPACITY + 3) {
+            buffer.offer(i.toLong(), "tag", "message $i")
+        }
+
+        assertThat(drainMessages()).hasSize(CAPACITY)
+        assertThat(buffer.takeDroppedCount()).isEqualTo(3L)
+        assertThat(buffer.takeDroppedCount()).isEqualTo(0L)
+    }
+
+    @Test
+    fun offer_afterDrain_reusesSlots() {
+        for (lap in 0 until 3) {
+            for (i in 0 until CAPACITY) {
+                assertThat(buffer.offer(i.toLong(), "tag", "$lap/$i")).isTrue()
+            }
+            assertThat(drainMessages()).hasSize(CAPACITY)
+        }
+    }
+
+    @Test
+    fun offer_concurrentProducers_drainsEveryRecordOfEachInOrder() {
+        val producerCount = 4
+        val recordsPerProducer = 10_000
+        val start = CountDownLatch(1)
+        val producers =
+            (0 until producerCount).map { producer ->
+                thread {
+                    start.await()
+                    for (i in 0 until recordsPerProducer) {
+                        while (!buffer.offer(i.toLong(), producer.toString(), "")) {
+                            Thread.yield()
+                        }
+                    }
+                }
+            }
+
+        val lastTimes = LongArray(producerCount) { -1L }
+        var drainedCount = 0
+        start.countDown()
+        while (drainedCount < producerCount * recordsPerProducer) {
+            drainedCount +=
+                buffer.drain { time, tag, _ ->
+                    val producer = tag.toInt()
+                    assertThat(time).isEqualTo(lastTimes[producer] + 1)
+                    lastTimes[producer] = time
+                }
+        }
+        producers.forEach { it.join() }
+
+        assertThat(lastTimes.toList()).containsExactlyElementsIn(
+            List(producerCount) { (recordsPerProducer - 1).toLong() }
+        )
+    }
+
+    private fun drainMessages(): List<String> {
+        val messages = mutableListOf<String>()
+        buffer.drain { _, _, msg -> messages.add(msg) }
+        return messages
+    }
+
+    private companion object {
+        const val CAPACITY = 8
+    }
+}
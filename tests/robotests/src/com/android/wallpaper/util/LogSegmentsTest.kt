@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.util
+
+import androidx.test.platform.app.InstrumentationRegistry
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import java.nio.ByteBuffer
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class LogSegmentsTest {
+
+    private val directory =
+        File(
+            InstrumentationRegistry.getInstrumentation().targetContext.filesDir,
+            LogSegments.DIRECTORY_NAME
+        )
+    private val segments = LogSegments(directory)
+
+    @After
+    fun tearDown() {
+        segments.close()
+    }
+
+    @Test
+    fun append_sameDay_appendsToOneSegment() {
+        segments.append(DAY_3, record("first\n"))
+        segments.append(DAY_3 + 1000, record("second\n"))
+
+        assertThat(segments.segments.map { it.readText() }).containsExactly("first\nsecond\n")
+    }
+
+    @Test
+    fun append_afterReopening_appendsToLastSegment() {
+        segments.append(DAY_3, record("first\n"))
+        segments.close()
+
+        LogSegments(directory).apply {
+            append(DAY_3 + 1000, record("second\n"))
+            close()
+        }
+
+        assertThat(segments.segments.map { it.readText() }).containsExactly("first\nsecond\n")
+    }
+
+    @Test
+    fun append_newDay_startsNewSegment() {
+        segments.append(DAY_3, record("first\n"))
+        segments.append(DAY_3 + LogSegments.BUCKET_MILLIS, record("second\n"))
+
+        assertThat(segments.segments.map { it.readText() })
+            .containsExactly("first\n", "second\n")
+            .inOrder()
+    }
+
+    @Test
+    fun append_overMaxSize_startsNewSegment() {
+        val large = "a".repeat((LogSegments.MAX_SEGMENT_SIZE / 2 + 1).toInt())
+        segments.append(DAY_3, record(large))
+        segments.append(DAY_3, record(large))
+        segments.append(DAY_3, record("last\n"))
+
+        assertThat(segments.segments.map { it.readText() })
+            .containsExactly(large, large + "last\n")
+            .inOrder()
+    }
+
+    @Test
+    fun deleteOlderThan_deletesOnlySegmentsWithOnlyOlderLogs() {
+        segments.append(DAY_3, record("old\n"))
+        segments.append(DAY_3 + LogSegments.BUCKET_MILLIS, record("recent\n"))
+
+        segments.deleteOlderThan(DAY_3 + LogSegments.BUCKET_MILLIS + 1)
+        segments.append(DAY_3 + LogSegments.BUCKET_MILLIS + 2000, record("new\n"))
+
+        assertThat(segments.segments.map { it.readText() }).containsExactly("recent\nnew\n")
+    }
+
+    private fun record(text: String) = ByteBuffer.wrap(text.toByteArray())
+
+    private companion object {
+        val DAY_3 = 3 * LogSegments.BUCKET_MILLIS
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.LinearGradient
+import android.graphics.Paint
+import android.graphics.Rect
+import android.graphics.Shader
+import android.net.Uri
+import android.os.Debug
+import android.util.Log
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import androidx.test.runner.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Compares the peak native memory held while decoding a crop of a large WEBP image, which
+ * BitmapRegionDecoder can't decode, through [ContentUriAsset.decodeBitmapRegion] and through the
+ * previous path which decoded the full image and copied the crop out of it.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class ContentUriAssetCropBenchmark {
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+    private val imageFile = File(context.cacheDir, "benchmark_crop_source.webp")
+
+    @Before
+    fun setUp() {
+        val bitmap = createImageBitmap()
+        imageFile.outputStream().use { bitmap.compress(Bitmap.CompressFormat.WEBP_LOSSY, 90, it) }
+        bitmap.recycle()
+    }
+
+    @After
+    fun tearDown() {
+        imageFile.delete()
+    }
+
+    @Test
+    fun cropPath_holdsLessNativeMemoryThanFullDecode() {
+        val cropPath = measure("crop") { heapProbe ->
+            // Uncached, so that every iteration decodes.
+            val asset = ContentUriAsset(context, Uri.fromFile(imageFile), /* uncached= */ true)
+            val latch = CountDownLatch(1)
+            var region: Bitmap? = null
+            asset.decodeBitmapRegion(
+                CROP,
+                CROP.width(),
+                CROP.height(),
+                /* shouldAdjustForRtl= */ false
+            ) {
+                region = it
+                latch.countDown()
+            }
+            assertThat(latch.await(30, TimeUnit.SECONDS)).isTrue()
+            assertThat(region).isNotNull()
+            heapProbe()
+            region?.recycle()
+        }
+        val fullDecode = measure("full decode") { heapProbe ->
+            // Decoded in software so that its memory is counted like the crop's; the hardware
+            // bitmap the fallback decodes costs as much in graphics memory instead.
+            val full = BitmapFactory.decodeFile(imageFile.path)
+            val region =
+                Bitmap.createBitmap(full, CROP.left, CROP.top, CROP.width(), CROP.height())
+            heapProbe()
+            region.recycle()
+            full.recycle()
+        }
+
+        assertThat(cropPath.peakNativeBytes).isLessThan(fullDecode.peakNativeBytes)
+    }
+
+    private fun measure(name: String, decode: (heapProbe: () -> Unit) -> Unit): Result {
+        Runtime.getRuntime().gc()
+        val baseline = Debug.getNativeHeapAllocatedSize()
+        var peak = baseline
+        repeat(ITERATIONS) { decode { peak = maxOf(peak, Debug.getNativeHeapAllocatedSize()) } }
+        val result = Result(peakNativeBytes = peak - baseline)
+        Log.i(TAG, "$name: $result")
+        return result
+    }
+
+    /** A gradient rather than a flat color so that the image doesn't compress to nothing. */
+    private fun createImageBitmap(): Bitmap {
+        val bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888)
+        val paint =
+            Paint().apply {
+                shader =
+                    LinearGradient(
+                        0f,
+                        0f,
+                        WIDTH.toFloat(),
+                        HEIGHT.toFloat(),
+                        Color.MAGENTA,
+                        Color.CYAN,
+                        Shader.TileMode.MIRROR
+                    )
+            }
+        Canvas(bitmap).drawPaint(paint)
+        return bitmap
+    }
+
+    private data class Result(val peakNativeBytes: Long)
+
+    private companion object {
+        const val TAG = "ContentUriCropBenchmark"
+        const val WIDTH = 4000
+        const val HEIGHT = 3000
+        const val ITERATIONS = 3
+        val CROP = Rect(1000, 1000, 2080, 2080)
+    }
+}
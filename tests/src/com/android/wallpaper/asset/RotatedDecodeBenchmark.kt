@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.asset
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.BitmapRegionDecoder
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.LinearGradient
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.graphics.Rect
+import android.graphics.Shader
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.filters.LargeTest
+import androidx.test.runner.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import java.io.ByteArrayOutputStream
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Compares the time taken to decode a large JPEG rotated by its EXIF orientation through
+ * [RotatedRegionDecoding]'s strips, through its single pass, and through the previous path which
+ * decoded the whole image and copied it into a rotated bitmap. Results are logged.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class RotatedDecodeBenchmark {
+    private val encodedImage = createEncodedImage()
+    private val fullRect = Rect(0, 0, WIDTH, HEIGHT)
+
+    @Test
+    fun fullResolution_comparesRotatedDecodePaths() {
+        compareRotatedDecodePaths(sampleSize = 1)
+    }
+
+    @Test
+    fun sampled_comparesRotatedDecodePaths() {
+        compareRotatedDecodePaths(sampleSize = 4)
+    }
+
+    private fun compareRotatedDecodePaths(sampleSize: Int) {
+        val decoder = BitmapRegionDecoder.newInstance(encodedImage, 0, encodedImage.size, false)!!
+        try {
+            val strips =
+                measure("strips, sample size $sampleSize") {
+                    RotatedRegionDecoding.decodeInStrips(
+                        decoder::decodeRegion,
+                        fullRect,
+                        sampleSize,
+                        DEGREES
+                    )
+                }
+            val singlePass =
+                measure("single pass, sample size $sampleSize") {
+                    RotatedRegionDecoding.decodeOnceAndRotate(
+                        decoder::decodeRegion,
+                        fullRect,
+                        sampleSize,
+                        DEGREES
+                    )
+                }
+            val copyRotate =
+                measure("copy-rotate, sample size $sampleSize") { copyRotate(sampleSize) }
+
+            // Every path ends up with the same rotated image size.
+            assertThat(singlePass).isEqualTo(strips)
+            assertThat(copyRotate).isEqualTo(strips)
+        } finally {
+            decoder.recycle()
+        }
+    }
+
+    /** The decode StreamableAsset fell back to before decoding rotated images in strips. */
+    private fun copyRotate(sampleSize: Int): Bitmap? {
+        val options = BitmapFactory.Options().apply { inSampleSize = sampleSize }
+        val unrotated =
+            BitmapFactory.decodeByteArray(encodedImage, 0, encodedImage.size, options)
+                ?: return null
+        val matrix = Matrix().apply { setRotate(DEGREES.toFloat()) }
+        val rotated =
+            Bitmap.createBitmap(
+                unrotated,
+                0,
+                0,
+                unrotated.width,
+                unrotated.height,
+                matrix,
+                /* filter= */ false
+            )
+        unrotated.recycle()
+        return rotated
+    }
+
+    /** Returns the dimensions of the decoded bitmap, after logging the average decode time. */
+    private fun measure(name: String, decode: () -> Bitmap?): Pair<Int, Int> {
+        // Warm up once so that what's measured doesn't include loading the codec.
+        decode()?.recycle()
+        var dimensions = 0 to 0
+        val startMillis = SystemClock.elapsedRealtime()
+        repeat(ITERATIONS) {
+            val bitmap = decode()!!
+            dimensions = bitmap.width to bitmap.height
+            bitmap.recycle()
+        }
+        val averageMillis = (SystemClock.elapsedRealtime() - startMillis) / ITERATIONS
+        Log.i(TAG, "$name: $averageMillis ms per decode")
+        return dimensions
+    }
+
+    /** A gradient rather than a flat color so that the image doesn't compress to nothing. */
+    private fun createEncodedImage(): ByteArray {
+        val bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888)
+        val paint =
+            Paint().apply {
+                shader =
+                    LinearGradient(
+                        0f,
+                        0f,
+                        WIDTH.toFloat(),
+                        HEIGHT.toFloat(),
+                        Color.BLUE,
+                        Color.YELLOW,
+                        Shader.TileMode.MIRROR
+                    )
+            }
+        Canvas(bitmap).drawPaint(paint)
+        val encoded = ByteArrayOutputStream()
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, encoded)
+        bitmap.recycle()
+        return encoded.toByteArray()
+    }
+
+    private companion object {
+        const val TAG = "RotatedDecodeBenchmark"
+        const val WIDTH = 4000
+        const val HEIGHT = 3000
+        const val DEGREES = 90
+        const val ITERATIONS = 3
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.LinearGradient
+import android.graphics.Paint
+import android.graphics.Shader
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import androidx.test.runner.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.InputStream
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Compares the time to apply and the heap held while applying a 4K wallpaper bitmap through the
+ * previous in-memory PNG path and the temporary file path of
+ * [DefaultWallpaperPersister.setBitmapToWallpaperManager]. WallpaperManager#setStream is stood in
+ * for by draining the stream, so that running the benchmark doesn't change the device wallpaper.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class SetBitmapToWallpaperManagerBenchmark {
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+    private val encodedFile = File(context.cacheDir, "benchmark_encoded_wallpaper")
+
+    @After
+    fun tearDown() {
+        encodedFile.delete()
+    }
+
+    @Test
+    fun tempFilePath_holdsLessHeapThanByteArrayPath() {
+        val bitmap = createWallpaperBitmap()
+
+        val byteArray = measure("byte array") { heapProbe ->
+            val out = ByteArrayOutputStream()
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out)
+            drain(ByteArrayInputStream(out.toByteArray()), heapProbe)
+        }
+        val tempFile = measure("temp file") { heapProbe ->
+            val encoded =
+                DefaultWallpaperPersister.encodeToFile(
+                    bitmap,
+                    WallpaperEncodeFormat.PNG,
+                    encodedFile
+                )
+            assertThat(encoded).isTrue()
+            FileInputStream(encodedFile).use { drain(it, heapProbe) }
+        }
+
+        assertThat(tempFile.heldHeapBytes).isLessThan(byteArray.heldHeapBytes)
+    }
+
+    private fun measure(name: String, apply: (heapProbe: () -> Unit) -> Unit): Result {
+        Runtime.getRuntime().gc()
+        val baseline = usedHeap()
+        var peak = baseline
+        val start = SystemClock.elapsedRealtimeNanos()
+        repeat(ITERATIONS) { apply { peak = maxOf(peak, usedHeap()) } }
+        val result =
+            Result(
+                applyMillis = (SystemClock.elapsedRealtimeNanos() - start) / ITERATIONS / 1_000_000,
+                heldHeapBytes = peak - baseline
+            )
+        Log.i(TAG, "$name: $result")
+        return result
+    }
+
+    private fun drain(inputStream: InputStream, heapProbe: () -> Unit) {
+        // The point where setStream would be copying the encoded image over.
+        heapProbe()
+        val buffer = ByteArray(64 * 1024)
+        while (inputStream.read(buffer) != -1) {
+            // Discard, like a pipe to WallpaperManagerService.
+        }
+    }
+
+    private fun usedHeap(): Long = Runtime.getRuntime().run { totalMemory() - freeMemory() }
+
+    /** A gradient rather than a flat color so that the PNG doesn't compress to nothing. */
+    private fun createWallpaperBitmap(): Bitmap {
+        val bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888)
+        val paint =
+            Paint().apply {
+                shader =
+                    LinearGradient(
+                        0f,
+                        0f,
+                        WIDTH.toFloat(),
+                        HEIGHT.toFloat(),
+                        Color.MAGENTA,
+                        Color.CYAN,
+                        Shader.TileMode.MIRROR
+                    )
+            }
+        Canvas(bitmap).drawPaint(paint)
+        return bitmap
+    }
+
+    private data class Result(val applyMillis: Long, val heldHeapBytes: Long)
+
+    private companion object {
+        const val TAG = "SetBitmapBenchmark"
+        const val WIDTH = 3840
+        const val HEIGHT = 2160
+        const val ITERATIONS = 3
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.module
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.LinearGradient
+import android.graphics.Paint
+import android.graphics.RadialGradient
+import android.graphics.Shader
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.filters.LargeTest
+import androidx.test.platform.app.InstrumentationRegistry
+import androidx.test.runner.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import java.io.File
+import kotlin.math.log10
+import kotlin.random.Random
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Encodes a corpus of wallpaper-like bitmaps in each candidate [WallpaperEncodeFormat] and reports
+ * encode time, bytes written and PSNR against the source, to pick a [WallpaperEncodePolicy] from.
+ * Results are logged under [TAG].
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class WallpaperEncodeFormatBenchmark {
+    private val context = InstrumentationRegistry.getInstrumentation().targetContext
+    private val encodedFile = File(context.cacheDir, "benchmark_encode_format")
+
+    @After
+    fun tearDown() {
+        encodedFile.delete()
+    }
+
+    @Test
+    fun encodeCorpus_allFormats() {
+        for ((name, bitmap) in createCorpus()) {
+            for (format in FORMATS) {
+                val result = measure(bitmap, format)
+                Log.i(TAG, "$name $format: $result")
+
+                if (format.isLossless) {
+                    assertThat(result.psnr).isEqualTo(Double.POSITIVE_INFINITY)
+                }
+            }
+            bitmap.recycle()
+        }
+    }
+
+    private fun measure(bitmap: Bitmap, format: WallpaperEncodeFormat): Result {
+        var totalNanos = 0L
+        repeat(ITERATIONS) {
+            val start = SystemClock.elapsedRealtimeNanos()
+            assertThat(DefaultWallpaperPersister.encodeToFile(bitmap, format, encodedFile)).isTrue()
+            totalNanos += SystemClock.elapsedRealtimeNanos() - start
+        }
+        val decoded = BitmapFactory.decodeFile(encodedFile.path)
+        val result =
+            Result(
+                encodeMillis = totalNanos / ITERATIONS / 1_000_000,
+                bytes = encodedFile.length(),
+                psnr = psnr(bitmap, decoded)
+            )
+        decoded.recycle()
+        return result
+    }
+
+    private data class Result(val encodeMillis: Long, val bytes: Long, val psnr: Double)
+
+    private companion object {
+        const val TAG = "EncodeFormatBenchmark"
+        const val WIDTH = 2160
+        const val HEIGHT = 3840
+        const val ITERATIONS = 3
+        const val SEED = 42
+
+        val FORMATS =
+            listOf(
+                WallpaperEncodeFormat.PNG,
+                WallpaperEncodeFormat.WEBP_LOSSLESS,
+                WallpaperEncodeFormat.lossy(95),
+                WallpaperEncodeFormat.lossy(85),
+            )
+
+        /**
+         * Stand-ins for the kinds of wallpapers we set: smooth gradients, flat illustrations with
+         * hard edges, and noisy photographs.
+         */
+        fun createCorpus(): Map<String, Bitmap> =
+            mapOf(
+                "gradient" to
+                    draw {
+                        shader =
+                            LinearGradient(
+                                0f,
+                                0f,
+                                0f,
+                                HEIGHT.toFloat(),
+                                Color.rgb(20, 30, 90),
+                                Color.rgb(250, 160, 80),
+                                Shader.TileMode.CLAMP
+                            )
+                    },
+                "illustration" to createIllustration(),
+                "photo" to createPhoto(),
+            )
+
+        fun draw(paintSetup: Paint.() -> Unit): Bitmap {
+            val bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888)
+            Canvas(bitmap).drawPaint(Paint().apply(paintSetup))
+            return bitmap
+        }
+
+        fun createIllustration(): Bitmap {
+            val bitmap = draw { color = Color.rgb(240, 230, 210) }
+            val canvas = Canvas(bitmap)
+            val paint = Paint(Paint.ANTI_ALIAS_FLAG)
+            val random = Random(SEED)
+            repeat(40) {
+                paint.color =
+                    Color.rgb(random.nextInt(256), random.nextInt(256), random.nextInt(256))
+                canvas.drawCircle(
+                    random.nextInt(WIDTH).toFloat(),
+                    random.nextInt(HEIGHT).toFloat(),
+                    (100 + random.nextInt(500)).toFloat(),
+                    paint
+                )
+            }
+            return bitmap
+        }
+
+        fun createPhoto(): Bitmap {
+            val bitmap = draw {
+                shader =
+                    RadialGradient(
+                        WIDTH / 2f,
+                        HEIGHT / 3f,
+                        HEIGHT.toFloat(),
+                        Color.rgb(90, 140, 200),
+                        Color.rgb(30, 60, 20),
+                        Shader.TileMode.CLAMP
+                    )
+            }
+            // Sensor-like noise, which is what makes photos hard to compress.
+            val random = Random(SEED)
+            val row = IntArray(WIDTH)
+            for (y in 0 until HEIGHT) {
+                bitmap.getPixels(row, 0, WIDTH, 0, y, WIDTH, 1)
+                for (x in 0 until WIDTH) {
+                    val noise = random.nextInt(-12, 13)
+                    val pixel = row[x]
+                    row[x] =
+                        Color.rgb(
+                            (Color.red(pixel) + noise).coerceIn(0, 255),
+                            (Color.green(pixel) + noise).coerceIn(0, 255),
+                            (Color.blue(pixel) + noise).coerceIn(0, 255)
+                        )
+                }
+                bitmap.setPixels(row, 0, WIDTH, 0, y, WIDTH, 1)
+            }
+            return bitmap
+        }
+
+        /** Peak signal-to-noise ratio over the RGB channels, infinite for identical bitmaps. */
+        fun psnr(expected: Bitmap, actual: Bitmap): Double {
+            val expectedRow = IntArray(expected.width)
+            val actualRow = IntArray(expected.width)
+            var squaredError = 0.0
+            for (y in 0 until expected.height) {
+                expected.getPixels(expectedRow, 0, expected.width, 0, y, expected.width, 1)
+                actual.getPixels(actualRow, 0, expected.width, 0, y, expected.width, 1)
+                for (x in expectedRow.indices) {
+                    val e = expectedRow[x]
+                    val a = actualRow[x]
+                    squaredError += square(Color.red(e) - Color.red(a))
+                    squaredError += square(Color.green(e) - Color.green(a))
+                    squaredError += square(Color.blue(e) - Color.blue(a))
+                }
+            }
+            if (squaredError == 0.0) {
+                return Double.POSITIVE_INFINITY
+            }
+            val meanSquaredError = squaredError / (3.0 * expected.width * expected.height)
+            return 10 * log10(255.0 * 255.0 / meanSquaredError)
+        }
+
+        fun square(value: Int): Double = (value * value).toDouble()
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.util
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import android.graphics.ColorSpace
+import android.graphics.Point
+import android.os.Debug
+import androidx.test.filters.LargeTest
+import androidx.test.runner.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class BitmapTransformerTest {
+
+    @Test
+    fun applyFillTransformation_smallerSource_centersOnBlack() {
+        val source = solidBitmap(2, 2, Color.RED)
+
+        val result = BitmapTransformer.applyFillTransformation(source, Point(4, 4))
+
+        assertThat(result.getPixel(0, 0)).isEqualTo(Color.BLACK)
+        assertThat(result.getPixel(1, 1)).isEqualTo(Color.RED)
+        assertThat(result.getPixel(2, 2)).isEqualTo(Color.RED)
+        assertThat(result.getPixel(3, 3)).isEqualTo(Color.BLACK)
+    }
+
+    @Test
+    fun applyFillTransformation_largerSource_keepsCenter() {
+        val source = solidBitmap(6, 6, Color.BLUE)
+        source.setPixel(0, 0, Color.GREEN)
+
+        val result = BitmapTransformer.applyFillTransformation(source, Point(2, 2))
+
+        assertThat(result.width).isEqualTo(2)
+        assertThat(result.height).isEqualTo(2)
+        assertThat(result.getPixel(0, 0)).isEqualTo(Color.BLUE)
+    }
+
+    @Test
+    fun applyFillTransformation_translucentSource_copiesAlpha() {
+        val translucent = Color.argb(0x80, 0xFF, 0, 0)
+        val source = solidBitmap(2, 2, translucent)
+
+        val result = BitmapTransformer.applyFillTransformation(source, Point(2, 2))
+
+        assertThat(result.getPixel(0, 0)).isEqualTo(translucent)
+    }
+
+    @Test
+    fun applyStretchTransformation_scalesToSize() {
+        val source = solidBitmap(10, 20, Color.RED)
+
+        val result = BitmapTransformer.applyStretchTransformation(source, Point(40, 5))
+
+        assertThat(result.width).isEqualTo(40)
+        assertThat(result.height).isEqualTo(5)
+        assertThat(result.getPixel(20, 2)).isEqualTo(Color.RED)
+    }
+
+    @Test
+    fun applyStretchTransformation_keepsConfigAndColorSpace() {
+        val displayP3 = ColorSpace.get(ColorSpace.Named.DISPLAY_P3)
+        val source = Bitmap.createBitmap(10, 20, Bitmap.Config.RGBA_F16, true, displayP3)
+
+        val result = BitmapTransformer.applyStretchTransformation(source, Point(40, 5))
+
+        assertThat(result.config).isEqualTo(Bitmap.Config.RGBA_F16)
+        assertThat(result.colorSpace).isEqualTo(source.colorSpace)
+    }
+
+    @Test
+    fun transformations_largeBitmap_allocateBoundedJavaHeap() {
+        val source = solidBitmap(WIDTH, HEIGHT, Color.RED)
+        val pixelBytes = WIDTH.toLong() * HEIGHT * 4
+
+        val fillAllocated = javaBytesAllocatedBy {
+            BitmapTransformer.applyFillTransformation(source, Point(WIDTH + 200, HEIGHT - 200))
+        }
+        val stretchAllocated = javaBytesAllocatedBy {
+            BitmapTransformer.applyStretchTransformation(source, Point(WIDTH / 2, HEIGHT * 2))
+        }
+
+        // Bitmap pixels live in native memory, so a bounded implementation allocates next to
+        // nothing on the Java heap, whereas copying through an int[] allocates a full frame.
+        assertThat(fillAllocated).isLessThan(pixelBytes / MAX_HEAP_FRACTION)
+        assertThat(stretchAllocated).isLessThan(pixelBytes / MAX_HEAP_FRACTION)
+    }
+
+    private fun javaBytesAllocatedBy(transformation: () -> Bitmap): Long {
+        val before = bytesAllocated()
+        transformation().recycle()
+        return bytesAllocated() - before
+    }
+
+    private fun bytesAllocated(): Long = Debug.getRuntimeStat(BYTES_ALLOCATED_STAT).toLong()
+
+    private fun solidBitmap(width: Int, height: Int, color: Int): Bitmap =
+        Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888).apply { eraseColor(color) }
+
+    private companion object {
+        const val WIDTH = 3000
+        const val HEIGHT = 4000
+        const val MAX_HEAP_FRACTION = 16
+        const val BYTES_ALLOCATED_STAT = "art.gc.bytes-allocated"
+    }
+}
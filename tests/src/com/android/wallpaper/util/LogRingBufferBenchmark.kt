@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.wallpaper.util
+
+import android.os.Debug
+import android.os.SystemClock
+import android.util.Log
+import androidx.test.filters.LargeTest
+import androidx.test.runner.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Measures the calls per second the ring buffer behind [DiskBasedLogger] takes from several
+ * logging threads while it's drained, and the bytes each call allocates. Results are logged.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4::class)
+class LogRingBufferBenchmark {
+
+    @Test
+    fun offer_concurrentProducers_callsPerSecond() {
+        val buffer = LogRingBuffer(CAPACITY)
+        val start = CountDownLatch(1)
+        val producers =
+            (0 until PRODUCER_COUNT).map {
+                thread {
+                    start.await()
+                    for (i in 0 until CALLS_PER_PRODUCER) {
+                        buffer.offer(i.toLong(), TAG, MESSAGE)
+                    }
+                }
+            }
+        val isDraining = AtomicBoolean(true)
+        var drainedCount = 0L
+        val drainer = thread {
+            while (isDraining.get()) {
+                drainedCount += buffer.drain { _, _, _ -> }
+            }
+            drainedCount += buffer.drain { _, _, _ -> }
+        }
+
+        val bytesBefore = bytesAllocated()
+        val startNanos = SystemClock.elapsedRealtimeNanos()
+        start.countDown()
+        producers.forEach { it.join() }
+        val elapsedNanos = SystemClock.elapsedRealtimeNanos() - startNanos
+        isDraining.set(false)
+        drainer.join()
+        // Counts what the whole process allocated meanwhile, so it's an upper bound.
+        val bytesAllocated = bytesAllocated() - bytesBefore
+
+        val calls = PRODUCER_COUNT.toLong() * CALLS_PER_PRODUCER
+        val droppedCount = buffer.takeDroppedCount()
+        Log.i(
+            TAG,
+            "${calls * 1_000_000_000L / elapsedNanos} calls/s from $PRODUCER_COUNT threads, " +
+                "$droppedCount of $calls dropped, " +
+                "${bytesAllocated.toDouble() / calls} bytes allocated per call"
+        )
+        // Every call is either drained or counted as dropped.
+        assertThat(drainedCount + droppedCount).isEqualTo(calls)
+    }
+
+    private fun bytesAllocated(): Long = Debug.getRuntimeStat(BYTES_ALLOCATED_STAT).toLong()
+
+    private companion object {
+        const val TAG = "LogRingBufferBenchmark"
+        const val CAPACITY = 1024
+        const val PRODUCER_COUNT = 4
+        const val CALLS_PER_PRODUCER = 1_000_000
+        const val MESSAGE = "Unable to load the wallpapers of a category"
+        const val BYTES_ALLOCATED_STAT = "art.gc.bytes-allocated"
+    }
+}